@@ -0,0 +1,58 @@
+package workbooks_app.client_lib.java;
+
+/**
+ *	Checks for the unit tests, which are run as programs: each test class has a main() which makes its checks and
+ *  then calls testExit(), exiting with a status of 1 if any check failed. None of them needs a Workbooks service.
+ *
+ *  Example:
+ *    java -cp .:javax.json.jar workbooks_app.client_lib.java.WorkbooksRetryPolicyTest
+ *
+ * 	License: www.workbooks.com/mit_license
+ * 	Last commit $Id$
+ */
+
+public class TestAssertHelper {
+
+	private int checks = 0;
+	private int failures = 0;
+
+	/**
+	 * Check that a condition holds.
+	 */
+	public void check(boolean condition, String description) {
+		checks++;
+		if (!condition) {
+			failures++;
+			System.out.println("FAILED: " + description);
+		}
+	}
+
+	/**
+	 * Check that a value is as expected, comparing with equals().
+	 */
+	public void checkEqual(Object expected, Object actual, String description) {
+		boolean equal = expected == null ? actual == null : expected.equals(actual);
+		check(equal, description + " (expected " + expected + ", got " + actual + ")");
+	}
+
+	/**
+	 * Check that a task throws an exception of the given class.
+	 */
+	public void checkThrows(Class<? extends Throwable> expected, Runnable task, String description) {
+		Throwable thrown = null;
+		try {
+			task.run();
+		} catch (Throwable t) {
+			thrown = t;
+		}
+		check(thrown != null && expected.isInstance(thrown), description + " (expected " + expected.getSimpleName() + ", got " + thrown + ")");
+	}
+
+	/**
+	 * Report the checks made and exit, with a status of 1 if any failed.
+	 */
+	public void testExit(Class<?> test) {
+		System.out.println(test.getSimpleName() + ": " + (checks - failures) + " of " + checks + " checks passed");
+		System.exit(failures == 0 ? 0 : 1);
+	}
+}
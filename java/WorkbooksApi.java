@@ -1,38 +1,59 @@
 package workbooks_app.client_lib.java;
 
 import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
 import java.io.DataOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.StringReader;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.io.UnsupportedEncodingException;
 import java.net.HttpURLConnection;
+import java.net.SocketTimeoutException;
 import java.net.URI;
 import java.net.URL;
 import java.net.URLConnection;
 import java.net.URLEncoder;
+import java.security.GeneralSecurityException;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
 import java.util.HashMap;
-import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.regex.Pattern;
 import java.util.logging.ConsoleHandler;
 import java.util.logging.Formatter;
 import java.util.logging.Level;
 import java.util.logging.LogRecord;
 import java.util.logging.Logger;
-import javax.json.Json;
 import javax.json.JsonArray;
+import javax.json.JsonNumber;
 import javax.json.JsonObject;
-import javax.json.JsonReader;
+import javax.json.JsonValue;
 import javax.net.ssl.HostnameVerifier;
 import javax.net.ssl.HttpsURLConnection;
+import javax.net.ssl.SSLContext;
 import javax.net.ssl.SSLSession;
-import javax.net.ssl.SSLSocketFactory;
 import javax.xml.bind.DatatypeConverter;
 
 /** A Java wrapper for the Workbooks API 
@@ -52,6 +73,13 @@ import javax.xml.bind.DatatypeConverter;
  *     batch                     - create, update, and delete objects together
  *     getSessionId/setSessionId - use these to connect to an existing session
  *     condensedStatus           - use this to quickly check the response
+ *     getMetadata               - get metadata for classes, using the metadata cache if enabled
+ *     getRecord                 - get a single record by id, using the identity map if enabled
+ *     close                     - stop the background work, e.g. keeping connections alive, before discarding the object
+ *
+ *  A WorkbooksApi object may be shared by many threads. Build it with WorkbooksApi.Builder to make its
+ *  configuration immutable; the session is published atomically and the HashMaps and ArrayLists passed
+ *  to its methods are not modified. To spread requests over several sessions use a WorkbooksSessionPool.
  */
 
 
@@ -61,10 +89,14 @@ public class WorkbooksApi {
 	 * Exception class - Thrown when an API call returns an exception.
 	 */
 	@SuppressWarnings("unchecked")
-	class WorkbooksApiException extends Exception {
+	public class WorkbooksApiException extends Exception {
 
 		private static final long serialVersionUID = -8327935446470535913L;
 
+		private int code = 0;
+		private String type = null;
+		private long retry_after = -1;
+
 		/**
 		 * Make a new API Exception with the given result.
 		 * 
@@ -72,15 +104,19 @@ public class WorkbooksApi {
 		 *        result - the result from the API server
 		 */
 		public WorkbooksApiException(HashMap<String, Object> result) {
-			int code = 0;
+			super(exceptionMessage(result));
 			WorkbooksApi workbooks_api = null;
 
 			HashMap<String, Object> errorObject = (HashMap<String, Object>) result.get("error");
 
 			String msg = errorObject.get("message").toString();
+			type = (String) errorObject.get("type");
 			if (result.containsKey("error_code")) {
 				code = (Integer) result.get("error_code");
 			}
+			if (result.containsKey("retry_after")) {
+				retry_after = (Long) result.get("retry_after");
+			}
 			// If we have access to the Workbooks API object, log all that we can
 			if (result.containsKey("workbooks_api")) {
 				workbooks_api = (WorkbooksApi) result.get("workbooks_api");
@@ -88,14 +124,71 @@ public class WorkbooksApi {
 				workbooks_api.log("new WorkbooksApiException", new Object[] {msg, code}, "error", 4096);
 			}
 		}
+
+		/**
+		 * @return int - the error code, typically the HTTP status of the response, or 0
+		 */
+		public int getError_code() {
+			return code;
+		}
+
+		/**
+		 * @return String - the type of error, e.g. 'IOException' or 'WorkbooksServiceException'
+		 */
+		public String getType() {
+			return type;
+		}
+
+		/**
+		 * @return long - the delay, in milliseconds, asked for by the service in a Retry-After header, or -1 if none
+		 */
+		public long getRetry_after() {
+			return retry_after;
+		}
 	} // end of WorkbooksApiException class
 
+	/**
+	 * Exception class - Thrown without making a request while the circuit breaker is open because the service is failing.
+	 * getRetry_after() gives the time until the circuit breaker will let a request through.
+	 */
+	public class WorkbooksCircuitOpenException extends WorkbooksApiException {
+
+		private static final long serialVersionUID = 4511284312460378106L;
+
+		public WorkbooksCircuitOpenException(HashMap<String, Object> result) {
+			super(result);
+		}
+	}
+
+	/**
+	 * Exception class - Thrown by a WorkbooksMultiTenantClient, without making a request, when a tenant's request waits longer than
+	 * the quota timeout for its quota or for the overall limit.
+	 */
+	public class WorkbooksQuotaTimeoutException extends WorkbooksApiException {
+
+		private static final long serialVersionUID = -2236047339846415791L;
+
+		public WorkbooksQuotaTimeoutException(HashMap<String, Object> result) {
+			super(result);
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	private static String exceptionMessage(HashMap<String, Object> result) {
+		HashMap<String, Object> errorObject = (HashMap<String, Object>) result.get("error");
+		return errorObject != null && errorObject.get("message") != null ? errorObject.get("message").toString() : null;
+	}
+
 	/**
 	 * The wrapper class to handle the response from Workbooks. It has methods which return the data and the affected objects from the Workbooks Response
+	 * 
+	 * A response does not change once received, so the status, total, data and affected objects are found in one pass over the decoded response
+	 * the first time any of them is asked for, and kept.
 	 */
 	public class WorkbooksApiResponse {
 		HashMap<String, Object> response = null;
-		private Integer total = null;
+		long body_length = 0; // the size of the response body, used to account for it in the response cache
+		private Summary summary = null; // derived from the response on first use
 
 		public WorkbooksApiResponse(HashMap<String, Object> response) {
 			this.response = response;
@@ -103,16 +196,81 @@ public class WorkbooksApi {
 		}
 
 		/**
-		 * @return - returns the total number of records returned from the response
+		 * A copy of a response, with its own HashMap, which shares the decoded response and anything already derived from it.
 		 */
-		public int getTotal() {
-			if (response != null) {
-				JsonObject responseData = (JsonObject) response.get("response");
-				if (responseData != null) {
-					total = responseData.getInt("total");
+		WorkbooksApiResponse(WorkbooksApiResponse shared) {
+			this(new HashMap<String, Object>(shared.response));
+			this.body_length = shared.body_length;
+			this.summary = shared.summary;
+		}
+
+		/**
+		 * What is derived from the decoded response. Its fields are final, so that a Summary is seen complete by any thread which sees it.
+		 */
+		private final class Summary {
+			final JsonObject body;
+			final Integer total;
+			final JsonArray data;
+			final JsonArray affected_objects;
+			final JsonArray affected_object_information;
+			final boolean success;
+			final String status;
+
+			Summary(Object decoded) {
+				body = decoded instanceof JsonObject ? (JsonObject) decoded : null;
+				JsonValue total_value = body != null ? body.get("total") : null;
+				total = total_value instanceof JsonNumber ? Integer.valueOf(((JsonNumber) total_value).intValue()) : null;
+				data = arrayMember(body, "data");
+				affected_objects = arrayMember(body, "affected_objects");
+				affected_object_information = arrayMember(body, "affected_object_information");
+				success = body != null && body.getBoolean("success", false);
+				status = condense();
+			}
+
+			private JsonArray arrayMember(JsonObject object, String name) {
+				JsonValue value = object != null ? object.get(name) : null;
+				return value instanceof JsonArray ? (JsonArray) value : null;
+			}
+
+			private String condense() {
+				if (body == null || !body.containsKey("success")) {
+					return "failed"; // Unexpected failure - there should always be a "success" element
+				} else if (!body.getBoolean("success")) {
+					return "failed"; // Something was quite wrong, not just a validation failure
+				} else if (body.containsKey("errors")) {
+					return "not-ok";
+				} else if (affected_object_information == null) {
+					return "ok";
 				}
+				String status = "ok";
+				for (JsonValue value : affected_object_information) {
+					if (!(value instanceof JsonObject) || !((JsonObject) value).containsKey("success")) {
+						return "failed"; // Again, this is unexpected.
+					}
+					if (!((JsonObject) value).getBoolean("success", false)) {
+						status = "not-ok"; // There will be warnings or errors indicated which prevented complete success.
+					}
+				}
+				return status;
+			}
+		}
+
+		private Summary summary() {
+			Summary summary = this.summary;
+			if (summary == null) {
+				// Threads which ask at once may each derive it; they derive the same
+				summary = new Summary(response != null ? response.get("response") : null);
+				this.summary = summary;
 			}
-			return total;
+			return summary;
+		}
+
+		/**
+		 * @return - returns the total number of records returned from the response
+		 * @throws NullPointerException - if the response has no total
+		 */
+		public int getTotal() {
+			return summary().total;
 		}
 
 		/**
@@ -122,32 +280,43 @@ public class WorkbooksApi {
 			return response;
 		}
 
+		/**
+		 * @return JsonObject - the decoded response, or null if it was not decoded (the 'decode_json' option was false)
+		 */
+		public JsonObject getResponse() {
+			return summary().body;
+		}
+
+		/**
+		 * @return boolean - the 'success' element of the response: false if the request failed outright
+		 */
+		public boolean isSuccess() {
+			return summary().success;
+		}
+
 		/**
 		 * Method to return the data object from the Workbooks Response
 		 * 
-		 * @return array of the data
+		 * @return array of the data, or null if there is none
 		 */
 		public JsonArray getData() {
-			if (response != null) {
-				JsonObject responseData = (JsonObject) response.get("response");
-				JsonArray allData = responseData.getJsonArray("data");
-				return allData;
-			}
-			return null;
+			return summary().data;
 		}
 
 		/**
 		 * Method to return the affected objects from the Workbooks Response after an operation
 		 * 
-		 * @return array of the affected objects
+		 * @return array of the affected objects, or null if there are none
 		 */
 		public JsonArray getAffectedObjects() {
-			if (response != null) {
-				JsonObject responseData = (JsonObject) response.get("response");
-				JsonArray allData = responseData.getJsonArray("affected_objects");
-				return allData;
-			}
-			return null;
+			return summary().affected_objects;
+		}
+
+		/**
+		 * @return array of the success, errors and warnings of each object affected by an operation, or null if there are none
+		 */
+		public JsonArray getAffectedObjectInformation() {
+			return summary().affected_object_information;
 		}
 
 		/**
@@ -185,39 +354,10 @@ public class WorkbooksApi {
 		 *         check the errors and warnings. 'ok' - completely successful.
 		 */
 		public String condensedStatus() {
-			String status = "ok";
-			if (response != null) {
-				JsonObject responseData = (JsonObject) response.get("response");
-
-				if (!responseData.containsKey("success")) {
-					return "failed"; // Unexpected failure - there should
-					// always be a
-					// "success" element
-				} else if (!responseData.getBoolean("success")) {
-					return "failed"; // Something was quite wrong, not just a
-					// validation failure
-				} else if (responseData.containsKey("errors")) {
-					status = "not-ok";
-				} else if (!responseData.containsKey("affected_object_information") || !responseData.get("affected_object_information").getClass().isArray()) {
-					return "ok";
-				} else {
-					JsonArray affected_objects = responseData.getJsonArray("affected_object_information");
-					for (int i = 0; i < affected_objects.size(); i++) {
-						JsonObject affected = affected_objects.getJsonObject(i);
-						if (!affected.containsKey("success")) {
-							status = "failed"; // Again, this is unexpected.
-						}
-						if (!affected.getBoolean("success")) {
-							status = "not-ok"; // There will be warnings or
-							// errors indicated which
-							// prevented complete success.
-						}
-					}
-				}
-			} else {
-				status = "not-ok";
+			if (response == null) {
+				return "not-ok";
 			}
-			return status;
+			return summary().status;
 		}
 
 		/**
@@ -262,28 +402,86 @@ public class WorkbooksApi {
 	
 	public static final int API_VERSION = 1;
 
+	/**
+	 * The state of the session with the service. Instances are immutable and a change to the session publishes a new one, so that
+	 * a thread never sees the session id of one session together with the authenticity token of another.
+	 */
+	protected static final class SessionState {
+		final String session_id;
+		final String authenticity_token;
+		final boolean login_state; // true => logged in
+		final String database_instance_id;
+		final String logical_database_id;
+		final boolean from_cache; // true => reconnected from the session cache
+
+		SessionState(String session_id, String authenticity_token, boolean login_state, String database_instance_id, String logical_database_id,
+				boolean from_cache) {
+			this.session_id = session_id;
+			this.authenticity_token = authenticity_token;
+			this.login_state = login_state;
+			this.database_instance_id = database_instance_id;
+			this.logical_database_id = logical_database_id;
+			this.from_cache = from_cache;
+		}
+	}
+
 	/**
 	 * Instance variables
 	 */
-	protected String session_id = null;
-	protected String api_key = null;
-	protected String username = null;
-	protected String logical_database_id = null;
-	protected String database_instance_id = null;
-	protected String authenticity_token = null;
-	protected int api_version = API_VERSION;
-	protected boolean login_state = false; // true => logged in
-	protected boolean auto_logout = true; // true => call logout() in destroy hook
-	protected String application_name = null;
-	protected String user_agent = null;
-	protected int connect_timeout = 120; // 2 minutes
-	protected boolean verify_peer = true; // false is not correct for Production use.
-	protected boolean fast_login = true; // speed up the login by not returning my_queues and some other details during login.
-	protected String service = "https://secure.workbooks.com";
-	protected long last_request_duration = 0;
-	protected String user_queues = null; // when logged in contains an array of user queues
-	protected String jsonPretty = "pretty"; // have json print pretty
-	protected JsonObject login_response = null;
+	private final AtomicReference<SessionState> session = new AtomicReference<SessionState>(new SessionState(null, null, false, null, null, false));
+	protected volatile String api_key = null;
+	protected volatile String username = null;
+	protected volatile int api_version = API_VERSION;
+	protected volatile boolean auto_logout = true; // true => call logout() in destroy hook
+	protected volatile String application_name = null;
+	protected volatile String user_agent = null;
+	protected volatile int connect_timeout = 120; // 2 minutes
+	protected volatile int request_timeout = 0; // seconds: the default deadline for a call, covering connect, write and read; 0 => none
+	protected volatile boolean verify_peer = true; // false is not correct for Production use.
+	protected volatile boolean compression = true; // true => ask for responses to be compressed with gzip or deflate
+	protected volatile WorkbooksCompression request_compression = null; // when enabled compresses large request bodies with gzip
+	protected WorkbooksTls tls = null; // created on first use: the SSLContext, and so the TLS session cache, of every HTTPS connection
+	protected SSLContext ssl_context = null; // null => a new SSLContext trusting the JVM's default certificate authorities
+	protected volatile int tls_session_cache_size = -1; // -1 => the JVM's default
+	protected volatile int tls_session_timeout = -1; // seconds; -1 => the JVM's default
+	protected volatile int prewarm_connections = 0; // connections to open when the object is created, and to keep alive
+	protected volatile long keep_alive_interval = 0; // milliseconds; 0 => do not keep idle connections alive
+	protected volatile long last_request_at = 0; // when the last request was sent, as System.currentTimeMillis()
+	protected ScheduledFuture<?> keep_alive_task = null;
+	protected volatile boolean auto_content_type = true; // true => send each batch with whichever content type makes the smaller body
+	protected volatile WorkbooksJsonCodec json_codec = new WorkbooksJsonParser(); // decodes the JSON responses of the service
+	protected volatile int max_url_length = 4096; // a GET whose URL would be longer is sent as a POST with _method=GET
+	protected volatile boolean http2 = false; // true => send form-encoded requests with WorkbooksHttp2Transport where Java 11 is available
+	protected volatile int http2_max_streams = 100; // the most requests in progress at once over HTTP/2
+	protected WorkbooksTransport transport = null; // created on first use if http2 is true; null => HttpURLConnection
+	protected boolean transport_unavailable = false; // true => the HTTP/2 transport could not be created, so HttpURLConnection is used
+	protected volatile boolean fast_login = true; // speed up the login by not returning my_queues and some other details during login.
+	protected volatile String service = "https://secure.workbooks.com";
+	protected volatile long last_request_duration = 0;
+	protected volatile String user_queues = null; // when logged in contains an array of user queues
+	protected volatile String jsonPretty = "pretty"; // have json print pretty
+	protected volatile JsonObject login_response = null;
+	protected volatile WorkbooksMetadataCache metadata_cache = null; // when enabled holds per-class metadata between calls
+	protected ScheduledExecutorService background_executor = null; // created on first use for background work
+	protected boolean own_background_executor = false; // true => background_executor was created here, so close() shuts it down
+	protected volatile WorkbooksResponseCache response_cache = null; // when enabled holds GET responses for reference data
+	protected volatile boolean single_flight = false; // true => concurrent identical GETs share one request to the service
+	protected volatile WorkbooksSessionCache session_cache = null; // when enabled sessions are saved for reuse by later processes
+	protected volatile String session_cache_identity = null; // the identity under which the current session is saved
+	protected volatile HashMap<String, Object> login_params = null; // as passed to the last login(), to log in again if the session expires
+	protected volatile boolean auto_relogin = true; // true => log in again and repeat the request when the service rejects the session
+	private final Object relogin_lock = new Object(); // held while logging in again, so that only one thread does so
+	protected volatile WorkbooksRetryPolicy retry_policy = new WorkbooksRetryPolicy(); // which failed requests are sent again, and when
+	protected volatile WorkbooksConcurrencyLimiter concurrency_limiter = null; // when enabled adapts the number of requests in progress to the service's capacity
+	protected volatile WorkbooksRateLimiter rate_limiter = null; // when enabled keeps the request rate under the service's usage limits
+	protected volatile WorkbooksCircuitBreaker circuit_breaker = null; // when enabled fails requests at once while the service is failing
+	protected volatile WorkbooksHedging hedging = null; // when enabled sends a second GET if the first is slow to be answered
+	protected volatile boolean hedge_gets = false; // true => hedge every GET unless the 'hedge' option is false
+	protected ExecutorService request_executor = null; // created on first use to run hedged and asynchronous requests
+	protected volatile WorkbooksIdentityMap identity_map = null; // when enabled holds the latest view of records by endpoint and id
+	protected volatile boolean configuration_frozen = false; // true => built by a Builder, so the configuration cannot change
+	protected volatile WorkbooksMetrics metrics = new WorkbooksMetrics(); // counts and times requests; may be shared between objects
+	private final ConcurrentHashMap<String, FutureTask<WorkbooksApiResponse>> in_flight = new ConcurrentHashMap<String, FutureTask<WorkbooksApiResponse>>();
 	
 	
 	public static final String CHARSET = "UTF-8";
@@ -298,7 +496,9 @@ public class WorkbooksApi {
 	 */
 	public static final int HTTP_STATUS_OK = 200;
 	public static final int HTTP_STATUS_FOUND = 302;
+	public static final int HTTP_STATUS_UNAUTHORIZED = 401;
 	public static final int HTTP_STATUS_FORBIDDEN = 403;
+	public static final int HTTP_STATUS_UNSUPPORTED_MEDIA_TYPE = 415;
 
 	/**
 	 * The Workbooks session cookie
@@ -318,11 +518,95 @@ public class WorkbooksApi {
 	
 	public static final int DEFAULT_LOG_LIMIT = 4096;
 	
+	/**
+	 * Accepts any host name when verify_peer is false. One instance is used for every connection because the JVM only reuses a kept-alive
+	 * connection for a request with the same verifier.
+	 */
+	private static final HostnameVerifier TRUSTING_HOSTNAME_VERIFIER = new HostnameVerifier() {
+		public boolean verify(String string, SSLSession ssls) {
+			return true;
+		}
+	};
+
 	private final Logger logger = Logger.getLogger(WorkbooksApi.class.getName());
-	private ConsoleHandler consoleHandler = new ConsoleHandler();
+	// The logger is shared by every WorkbooksApi object: install its handler only once.
+	private static ConsoleHandler consoleHandler = null;
 	// Can also have the logs go to a File
 	//private FileHandler fileHandler = new FileHandler("/Users/Home/Documents/JavaLogger.log", true);
 
+	/**
+	 * Builds a WorkbooksApi object whose configuration cannot be changed once built, so that it can be shared safely between threads.
+	 * Each setter takes the same value as the constructor parameter of the same name; set() takes any constructor parameter.
+	 * 
+	 * Example:
+	 *   WorkbooksApi workbooks = new WorkbooksApi.Builder()
+	 *     .setApplication_name("java_test_client")
+	 *     .setUser_agent("java_test_client/0.1")
+	 *     .setApi_key(api_key)
+	 *     .build();
+	 */
+	public static class Builder {
+		private final HashMap<String, Object> params = new HashMap<String, Object>();
+
+		public Builder setApplication_name(String application_name) {
+			return set("application_name", application_name);
+		}
+
+		public Builder setUser_agent(String user_agent) {
+			return set("user_agent", user_agent);
+		}
+
+		public Builder setService(String service) {
+			return set("service", service);
+		}
+
+		public Builder setApi_key(String api_key) {
+			return set("api_key", api_key);
+		}
+
+		public Builder setUsername(String username) {
+			return set("username", username);
+		}
+
+		public Builder setLogical_database_id(String logical_database_id) {
+			return set("logical_database_id", logical_database_id);
+		}
+
+		public Builder setConnect_timeout(int connect_timeout) {
+			return set("connect_timeout", Integer.toString(connect_timeout));
+		}
+
+		public Builder setRequest_timeout(int request_timeout) {
+			return set("request_timeout", Integer.toString(request_timeout));
+		}
+
+		public Builder setVerify_peer(boolean verify_peer) {
+			return set("verify_peer", verify_peer);
+		}
+
+		public Builder setFast_login(boolean fast_login) {
+			return set("fast_login", fast_login);
+		}
+
+		public Builder setApi_version(int api_version) {
+			return set("api_version", Integer.toString(api_version));
+		}
+
+		/**
+		 * Set any parameter accepted by the WorkbooksApi constructor.
+		 */
+		public Builder set(String name, Object value) {
+			params.put(name, value);
+			return this;
+		}
+
+		public WorkbooksApi build() throws Exception {
+			WorkbooksApi workbooks = new WorkbooksApi(new HashMap<String, Object>(params));
+			workbooks.configuration_frozen = true;
+			return workbooks;
+		}
+	}
+
 	/**
 	 * Constructor to build the WorkbooksApi object with the passed parameters
 	 * 
@@ -330,14 +614,20 @@ public class WorkbooksApi {
 	 *          parameters to be set in the object
 	 * @throws Exception
 	 */
+	@SuppressWarnings("unchecked")
 	public WorkbooksApi(HashMap<String, Object> params) throws Exception {
 		// Initialise the logger handler and the level
-		consoleHandler.setLevel(Level.INFO);
-		consoleHandler.setFormatter(new WorkbookLogFormatter());
-		logger.addHandler(consoleHandler);
-		// add the file Handler as well
-//		logger.addHandler(fileHandler);
-		logger.setUseParentHandlers(false); // Turn the parent handles off, so that we can get rid of the date and classname, use the formatter instead
+		synchronized (WorkbooksApi.class) {
+			if (consoleHandler == null) {
+				consoleHandler = new ConsoleHandler();
+				consoleHandler.setLevel(Level.INFO);
+				consoleHandler.setFormatter(new WorkbookLogFormatter());
+				logger.addHandler(consoleHandler);
+				// add the file Handler as well
+//				logger.addHandler(fileHandler);
+				logger.setUseParentHandlers(false); // Turn the parent handles off, so that we can get rid of the date and classname, use the formatter instead
+			}
+		}
 
 		if (params.containsKey("application_name")) {
 			this.setApplication_name((String) params.get("application_name"));
@@ -355,6 +645,9 @@ public class WorkbooksApi {
 		if (params.containsKey("connect_timeout")) {
 			this.setConnect_timeout(Integer.parseInt((String) params.get("connect_timeout")));
 		}
+		if (params.containsKey("request_timeout")) {
+			this.setRequest_timeout(Integer.parseInt(params.get("request_timeout").toString()));
+		}
 		if (params.containsKey("api_key")) {
 			this.setApi_key((String) params.get("api_key"));
 		}
@@ -370,6 +663,23 @@ public class WorkbooksApi {
 		if (params.containsKey("verify_peer")) {
 			this.setVerify_peer((Boolean) params.get("verify_peer"));
 		}
+		if (params.containsKey("ssl_context")) {
+			this.setSsl_context((SSLContext) params.get("ssl_context"));
+		}
+		if (params.containsKey("tls_session_cache_size")) {
+			this.setTls_session_cache_size(Integer.parseInt(params.get("tls_session_cache_size").toString()));
+		}
+		if (params.containsKey("tls_session_timeout")) {
+			this.setTls_session_timeout(Integer.parseInt(params.get("tls_session_timeout").toString()));
+		}
+		if (params.containsKey("compression")) {
+			this.setCompression((Boolean) params.get("compression"));
+		}
+		if (params.containsKey("request_compression_threshold")) {
+			this.setRequest_compression(new WorkbooksCompression(Long.parseLong(params.get("request_compression_threshold").toString())));
+		} else if (params.containsKey("request_compression") && (Boolean) params.get("request_compression")) {
+			this.setRequest_compression(new WorkbooksCompression());
+		}
 		if (params.containsKey("fast_login")) {
 			this.setFast_login((Boolean) params.get("fast_login"));
 		}
@@ -379,84 +689,577 @@ public class WorkbooksApi {
 		if (params.containsKey("api_version")) {
 			this.setApi_version(Integer.parseInt((String)params.get("api_version")));
 		}
+		if (params.containsKey("metrics")) {
+			this.setMetrics((WorkbooksMetrics) params.get("metrics"));
+		}
+		if (params.containsKey("background_executor")) {
+			this.background_executor = (ScheduledExecutorService) params.get("background_executor");
+		}
+		if (params.containsKey("metadata_cache") && (Boolean) params.get("metadata_cache")) {
+			long ttl = WorkbooksMetadataCache.DEFAULT_TTL;
+			long max_stale = WorkbooksMetadataCache.DEFAULT_MAX_STALE;
+			int max_entries = WorkbooksMetadataCache.DEFAULT_MAX_ENTRIES;
+			File file = null;
+			if (params.containsKey("metadata_cache_ttl")) {
+				ttl = Long.parseLong(params.get("metadata_cache_ttl").toString()) * 1000;
+			}
+			if (params.containsKey("metadata_cache_max_stale")) {
+				max_stale = Long.parseLong(params.get("metadata_cache_max_stale").toString()) * 1000;
+			}
+			if (params.containsKey("metadata_cache_size")) {
+				max_entries = Integer.parseInt(params.get("metadata_cache_size").toString());
+			}
+			if (params.containsKey("metadata_cache_file")) {
+				file = new File(params.get("metadata_cache_file").toString());
+			}
+			this.setMetadata_cache(new WorkbooksMetadataCache(new WorkbooksMetadataCache.Loader() {
+				public JsonArray load(String scope, String[] class_names, String[] columns) throws Exception {
+					if (!scope.equals(metadataScope())) {
+						throw new Exception("Metadata for " + scope + " cannot be fetched after connecting to " + metadataScope());
+					}
+					return fetchMetadata(class_names, columns);
+				}
+			}, this.getBackgroundExecutor(), ttl, max_stale, max_entries, file));
+		}
+		if (params.containsKey("session_cache_file")) {
+			long max_age = WorkbooksSessionCache.DEFAULT_MAX_AGE;
+			if (params.containsKey("session_cache_max_age")) {
+				max_age = Long.parseLong(params.get("session_cache_max_age").toString()) * 1000;
+			}
+			this.setSession_cache(new WorkbooksSessionCache(new File(params.get("session_cache_file").toString()), max_age));
+		}
+		if (params.containsKey("identity_map_size")) {
+			this.setIdentity_map(new WorkbooksIdentityMap(Integer.parseInt(params.get("identity_map_size").toString())));
+		}
+		if (params.containsKey("retry_max_attempts") || params.containsKey("retry_base_delay") || params.containsKey("retry_max_delay")
+				|| params.containsKey("retry_after_max") || params.containsKey("retry_statuses") || params.containsKey("retry_exception_types")) {
+			int max_attempts = WorkbooksRetryPolicy.DEFAULT_MAX_ATTEMPTS;
+			long base_delay = WorkbooksRetryPolicy.DEFAULT_BASE_DELAY;
+			long max_delay = WorkbooksRetryPolicy.DEFAULT_MAX_DELAY;
+			long max_retry_after = WorkbooksRetryPolicy.DEFAULT_MAX_RETRY_AFTER;
+			if (params.containsKey("retry_max_attempts")) {
+				max_attempts = Integer.parseInt(params.get("retry_max_attempts").toString());
+			}
+			if (params.containsKey("retry_base_delay")) {
+				base_delay = Long.parseLong(params.get("retry_base_delay").toString());
+			}
+			if (params.containsKey("retry_max_delay")) {
+				max_delay = Long.parseLong(params.get("retry_max_delay").toString());
+			}
+			if (params.containsKey("retry_after_max")) {
+				max_retry_after = Long.parseLong(params.get("retry_after_max").toString()) * 1000;
+			}
+			this.setRetry_policy(new WorkbooksRetryPolicy(max_attempts, base_delay, max_delay, max_retry_after,
+					(Collection<Integer>) params.get("retry_statuses"), (Collection<String>) params.get("retry_exception_types")));
+		}
+		if (params.containsKey("adaptive_concurrency") && (Boolean) params.get("adaptive_concurrency")) {
+			int initial_limit = WorkbooksConcurrencyLimiter.DEFAULT_INITIAL_LIMIT;
+			int min_limit = WorkbooksConcurrencyLimiter.DEFAULT_MIN_LIMIT;
+			int max_limit = WorkbooksConcurrencyLimiter.DEFAULT_MAX_LIMIT;
+			if (params.containsKey("concurrency_initial_limit")) {
+				initial_limit = Integer.parseInt(params.get("concurrency_initial_limit").toString());
+			}
+			if (params.containsKey("concurrency_min_limit")) {
+				min_limit = Integer.parseInt(params.get("concurrency_min_limit").toString());
+			}
+			if (params.containsKey("concurrency_max_limit")) {
+				max_limit = Integer.parseInt(params.get("concurrency_max_limit").toString());
+			}
+			this.setConcurrency_limiter(new WorkbooksConcurrencyLimiter(initial_limit, min_limit, max_limit,
+					WorkbooksConcurrencyLimiter.DEFAULT_BACKOFF_RATIO, WorkbooksConcurrencyLimiter.DEFAULT_LATENCY_TOLERANCE));
+		}
+		if (params.containsKey("rate_limit")) {
+			double rate = Double.parseDouble(params.get("rate_limit").toString());
+			int burst = (int) Math.max(1, Math.ceil(rate));
+			long max_wait = 30000;
+			String key = null; // unless given, the limit applies to this object alone
+			if (params.containsKey("rate_limit_burst")) {
+				burst = Integer.parseInt(params.get("rate_limit_burst").toString());
+			}
+			if (params.containsKey("rate_limit_wait")) {
+				max_wait = Long.parseLong(params.get("rate_limit_wait").toString()) * 1000;
+			}
+			if (params.containsKey("rate_limit_key")) {
+				key = params.get("rate_limit_key").toString();
+			}
+			this.setRate_limiter(new WorkbooksRateLimiter(key, rate, burst, (Map<String, Object>) params.get("rate_limits"), max_wait));
+		}
+		if (params.containsKey("circuit_breaker") && (Boolean) params.get("circuit_breaker")) {
+			int failure_rate = WorkbooksCircuitBreaker.DEFAULT_FAILURE_RATE;
+			int slow_call_rate = WorkbooksCircuitBreaker.DEFAULT_SLOW_CALL_RATE;
+			long slow_call_duration = WorkbooksCircuitBreaker.DEFAULT_SLOW_CALL_DURATION;
+			int window = WorkbooksCircuitBreaker.DEFAULT_WINDOW;
+			int minimum_calls = WorkbooksCircuitBreaker.DEFAULT_MINIMUM_CALLS;
+			long open_duration = WorkbooksCircuitBreaker.DEFAULT_OPEN_DURATION;
+			int half_open_calls = WorkbooksCircuitBreaker.DEFAULT_HALF_OPEN_CALLS;
+			if (params.containsKey("circuit_failure_rate")) {
+				failure_rate = Integer.parseInt(params.get("circuit_failure_rate").toString());
+			}
+			if (params.containsKey("circuit_slow_call_rate")) {
+				slow_call_rate = Integer.parseInt(params.get("circuit_slow_call_rate").toString());
+			}
+			if (params.containsKey("circuit_slow_call_duration")) {
+				slow_call_duration = Long.parseLong(params.get("circuit_slow_call_duration").toString()) * 1000;
+			}
+			if (params.containsKey("circuit_window")) {
+				window = Integer.parseInt(params.get("circuit_window").toString());
+			}
+			if (params.containsKey("circuit_minimum_calls")) {
+				minimum_calls = Integer.parseInt(params.get("circuit_minimum_calls").toString());
+			}
+			if (params.containsKey("circuit_open_duration")) {
+				open_duration = Long.parseLong(params.get("circuit_open_duration").toString()) * 1000;
+			}
+			if (params.containsKey("circuit_half_open_calls")) {
+				half_open_calls = Integer.parseInt(params.get("circuit_half_open_calls").toString());
+			}
+			this.setCircuit_breaker(new WorkbooksCircuitBreaker(failure_rate, slow_call_rate, slow_call_duration, window, minimum_calls, open_duration,
+					half_open_calls));
+		}
+		if (params.containsKey("auto_content_type")) {
+			this.setAuto_content_type((Boolean) params.get("auto_content_type"));
+		}
+		if (params.containsKey("json_codec")) {
+			this.setJson_codec((WorkbooksJsonCodec) params.get("json_codec"));
+		}
+		if (params.containsKey("max_url_length")) {
+			this.setMax_url_length(Integer.parseInt(params.get("max_url_length").toString()));
+		}
+		if (params.containsKey("http2")) {
+			this.setHttp2((Boolean) params.get("http2"));
+		}
+		if (params.containsKey("http2_max_streams")) {
+			this.setHttp2_max_streams(Integer.parseInt(params.get("http2_max_streams").toString()));
+		}
+		if (params.containsKey("tls")) {
+			this.setTls((WorkbooksTls) params.get("tls"));
+		}
+		if (params.containsKey("transport")) {
+			this.setTransport((WorkbooksTransport) params.get("transport"));
+		}
+		if (params.containsKey("prewarm_connections")) {
+			this.setPrewarm_connections(Integer.parseInt(params.get("prewarm_connections").toString()));
+		}
+		if (params.containsKey("keep_alive_interval")) {
+			this.setKeep_alive_interval(Long.parseLong(params.get("keep_alive_interval").toString()) * 1000);
+		}
+		if (params.containsKey("hedge_gets") || params.containsKey("hedge_percentile") || params.containsKey("hedge_budget")) {
+			int percentile = WorkbooksHedging.DEFAULT_PERCENTILE;
+			int budget = WorkbooksHedging.DEFAULT_BUDGET;
+			if (params.containsKey("hedge_percentile")) {
+				percentile = Integer.parseInt(params.get("hedge_percentile").toString());
+			}
+			if (params.containsKey("hedge_budget")) {
+				budget = Integer.parseInt(params.get("hedge_budget").toString());
+			}
+			this.setHedging(new WorkbooksHedging(percentile, budget));
+			if (params.containsKey("hedge_gets")) {
+				this.setHedge_gets((Boolean) params.get("hedge_gets"));
+			}
+		}
+		if (params.containsKey("auto_relogin")) {
+			this.setAuto_relogin((Boolean) params.get("auto_relogin"));
+		}
+		if (params.containsKey("single_flight")) {
+			this.setSingle_flight((Boolean) params.get("single_flight"));
+		}
+		if (params.containsKey("response_cache_size")) {
+			long ttl = 0;
+			long stale = 60000;
+			if (params.containsKey("response_cache_ttl")) {
+				ttl = Long.parseLong(params.get("response_cache_ttl").toString()) * 1000;
+			}
+			if (params.containsKey("response_cache_stale")) {
+				stale = Long.parseLong(params.get("response_cache_stale").toString()) * 1000;
+			}
+			this.setResponse_cache(new WorkbooksResponseCache(Long.parseLong(params.get("response_cache_size").toString()), ttl, stale,
+					(Map<String, Object>) params.get("response_cache_ttls")));
+		}
+		if (this.getPrewarm_connections() > 0 || this.getKeep_alive_interval() > 0) {
+			this.startKeepAlive();
+		}
 	}
+
 	/**
-	 * Get the session cookie
+	 * The executor used for background work such as cache refreshes. Its threads are daemons so they do not
+	 * prevent a script from exiting.
 	 * 
-	 * @return String - the session cookie
+	 * @return ScheduledExecutorService - created on first use
 	 */
-	public String getSessionCookie() {
-		String session_cookie = null;
-		if (this.session_id != null) {
-			session_cookie = WorkbooksApi.SESSION_COOKIE + "=" +  this.session_id;
+	protected synchronized ScheduledExecutorService getBackgroundExecutor() {
+		if (background_executor == null) {
+			ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(2, new ThreadFactory() {
+				public Thread newThread(Runnable runnable) {
+					Thread thread = new Thread(runnable, "workbooks-api-background");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+			executor.setRemoveOnCancelPolicy(true); // Request deadlines are cancelled far more often than they fire
+			background_executor = executor;
+			own_background_executor = true;
 		}
-		return session_cookie;
-	}
-
-	
-	public void log(String msg) {
-		log(msg, null);
-	}
-	
-	public void log(String msg, Object[] messageObjects) {
-		log(msg, messageObjects, "debug", DEFAULT_LOG_LIMIT);
+		return background_executor;
 	}
 
-	public void log(String msg, Object[] messageObjects, String level) {
-		log(msg, messageObjects, level, DEFAULT_LOG_LIMIT);
+	/**
+	 * Open connections to the service ahead of time, so that the first requests do not wait for DNS, TCP and TLS. The connections
+	 * are opened at the same time, each with a HEAD request for the service's home page, and are then left in the JVM's keep-alive
+	 * cache for requests to use. The JVM keeps at most 'http.maxConnections' (by default 5) idle connections to each host.
+	 * 
+	 * @param connections - how many connections to open
+	 * @return int - how many were opened successfully
+	 */
+	public int warmUp(int connections) {
+		final CountDownLatch start = new CountDownLatch(1);
+		ArrayList<Future<Boolean>> pings = new ArrayList<Future<Boolean>>();
+		for (int i = 0; i < connections; i++) {
+			pings.add(this.getRequest_executor().submit(new Callable<Boolean>() {
+				public Boolean call() throws Exception {
+					start.await(); // Open the connections together, so that none can reuse another's
+					return ping();
+				}
+			}));
+		}
+		start.countDown();
+		int opened = 0;
+		for (Future<Boolean> ping : pings) {
+			try {
+				opened += ping.get() ? 1 : 0;
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				break;
+			} catch (ExecutionException e) {
+				// Counted as not opened
+			}
+		}
+		this.getMetrics().add("connections_warmed", opened);
+		return opened;
 	}
 
 	/**
-	 * Call the logger function, if any.
+	 * Send a HEAD request for the service's home page, leaving the connection in the JVM's keep-alive cache.
 	 * 
-	 * @param String
-	 *          msg a string to be logged
-	 * @param Objects
-	 *          any object values to output with the message
-	 * @param String
-	 *          level optional: one of 'error', 'warning', 'notice', 'info', 'debug' (the default), or 'output'
-	 * @param Integer
-	 *          log_size_limit the maximum size msg that will be logged. Logs the first and last parts of longer msgs and indicates the number of bytes that have
-	 *          not been logged.
-	 */	
-	public void log(String msg, Object[] messageObjects, String level, int log_size_limit ) {
-		msg += " «";
-		if (messageObjects != null) {
-			for (int i = 0; i < messageObjects.length; i++) {
-				msg += "{" + i + "}, ";
+	 * @return boolean - true if the service responded
+	 */
+	protected boolean ping() {
+		WorkbooksRateLimiter rate_limiter = this.getRate_limiter();
+		if (rate_limiter != null) {
+			try {
+				if (rate_limiter.acquire("/") < 0) {
+					return false; // A ping is not worth a request which the rate limit leaves for other calls
+				}
+			} catch (InterruptedException ie) {
+				Thread.currentThread().interrupt();
+				return false;
 			}
 		}
-		msg += "»";
-		
-		int msg_size = msg.length();
-
-		if (msg_size > log_size_limit) {
-			// Apply a hard limit to limit the load on the Workbooks service.
-			log_size_limit = log_size_limit > HARD_LOG_LIMIT ? HARD_LOG_LIMIT : log_size_limit;
-			msg = msg.substring(0, log_size_limit / 2) + "... (" + (msg_size - log_size_limit) + " bytes) ..." + msg.substring(msg_size - log_size_limit / 2);
+		WorkbooksCircuitBreaker breaker = this.getCircuit_breaker();
+		if (breaker != null && !breaker.tryAcquire()) {
+			return false;
 		}
-		
-		// According to the level passed in, log the level for the logger
-		if (level.equals("debug")) {			
-			logger.log(Level.INFO, msg, messageObjects);
-		} else if (level.equals("warning")) {
-			logger.log(Level.WARNING, msg, messageObjects);
-		} else if (level.equals("error")) {
-			logger.log(Level.SEVERE, msg, messageObjects);
-		} else {
-			logger.log(Level.FINE, msg, messageObjects);
+		long start_time = System.currentTimeMillis();
+		WorkbooksConcurrencyLimiter.Outcome outcome = WorkbooksConcurrencyLimiter.Outcome.IGNORE;
+		HttpURLConnection connection = null;
+		try {
+			connection = (HttpURLConnection) createHttpConnectionObject(this.getUrl("/", null), "HEAD", "", FORM_URL_ENCODED);
+			connection.setConnectTimeout(this.getConnect_timeout() * 1000);
+			connection.setReadTimeout(this.getConnect_timeout() * 1000);
+			int status = connection.getResponseCode();
+			InputStream body = status < 400 ? connection.getInputStream() : connection.getErrorStream();
+			if (body != null) {
+				body.close(); // Returns the connection to the keep-alive cache
+			}
+			outcome = status == 429 || status >= 500 ? WorkbooksConcurrencyLimiter.Outcome.OVERLOAD : WorkbooksConcurrencyLimiter.Outcome.SUCCESS;
+			return true;
+		} catch (Exception e) {
+			if (connection != null) {
+				connection.disconnect();
+			}
+			if (e instanceof IOException) {
+				outcome = WorkbooksConcurrencyLimiter.Outcome.OVERLOAD;
+			}
+			this.log("Unable to open a connection to the service", new Object[] {e.getMessage()}, "warning", DEFAULT_LOG_LIMIT);
+			return false;
+		} finally {
+			if (breaker != null) {
+				breaker.record(outcome, System.currentTimeMillis() - start_time);
+			}
 		}
 	}
 
-	/*
-	 * Extract ids and lock_versions from the 'affected_objects' of the response and return them as an Array of Arrays. 
-	 * @param response -  a response from the service API. 
-	 * @return Array - a set of id and lock_version values, one per affected object.
+	/**
+	 * Open 'prewarm_connections' connections in the background, and if 'keep_alive_interval' is set, open them again whenever
+	 * no request has been sent for that long, so that the JVM and the service do not close them as idle.
 	 */
-	public ArrayList<HashMap<String, Object>> idVersions(WorkbooksApiResponse response) {
-		ArrayList<HashMap<String, Object>> retval = new ArrayList<HashMap<String, Object>>();
-
-		JsonArray affected_objects = response.getAffectedObjects();
+	protected synchronized void startKeepAlive() {
+		final int connections = Math.max(1, this.getPrewarm_connections());
+		if (this.getPrewarm_connections() > 0) {
+			this.getRequest_executor().execute(new Runnable() {
+				public void run() {
+					warmUp(connections);
+				}
+			});
+		}
+		final long interval = this.getKeep_alive_interval();
+		if (interval > 0 && keep_alive_task == null) {
+			keep_alive_task = this.getBackgroundExecutor().scheduleWithFixedDelay(new Runnable() {
+				public void run() {
+					if (System.currentTimeMillis() - last_request_at >= interval) {
+						warmUp(connections);
+					}
+				}
+			}, interval, interval, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	/**
+	 * Stop keeping connections alive, e.g. before discarding the object: the background task otherwise keeps it in use.
+	 */
+	public synchronized void stopKeepAlive() {
+		if (keep_alive_task != null) {
+			keep_alive_task.cancel(false);
+			keep_alive_task = null;
+		}
+	}
+
+	/**
+	 * Release the object's background work before discarding it: stop keeping connections alive, and shut down the executors
+	 * which it created. Requests already in progress complete. The session is not logged out; call logout() first to end it.
+	 */
+	public synchronized void close() {
+		stopKeepAlive();
+		if (background_executor != null && own_background_executor) {
+			background_executor.shutdown(); // Pending request deadlines still fire
+			background_executor = null;
+			own_background_executor = false;
+		}
+		if (request_executor != null) {
+			request_executor.shutdown();
+			request_executor = null;
+		}
+	}
+
+	/**
+	 * The TLS configuration shared by every HTTPS connection, so that a new connection can resume the TLS session of an earlier one.
+	 * The JVM keeps connections alive separately for each socket factory, so objects which are given the same WorkbooksTls (the
+	 * 'tls' constructor option) also share their kept-alive connections.
+	 * 
+	 * @return WorkbooksTls - the 'tls' option, or created on first use from the 'ssl_context', 'tls_session_cache_size' and
+	 *         'tls_session_timeout' options
+	 * @throws IOException if no SSLContext can be created
+	 */
+	protected synchronized WorkbooksTls getTls() throws IOException {
+		if (tls == null) {
+			try {
+				if (ssl_context != null) {
+					tls = new WorkbooksTls(ssl_context, tls_session_cache_size, tls_session_timeout, this.getMetrics());
+				} else {
+					tls = new WorkbooksTls(tls_session_cache_size, tls_session_timeout, this.getMetrics());
+				}
+			} catch (GeneralSecurityException e) {
+				throw new IOException("Unable to create the SSLContext: " + e.getMessage(), e);
+			}
+		}
+		return tls;
+	}
+
+	/**
+	 * The transport for form-encoded requests when the 'http2' option is set. It is loaded by name, as it needs Java 11; if it cannot be
+	 * loaded, or the 'verify_peer' option is false (which java.net.http does not support), requests fall back to HttpURLConnection.
+	 * 
+	 * @return WorkbooksTransport - or null to use HttpURLConnection
+	 */
+	protected synchronized WorkbooksTransport getTransport() {
+		if (!http2 || transport != null || transport_unavailable) {
+			return transport;
+		}
+		transport_unavailable = true;
+		if (!this.isVerify_peer()) {
+			this.log("HTTP/2 needs verify_peer; using HTTP/1.1", null, "warning", DEFAULT_LOG_LIMIT);
+			return null;
+		}
+		try {
+			transport = newHttp2Transport(this.getTls().getContext(), this.getConnect_timeout() * 1000L, this.getHttp2_max_streams());
+			transport_unavailable = false;
+		} catch (Exception e) {
+			this.log("HTTP/2 is not available; using HTTP/1.1", new Object[] {e.toString()}, "warning", DEFAULT_LOG_LIMIT);
+		} catch (LinkageError e) {
+			this.log("HTTP/2 needs Java 11 or later; using HTTP/1.1", new Object[] {e.toString()}, "warning", DEFAULT_LOG_LIMIT);
+		}
+		return transport;
+	}
+
+	/**
+	 * Create a WorkbooksHttp2Transport, which is loaded by name as it needs Java 11.
+	 * 
+	 * @param context - the SSLContext of its connections
+	 * @param connect_timeout - in milliseconds
+	 * @param max_streams - the most requests in progress at once
+	 * @throws Exception - if it cannot be created
+	 * @throws LinkageError - before Java 11
+	 */
+	protected static WorkbooksTransport newHttp2Transport(SSLContext context, long connect_timeout, int max_streams) throws Exception {
+		return (WorkbooksTransport) Class.forName("workbooks_app.client_lib.java.WorkbooksHttp2Transport")
+				.getConstructor(SSLContext.class, long.class, int.class, boolean.class)
+				.newInstance(context, connect_timeout, max_streams, true);
+	}
+
+	/**
+	 * The executor used to run the requests of a hedged GET, and those made with apiCallAsync() etc. Its threads are daemons and are
+	 * discarded when idle.
+	 * 
+	 * @return ExecutorService - created on first use
+	 */
+	protected synchronized ExecutorService getRequest_executor() {
+		if (request_executor == null) {
+			request_executor = Executors.newCachedThreadPool(new ThreadFactory() {
+				public Thread newThread(Runnable runnable) {
+					Thread thread = new Thread(runnable, "workbooks-api-request");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+		}
+		return request_executor;
+	}
+	/**
+	 * Get the session cookie
+	 * 
+	 * @return String - the session cookie
+	 */
+	public String getSessionCookie() {
+		String session_cookie = null;
+		String session_id = this.getSession_id();
+		if (session_id != null) {
+			session_cookie = WorkbooksApi.SESSION_COOKIE + "=" +  session_id;
+		}
+		return session_cookie;
+	}
+
+	/**
+	 * Publish a change to the session state, atomically.
+	 */
+	protected synchronized void publishSession(SessionState state) {
+		session.set(state);
+	}
+
+	protected SessionState getSessionState() {
+		return session.get();
+	}
+
+	/**
+	 * Take up a session id set by the service in a response, unless another thread has changed the session since the request
+	 * was made: the response to a request on an old session must not replace a newer one.
+	 */
+	protected synchronized void updateSessionCookie(SessionState request_session, String session_id) {
+		SessionState current = session.get();
+		if (current == request_session && session_id != null && !session_id.equals(current.session_id)) {
+			session.set(new SessionState(session_id, current.authenticity_token, current.login_state, current.database_instance_id,
+					current.logical_database_id, current.from_cache));
+		}
+	}
+
+	/**
+	 * Extract the value of the Workbooks session cookie from the Set-Cookie headers of a response.
+	 * 
+	 * @return String - the session id, or null if the response did not set one
+	 */
+	protected static String sessionIdFromCookies(List<String> set_cookies) {
+		if (set_cookies == null) {
+			return null;
+		}
+		String prefix = SESSION_COOKIE + "=";
+		for (String cookie : set_cookies) {
+			if (cookie != null && cookie.startsWith(prefix)) {
+				int end = cookie.indexOf(';');
+				return end < 0 ? cookie.substring(prefix.length()) : cookie.substring(prefix.length(), end);
+			}
+		}
+		return null;
+	}
+
+	
+	public void log(String msg) {
+		log(msg, null);
+	}
+	
+	public void log(String msg, Object[] messageObjects) {
+		log(msg, messageObjects, "debug", DEFAULT_LOG_LIMIT);
+	}
+
+	public void log(String msg, Object[] messageObjects, String level) {
+		log(msg, messageObjects, level, DEFAULT_LOG_LIMIT);
+	}
+
+	/**
+	 * Call the logger function, if any.
+	 * 
+	 * @param String
+	 *          msg a string to be logged
+	 * @param Objects
+	 *          any object values to output with the message
+	 * @param String
+	 *          level optional: one of 'error', 'warning', 'notice', 'info', 'debug' (the default), or 'output'
+	 * @param Integer
+	 *          log_size_limit the maximum size msg that will be logged. Logs the first and last parts of longer msgs and indicates the number of bytes that have
+	 *          not been logged.
+	 */	
+	public void log(String msg, Object[] messageObjects, String level, int log_size_limit ) {
+		Level log_level = logLevel(level);
+		if (!logger.isLoggable(log_level)) {
+			return; // Skip building a message which would be discarded
+		}
+		msg += " «";
+		if (messageObjects != null) {
+			for (int i = 0; i < messageObjects.length; i++) {
+				msg += "{" + i + "}, ";
+			}
+		}
+		msg += "»";
+		
+		int msg_size = msg.length();
+
+		if (msg_size > log_size_limit) {
+			// Apply a hard limit to limit the load on the Workbooks service.
+			log_size_limit = log_size_limit > HARD_LOG_LIMIT ? HARD_LOG_LIMIT : log_size_limit;
+			msg = msg.substring(0, log_size_limit / 2) + "... (" + (msg_size - log_size_limit) + " bytes) ..." + msg.substring(msg_size - log_size_limit / 2);
+		}
+		
+		logger.log(log_level, msg, messageObjects);
+	}
+
+	/**
+	 * @param String
+	 *          level one of the levels taken by log()
+	 * @return boolean - true if a message logged at the level would be output, e.g. to skip gathering the objects to log with it
+	 */
+	public boolean isLogging(String level) {
+		return logger.isLoggable(logLevel(level));
+	}
+
+	// The level for the logger according to the level passed in
+	private static Level logLevel(String level) {
+		if (level.equals("debug")) {
+			return Level.INFO;
+		} else if (level.equals("warning")) {
+			return Level.WARNING;
+		} else if (level.equals("error")) {
+			return Level.SEVERE;
+		} else {
+			return Level.FINE;
+		}
+	}
+
+	/*
+	 * Extract ids and lock_versions from the 'affected_objects' of the response and return them as an Array of Arrays. 
+	 * @param response -  a response from the service API. 
+	 * @return Array - a set of id and lock_version values, one per affected object.
+	 */
+	public ArrayList<HashMap<String, Object>> idVersions(WorkbooksApiResponse response) {
+		ArrayList<HashMap<String, Object>> retval = new ArrayList<HashMap<String, Object>>();
+
+		JsonArray affected_objects = response.getAffectedObjects();
 		log("Affected Objects in idVersions: ", new Object[]{affected_objects});
 		for (int i = 0; i < affected_objects.size(); i++) {
 			JsonObject affected = (JsonObject) affected_objects.get(i);
@@ -470,21 +1273,13 @@ public class WorkbooksApi {
 
 	/** Method to decode the response String in Json
 	 * @param response - response string
-	 * @return - JsonObject
+	 * @return - JsonObject, decoded by the 'json_codec' constructor option
 	 */
 	private JsonObject decodeJson(String response) {
-		if (response == null || response == "") {
+		if (response == null || response.length() == 0) {
 			return null;
 		}
-		response = response.replaceAll("\"", "\\\"");
-
-		// Create JsonReader from Json.
-		JsonReader reader = Json.createReader(new StringReader(response));
-		// Get the JsonObject structure from JsonReader.
-		JsonObject responseObject = reader.readObject();
-		// We are done with the reader, let's close it.
-		reader.close();
-		return responseObject;
+		return this.getJson_codec().decode(response);
 	}
 
   /**
@@ -505,10 +1300,46 @@ public class WorkbooksApi {
    *   key. Repeat the login() call, passing in a logical_database_id: you might use the 'default_database_id' value which 
    *   was returned in the previous login attempt.
    * Otherwise the login has failed outright: see the Workbooks API documentation for a list of the possible http statuses.
+   *
+   * If the session cache is enabled (the 'session_cache_file' constructor option) and a session saved by an earlier login with the same
+   *   credentials (including the password) is found there, it is used without a request to the service; the returned HashMap then includes 'session_cache' set
+   *   to true.
+   *
+   * The params are kept so that, should the service later reject the session (e.g. once it has expired), a login can be made again with
+   *   them and the rejected request repeated. See the 'auto_relogin' constructor option.
   **/
 	public HashMap<String, Object> login(HashMap<String, Object> params) throws Exception {
-		HashMap<String, Object> retval = null;
+		return this.login(params, true);
+	}
 
+	/**
+	 * As login(), optionally bypassing the session cache.
+	 */
+	protected HashMap<String, Object> login(HashMap<String, Object> caller_params, boolean use_session_cache) throws Exception {
+		HashMap<String, Object> retval = null;
+		HashMap<String, Object> params = new HashMap<String, Object>(caller_params);
+		this.login_params = new HashMap<String, Object>(caller_params);
+
+		if (this.getSession_cache() != null && !params.containsKey("session_id")) {
+			String username = params.containsKey("username") ? (String) params.get("username") : this.getUsername();
+			String api_key = params.containsKey("api_key") ? (String) params.get("api_key") : this.getApi_key();
+			String password = (String) params.get("password");
+			String logical_database_id = params.containsKey("logical_database_id") ? (String) params.get("logical_database_id") : this.getLogical_database_id();
+			String identity = this.getSession_cache().identity(this.getService(), username, api_key, password, logical_database_id);
+			WorkbooksSessionCache.Entry saved = use_session_cache ? this.getSession_cache().get(identity) : null;
+
+			this.session_cache_identity = identity;
+			if (saved != null) {
+				this.publishSession(new SessionState(saved.session_id, saved.authenticity_token, true, saved.database_instance_id, saved.logical_database_id, true));
+				this.log("login() reconnected to a saved session", new Object[] {saved.logical_database_id}, "info", DEFAULT_LOG_LIMIT);
+
+				retval = new HashMap<String, Object>();
+				retval.put("http_status", HTTP_STATUS_OK);
+				retval.put("failure_message", "");
+				retval.put("session_cache", true);
+				return retval;
+			}
+		}
 		// this->log('login() called with params', params);
 		if (!params.containsKey("api_key")) {
 			params.put("api_key", this.getApi_key());
@@ -552,13 +1383,24 @@ public class WorkbooksApi {
 		// The authenticity_token is valid for a specific session and is
 		// required when any modifications are attempted.
 		if (http_status == HTTP_STATUS_OK) {
-			this.setLogin_state(true);
+			SessionState current = this.getSessionState();
+			String authenticity_token = current.authenticity_token;
+			String database_instance_id = current.database_instance_id;
 			if (responseObject != null) {
-				this.setUser_queues(responseObject.getJsonObject("my_queues").toString());
-				this.setAuthenticity_token(responseObject.getString("authenticity_token"));
-				this.setDatabase_instance_id(Integer.toString(responseObject.getInt("database_instance_id")));
+				if (responseObject.get("my_queues") instanceof JsonObject) {
+					this.setUser_queues(responseObject.getJsonObject("my_queues").toString());
+				}
+				authenticity_token = responseObject.getString("authenticity_token");
+				database_instance_id = Integer.toString(responseObject.getInt("database_instance_id"));
 				this.setLogin_response(responseObject);
 			}
+			SessionState logged_in = new SessionState(current.session_id, authenticity_token, true, database_instance_id,
+					(String) params.get("logical_database_id"), false);
+			this.publishSession(logged_in);
+			if (this.getSession_cache() != null && this.session_cache_identity != null && logged_in.session_id != null) {
+				this.getSession_cache().put(this.session_cache_identity, new WorkbooksSessionCache.Entry(logged_in.session_id, logged_in.authenticity_token,
+						logged_in.database_instance_id, logged_in.logical_database_id, System.currentTimeMillis()));
+			}
 		}
 		retval = new HashMap<String, Object>();
 		retval.put("http_status", http_status);
@@ -582,9 +1424,13 @@ public class WorkbooksApi {
 
 		HashMap<String, Object> serviceResponse = this.makeRequest("logout", "POST", null, null, null);
 
-		this.setLogin_state(false); // force a login regardless of the
-		// server-side state
-		this.setAuthenticity_token(null);
+		// force a login regardless of the server-side state, and do not log in again automatically
+		this.login_params = null;
+		SessionState current = this.getSessionState();
+		this.publishSession(new SessionState(current.session_id, null, false, current.database_instance_id, current.logical_database_id, false));
+		if (this.getSession_cache() != null && this.session_cache_identity != null) {
+			this.getSession_cache().remove(this.session_cache_identity);
+		}
 
 		int http_status = (Integer) serviceResponse.get("http_status");
 		// int http_status = Integer.parseInt((String) serviceResponse.get("http_status"));
@@ -613,11 +1459,7 @@ public class WorkbooksApi {
 	 * @return String the URL for the given parameters
 	 */
 	protected String getUrl(String path, HashMap<String, Object> query_params) throws WorkbooksApiException{
-		String url = this.getService();
-		if (!path.startsWith("/")) {
-			url += "/";
-		}
-		url += path;
+		String url = this.getService() + (path.startsWith("/") ? "" : "/") + path;
 		if (query_params != null) {
 			url += "?" + build_queryString(query_params);
 		}
@@ -630,32 +1472,57 @@ public class WorkbooksApi {
 	* @return - the String in the format key=value&key=value
 	*/
 	public String build_queryString(HashMap<String, Object> data) throws WorkbooksApiException{
-		StringBuffer queryString = new StringBuffer();
-		try {
-			for (Object pair : data.keySet()) {
-				queryString.append(URLEncoder.encode(pair.toString(), CHARSET) + "=");
-				if (data.get(pair) != null) {
-				 	queryString.append(URLEncoder.encode((String) data.get(pair), CHARSET) + "&");
- 				}
-			}
-
+		StringBuilder queryString = WorkbooksBuffers.get().text();
+		for (Map.Entry<String, Object> pair : data.entrySet()) {
 			if (queryString.length() > 0) {
-				queryString.deleteCharAt(queryString.length() - 1);
+				queryString.append('&');
+			}
+			appendUrlEncoded(queryString, pair.getKey());
+			queryString.append('=');
+			if (pair.getValue() != null) {
+				appendUrlEncoded(queryString, (String) pair.getValue());
 			}
-		} catch (UnsupportedEncodingException unSupportEncodeEx) {
-			HashMap<String, Object> exceptionObj = new HashMap<String, Object>();
-			HashMap<String, Object> errorObj = new HashMap<String, Object>();
-			errorObj.put("message", "Error while encoding String: " + unSupportEncodeEx.getMessage());
-			errorObj.put("type", "UnsupportedEncodingException");
-
-			exceptionObj.put("workbooks_api", this);
-			exceptionObj.put("error", errorObj);
-			WorkbooksApiException e = new WorkbooksApiException(exceptionObj);
-			throw e;
 		}
 		return queryString.toString();
 	}
 
+	private static final char[] HEX_DIGITS = "0123456789ABCDEF".toCharArray();
+
+	/**
+	 * Append a string encoded as URLEncoder.encode(text, "UTF-8") would, without its temporary objects.
+	 */
+	private static void appendUrlEncoded(StringBuilder out, String text) {
+		for (int i = 0; i < text.length(); i++) {
+			char c = text.charAt(i);
+			if ((c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9') || c == '.' || c == '-' || c == '*' || c == '_') {
+				out.append(c);
+			} else if (c == ' ') {
+				out.append('+');
+			} else if (c < 0x80) {
+				appendEscaped(out, c);
+			} else if (c < 0x800) {
+				appendEscaped(out, 0xc0 | (c >> 6));
+				appendEscaped(out, 0x80 | (c & 0x3f));
+			} else if (Character.isHighSurrogate(c) && i + 1 < text.length() && Character.isLowSurrogate(text.charAt(i + 1))) {
+				int code_point = Character.toCodePoint(c, text.charAt(++i));
+				appendEscaped(out, 0xf0 | (code_point >> 18));
+				appendEscaped(out, 0x80 | ((code_point >> 12) & 0x3f));
+				appendEscaped(out, 0x80 | ((code_point >> 6) & 0x3f));
+				appendEscaped(out, 0x80 | (code_point & 0x3f));
+			} else if (Character.isSurrogate(c)) {
+				appendEscaped(out, '?'); // An unpaired surrogate cannot be encoded
+			} else {
+				appendEscaped(out, 0xe0 | (c >> 12));
+				appendEscaped(out, 0x80 | ((c >> 6) & 0x3f));
+				appendEscaped(out, 0x80 | (c & 0x3f));
+			}
+		}
+	}
+
+	private static void appendEscaped(StringBuilder out, int b) {
+		out.append('%').append(HEX_DIGITS[(b >> 4) & 0xf]).append(HEX_DIGITS[b & 0xf]);
+	}
+
 	/**
 	 * Builds and sends an HTTP request.
 	 * 
@@ -679,15 +1546,15 @@ public class WorkbooksApi {
 	public HashMap<String, Object> makeRequest(String endpoint, String method, HashMap<String, Object> post_params, ArrayList<Object> ordered_post_params,
 			HashMap<String, Object> options) throws WorkbooksApiException {
 
-		StringBuffer responseStr = new StringBuffer();
-		Map<String, List<String>> responseHeader = null;
+		String body = null;
+		List<String> set_cookies = null; // the Set-Cookie headers of the response
 		URLConnection connection = null;
-		String decodedString = null;
 		int status = 0;
 		final String LINE_FEED = "\r\n";
-		// ByteArrayOutputStream byteOut = null;
 		BufferedReader reader = null;
 		DataOutputStream dataOutputStream = null;
+		WorkbooksCompression.CountingInputStream wire = null; // the response as received, before decompression
+		boolean compressed = false; // true => the request body was sent compressed
 		
 //		this.log("makeRequest called with ordered post params & params", new Object[] {ordered_post_params, post_params});
 		
@@ -695,54 +1562,124 @@ public class WorkbooksApi {
 		if (options != null && options.containsKey("content_type")) {
 			content_type = (String) options.get("content_type");
 		}
-		long start_time = System.currentTimeMillis();
+		WorkbooksCancellationToken cancellation_token = options != null ? (WorkbooksCancellationToken) options.get("cancellation_token") : null;
+		WorkbooksCancellationToken.Listener disconnect = null;
+		if (cancellation_token != null && cancellation_token.isCancelled()) {
+			HashMap<String, Object> exceptionObj = new HashMap<String, Object>();
+			HashMap<String, Object> errorObj = new HashMap<String, Object>();
+			errorObj.put("message", "Request cancelled");
+			errorObj.put("type", "CancelledException");
 
-		HashMap<String, Object> url_params = new HashMap<String, Object>();
-		url_params.put("_dc", Integer.toString(Math.round(start_time * 1000))); // cache-buster
+			exceptionObj.put("workbooks_api", this);
+			exceptionObj.put("error", errorObj);
+			WorkbooksApiException e = new WorkbooksApiException(exceptionObj);
+			throw e;
+		}
+		long start_time = System.currentTimeMillis();
+		this.last_request_at = start_time;
+		long deadline = this.getRequest_timeout() > 0 ? start_time + this.getRequest_timeout() * 1000L : Long.MAX_VALUE;
+		if (options != null && options.containsKey("deadline")) {
+			deadline = (Long) options.get("deadline");
+		}
+		if (deadline <= start_time) {
+			HashMap<String, Object> exceptionObj = new HashMap<String, Object>();
+			HashMap<String, Object> errorObj = new HashMap<String, Object>();
+			errorObj.put("message", "Request deadline exceeded");
+			errorObj.put("type", "TimeoutException");
 
-		String url = this.getUrl(endpoint, url_params);
-		if (post_params == null) {
-			post_params = new HashMap<String, Object>();
+			exceptionObj.put("workbooks_api", this);
+			exceptionObj.put("error", errorObj);
+			WorkbooksApiException e = new WorkbooksApiException(exceptionObj);
+			throw e;
 		}
+		AtomicBoolean deadline_passed = new AtomicBoolean(false);
+		ScheduledFuture<?> deadline_timer = null;
+		boolean completed = false; // true => the response has been read in full, so the connection can be kept alive for reuse
+		WorkbooksMetrics metrics = this.getMetrics();
+		metrics.increment("requests");
+
+		String url = this.getUrl(endpoint, null) + "?_dc=" + Math.round(start_time * 1000); // cache-buster
+		// Leave the caller's parameters untouched
+		post_params = post_params == null ? new HashMap<String, Object>() : new HashMap<String, Object>(post_params);
+		SessionState request_session = this.getSessionState();
 
 		// post_params.put("_method", method.toUpperCase());
 		post_params.put("client", "api");
 
-		if (!method.equals("GET") && this.getAuthenticity_token() != null) {
-			post_params.put("_authenticity_token", this.getAuthenticity_token());
+		if (!method.equals("GET") && request_session.authenticity_token != null) {
+			post_params.put("_authenticity_token", request_session.authenticity_token);
 		}
 
 		String post_fields = null;
 
+		// Proxies and servers refuse very long URLs: send a GET with many parameters, e.g. a long list of columns or ids, as a POST
+		// which the service treats as a GET
+		String query = content_type != null && content_type.equals(FORM_URL_ENCODED) ? build_queryString(post_params) : null;
+		if (method.equalsIgnoreCase("GET") && query != null && url.length() + 1 + encodedLength(query, ordered_post_params) > this.getMax_url_length()) {
+			method = "POST";
+			post_params.put("_method", "GET");
+			query = build_queryString(post_params);
+			metrics.increment("gets_sent_as_post");
+		}
+
+		WorkbooksTransport transport = this.getTransport();
+		if (transport != null && content_type != null && content_type.equals(FORM_URL_ENCODED)) {
+			return this.makeTransportRequest(transport, endpoint, url, method, post_params, ordered_post_params, request_session, start_time, deadline,
+					options);
+		}
+
 		//************** content type is application/x-www-form-urlencoded *****************
 		if (content_type != null && content_type.equals(FORM_URL_ENCODED)) {
-			post_fields = build_queryString(post_params);
-			if (ordered_post_params != null) {
+			post_fields = query;
+			// A large body is compressed as it is written, without first joining its ordered parameters into one string
+			WorkbooksCompression request_compression = this.getRequest_compression();
+			compressed = request_compression != null && !method.equalsIgnoreCase("GET")
+					&& request_compression.shouldCompress(endpoint, encodedLength(post_fields, ordered_post_params));
+			if (ordered_post_params != null && !ordered_post_params.isEmpty() && !compressed) {
+				StringBuilder fields = WorkbooksBuffers.get().text().append(query);
 				for (Object object_value : ordered_post_params) {
-					post_fields += "&" + object_value.toString();
+					fields.append('&').append(object_value.toString());
 				}
+				post_fields = fields.toString();
 			}
 			try {
 				if (method.equalsIgnoreCase("GET")) {
 					url += "&" + post_fields;
 				}
 				connection = createHttpConnectionObject(url, method, post_fields, content_type);
+				disconnect = disconnectOnCancel(connection, cancellation_token);
+				deadline_timer = disconnectAtDeadline(connection, deadline, deadline_passed);
 //				this.log("post_fields", new Object[] {post_fields});
 
-				if (!method.equalsIgnoreCase("GET")) {
-					dataOutputStream = new DataOutputStream(connection.getOutputStream());
-					dataOutputStream.writeBytes(post_fields);
-					dataOutputStream.flush();
-					if (dataOutputStream != null) {
-						dataOutputStream.close();
+				if (compressed) {
+					connection.setRequestProperty("Content-Encoding", WorkbooksCompression.CONTENT_ENCODING);
+					((HttpURLConnection) connection).setChunkedStreamingMode(0); // The compressed length is not known in advance
+					WorkbooksCompression.CountingOutputStream wire_out = new WorkbooksCompression.CountingOutputStream(connection.getOutputStream());
+					dataOutputStream = new DataOutputStream(WorkbooksCompression.encode(wire_out));
+					WorkbooksBuffers buffers = WorkbooksBuffers.get();
+					buffers.writeAscii(dataOutputStream, post_fields);
+					if (ordered_post_params != null) {
+						for (Object object_value : ordered_post_params) {
+							dataOutputStream.write('&');
+							buffers.writeAscii(dataOutputStream, object_value.toString());
+						}
 					}
+					dataOutputStream.close();
+					metrics.add("request_bytes", dataOutputStream.size());
+					metrics.add("request_wire_bytes", wire_out.getCount());
+				} else if (!method.equalsIgnoreCase("GET")) {
+					OutputStream out = connection.getOutputStream();
+					WorkbooksBuffers.get().writeAscii(out, post_fields);
+					out.close();
+					metrics.add("request_bytes", post_fields.length());
+					metrics.add("request_wire_bytes", post_fields.length());
 				}
 			} catch (IOException ioEx) {
 				//this.log("Error occured while getting the I/O stream from the connection.");
 				HashMap<String, Object> exceptionObj = new HashMap<String, Object>();
   			HashMap<String, Object> errorObj = new HashMap<String, Object>();
   			errorObj.put("message", "Error occured while getting the I/O stream from the connection: " + ioEx.getMessage());
-  			errorObj.put("type", "IOException");
+  			errorObj.put("type", isPastDeadline(deadline, deadline_passed) ? "TimeoutException" : "IOException");
   
   			exceptionObj.put("workbooks_api", this);
   			exceptionObj.put("error", errorObj);
@@ -768,21 +1705,24 @@ public class WorkbooksApi {
 				}
 			}
 
-			for (Object orderedParam : ordered_post_params) {
+			for (Object orderedParam : (ordered_post_params != null ? ordered_post_params : new ArrayList<Object>())) {
 				if (orderedParam.getClass().getName().equals("java.util.HashMap")) {
 					fields.add((HashMap<String, Object>) orderedParam);
 				} else {
-					String[] keyValue = ((String) orderedParam).split("=");
+					String[] keyValue = ((String) orderedParam).split("=", 2); // The value may itself contain '='
 					HashMap<String, Object> part = new HashMap<String, Object>();
-					part.put(keyValue[0], keyValue[1]);
+					part.put(keyValue[0], keyValue.length > 1 ? keyValue[1] : "");
 					fields.add(part);
 				}
 			}
 
 			try {
-				String boundary = "-----------------------form-data-" + String.format("%08x%08x%08x", Double.doubleToLongBits(Math.random()), System.currentTimeMillis(), Double.doubleToLongBits(Math.random()));
+				String boundary = "-----------------------form-data-" + paddedHex(Double.doubleToLongBits(Math.random())) + paddedHex(System.currentTimeMillis())
+						+ paddedHex(Double.doubleToLongBits(Math.random()));
 				content_type = FORM_DATA + "; boundary=" + boundary;
 				connection = createHttpConnectionObject(url, method, fields.toString(), content_type);
+				disconnect = disconnectOnCancel(connection, cancellation_token);
+				deadline_timer = disconnectAtDeadline(connection, deadline, deadline_passed);
 				dataOutputStream = new DataOutputStream(connection.getOutputStream());
 
 				for (HashMap<String, Object> field : fields) {
@@ -859,7 +1799,7 @@ public class WorkbooksApi {
 							dataOutputStream.writeBytes("Content-Disposition: form-data; name=\"" + fieldKey + "\"");
 							dataOutputStream.writeBytes(LINE_FEED);
 							dataOutputStream.writeBytes(LINE_FEED);
-							dataOutputStream.writeBytes(fieldValue.toString());
+							dataOutputStream.write(fieldValue.toString().getBytes(CHARSET)); // writeBytes() would drop the high byte of each char
 							dataOutputStream.writeBytes(LINE_FEED);
 							dataOutputStream.flush();
 						}
@@ -868,12 +1808,14 @@ public class WorkbooksApi {
 				dataOutputStream.writeBytes("--" + boundary + "--");
 				dataOutputStream.writeBytes(LINE_FEED);
 				dataOutputStream.close();
+				metrics.add("request_bytes", dataOutputStream.size());
+				metrics.add("request_wire_bytes", dataOutputStream.size());
 
 			} catch (IOException ioEx) {
 				HashMap<String, Object> exceptionObj = new HashMap<String, Object>();
   			HashMap<String, Object> errorObj = new HashMap<String, Object>();
   			errorObj.put("message", "Error while writing to the output stream of connection: " + ioEx.getMessage());
-  			errorObj.put("type", "IOException");
+  			errorObj.put("type", isPastDeadline(deadline, deadline_passed) ? "TimeoutException" : "IOException");
   
   			exceptionObj.put("workbooks_api", this);
   			exceptionObj.put("error", errorObj);
@@ -884,14 +1826,24 @@ public class WorkbooksApi {
 
 		try {
 
-			responseHeader = connection.getHeaderFields();
-			log("Response Headers are: ", new Object[] {responseHeader});
+			if (this.isLogging("debug")) {
+				log("Response Headers are: ", new Object[] {connection.getHeaderFields()});
+			}
 
 			if (connection instanceof HttpsURLConnection) {
 				status = ((HttpsURLConnection)connection).getResponseCode();
 			} else {
 				status = ((HttpURLConnection)connection).getResponseCode();
 			}
+			set_cookies = setCookies(connection);
+			if (compressed) {
+				// Learn whether the endpoint takes compressed bodies; one which does not is sent them uncompressed from now on
+				this.getRequest_compression().setAccepted(endpoint, status != HTTP_STATUS_UNSUPPORTED_MEDIA_TYPE);
+				if (status == HTTP_STATUS_UNSUPPORTED_MEDIA_TYPE) {
+					this.log("Compressed request body refused; sending it uncompressed", new Object[] {endpoint}, "warning", DEFAULT_LOG_LIMIT);
+					return this.makeRequest(endpoint, method, post_params, ordered_post_params, options);
+				}
+			}
 			// Get the response back
 			if (status != HttpURLConnection.HTTP_OK) {
 				HashMap<String, Object> exceptionObj = new HashMap<String, Object>();
@@ -902,6 +1854,7 @@ public class WorkbooksApi {
 				exceptionObj.put("workbooks_api", this);
 				exceptionObj.put("error_code", status);
 				exceptionObj.put("error", errorObj);
+				exceptionObj.put("retry_after", WorkbooksRetryPolicy.parseRetryAfter(connection.getHeaderField("Retry-After")));
 
 				WorkbooksApiException e = new WorkbooksApiException(exceptionObj);
 				if (connection instanceof HttpsURLConnection) {
@@ -910,14 +1863,15 @@ public class WorkbooksApi {
 					((HttpURLConnection)connection).disconnect();
 				}				
 				throw e;
-			} else { // Read the input from the Response
-				BufferedReader in = new BufferedReader(new InputStreamReader(connection.getInputStream()));
-				while ((decodedString = in.readLine()) != null) {
-					responseStr.append(decodedString);
-				}
-				if (in != null) {
+			} else { // Read the input from the Response, decompressing it as it arrives
+				wire = new WorkbooksCompression.CountingInputStream(connection.getInputStream());
+				InputStream in = WorkbooksCompression.decode(wire, connection.getContentEncoding());
+				try {
+					body = WorkbooksBuffers.get().readText(in);
+				} finally {
 					in.close();
 				}
+				completed = true;
 			}
 
 		} catch (IOException ioe) {
@@ -925,24 +1879,30 @@ public class WorkbooksApi {
   			HashMap<String, Object> exceptionObj = new HashMap<String, Object>();
   			HashMap<String, Object> errorObj = new HashMap<String, Object>();
   			errorObj.put("message", "Error while getting input stream from connection: " + ioe.getMessage());
-  			errorObj.put("type", "IOException");
+  			errorObj.put("type", isPastDeadline(deadline, deadline_passed) ? "TimeoutException" : "IOException");
   
   			exceptionObj.put("workbooks_api", this);
   			exceptionObj.put("error", errorObj);
   			WorkbooksApiException e = new WorkbooksApiException(exceptionObj);
   			throw e;
 		} finally {
-			if (connection != null) {
+			// A connection whose response has been read is returned to the JVM's keep-alive cache, which is shared by all
+			// WorkbooksApi objects; only close one which has failed.
+			if (connection != null && !completed) {
+				metrics.increment("request_errors");
 				if (connection instanceof HttpsURLConnection) {
 					((HttpsURLConnection)connection).disconnect();
 				} else {
 					((HttpURLConnection)connection).disconnect();
 				}				
 			}
+			if (disconnect != null) {
+				cancellation_token.removeListener(disconnect);
+			}
+			if (deadline_timer != null) {
+				deadline_timer.cancel(false);
+			}
 		}
-		decodedString = responseStr.toString();
-
-		String body = decodedString;
 //		log("Body:", new Object[] {body},"debug", 1000000);
 
 		if (status == 0) {
@@ -950,7 +1910,7 @@ public class WorkbooksApi {
 			HashMap<String, Object> errorObj = new HashMap<String, Object>();
 			errorObj.put("message", "HTTP status not found: bad request?");
 			errorObj.put("type", "BadRequest");
-			errorObj.put("response", responseHeader);
+			errorObj.put("response", connection.getHeaderFields());
 
 			exceptionObj.put("workbooks_api", this);
 			exceptionObj.put("error_code", 0);
@@ -959,13 +1919,16 @@ public class WorkbooksApi {
 			WorkbooksApiException e = new WorkbooksApiException(exceptionObj);
 			throw e;
 		}
-		if (responseHeader != null && responseHeader.get("Set-Cookie") != null) {
-			String cookieFromHeader = responseHeader.get("Set-Cookie").toString();
-			this.setSession_id(cookieFromHeader);
-		}
+		this.updateSessionCookie(request_session, sessionIdFromCookies(set_cookies));
 		long endtime = System.currentTimeMillis();
 		this.setLast_request_duration(endtime - start_time);
-		log("Time taken for request: ", new Object[] {this.getLast_request_duration()});
+		metrics.record("request_time", endtime - start_time);
+		metrics.add("response_bytes", body.length());
+		metrics.add("response_wire_bytes", wire.getCount());
+		if (this.isLogging("debug")) {
+			log("Time taken for request: ", new Object[] {this.getLast_request_duration()});
+			log("Response bytes received and decompressed: ", new Object[] {wire.getCount(), body.length()});
+		}
 
 		HashMap<String, Object> retval = new HashMap<String, Object>();
 		retval.put("http_status", status);
@@ -975,36 +1938,265 @@ public class WorkbooksApi {
 	}
 
 	
-	/** Creates a HttpsURLConnection using the url and other parameters passed
-	 * @param url - the url to connect
-	 * @param method - GET/POST
-	 * @param post_fields - fields to be sent to connection
-	 * @param content_type - content-type 
-	 * @return - HttpsURLConnection - the connection to the url provided with the request paramters set
-	 * @throws IOException
+	/**
+	 * Arrange for a connection to be closed if the request is cancelled, releasing a thread blocked reading or writing it.
+	 * 
+	 * @return WorkbooksCancellationToken.Listener - to remove from the token once the request is complete, or null if there is no token
 	 */
-	public URLConnection createHttpConnectionObject(String url, String method, String post_fields, String content_type) throws IOException {
+	private WorkbooksCancellationToken.Listener disconnectOnCancel(final URLConnection connection, WorkbooksCancellationToken cancellation_token) {
+		if (cancellation_token == null) {
+			return null;
+		}
+		WorkbooksCancellationToken.Listener disconnect = new WorkbooksCancellationToken.Listener() {
+			public void cancelled() {
+				((HttpURLConnection) connection).disconnect();
+			}
+		};
+		cancellation_token.addListener(disconnect);
+		return disconnect;
+	}
+
+	/**
+	 * @return List - the values of the Set-Cookie headers of a response, or null if it has none; read without copying all of its headers
+	 */
+	private static List<String> setCookies(URLConnection connection) {
+		List<String> set_cookies = null;
+		String value;
+		for (int i = 0; (value = connection.getHeaderField(i)) != null; i++) {
+			if ("Set-Cookie".equalsIgnoreCase(connection.getHeaderFieldKey(i))) {
+				if (set_cookies == null) {
+					set_cookies = new ArrayList<String>(1);
+				}
+				set_cookies.add(value);
+			}
+		}
+		return set_cookies;
+	}
+
+	/**
+	 * @return String - a number in hexadecimal of at least 8 digits, as formatted by '%08x'
+	 */
+	private static String paddedHex(long value) {
+		String hex = Long.toHexString(value);
+		return hex.length() >= 8 ? hex : "00000000".substring(hex.length()) + hex;
+	}
+
+	/**
+	 * Send a form-encoded request prepared by makeRequest() with a WorkbooksTransport, e.g. over HTTP/2, in place of HttpURLConnection.
+	 * A large body is compressed and the response is logged just as they are by makeRequest().
+	 * 
+	 * @return HashMap (Integer the http status, String the response text)
+	 * @throws WorkbooksApiException
+	 */
+	protected HashMap<String, Object> makeTransportRequest(WorkbooksTransport transport, String endpoint, String url, String method,
+			HashMap<String, Object> post_params, ArrayList<Object> ordered_post_params, SessionState request_session, long start_time, long deadline,
+			HashMap<String, Object> options) throws WorkbooksApiException {
+		WorkbooksMetrics metrics = this.getMetrics();
+		WorkbooksCancellationToken cancellation_token = options != null ? (WorkbooksCancellationToken) options.get("cancellation_token") : null;
+		StringBuilder post_fields = new StringBuilder(build_queryString(post_params));
+		if (ordered_post_params != null) {
+			for (Object object_value : ordered_post_params) {
+				post_fields.append('&').append(object_value.toString());
+			}
+		}
 
+		HashMap<String, String> headers = new HashMap<String, String>();
+		headers.put("User-Agent", this.getUser_agent());
+		headers.put("Content-Type", FORM_URL_ENCODED);
+		headers.put("Charset", CHARSET);
+		if (this.isCompression()) {
+			headers.put("Accept-Encoding", WorkbooksCompression.ACCEPT_ENCODING);
+		}
 		String cookie = this.getSessionCookie();
-	//	HttpURLConnection connection = null;
-		URLConnection connection = null;
-		URL urlRequest = null;
+		if (cookie != null) {
+			headers.put("Cookie", cookie);
+		}
 
-		log("Url to connect: ", new Object[] {url});
-		urlRequest = URI.create(url).toURL();
-		
+		byte[] body = null;
+		boolean compressed = false; // true => the request body is sent compressed
+		if (method.equalsIgnoreCase("GET")) {
+			url += "&" + post_fields;
+		} else {
+			try {
+				body = post_fields.toString().getBytes(CHARSET);
+				metrics.add("request_bytes", body.length);
+				WorkbooksCompression request_compression = this.getRequest_compression();
+				if (request_compression != null && request_compression.shouldCompress(endpoint, body.length)) {
+					ByteArrayOutputStream wire_out = new ByteArrayOutputStream(body.length / 4);
+					OutputStream out = WorkbooksCompression.encode(wire_out);
+					out.write(body);
+					out.close();
+					body = wire_out.toByteArray();
+					headers.put("Content-Encoding", WorkbooksCompression.CONTENT_ENCODING);
+					compressed = true;
+				}
+				metrics.add("request_wire_bytes", body.length);
+			} catch (IOException ioEx) {
+				HashMap<String, Object> exceptionObj = new HashMap<String, Object>();
+				HashMap<String, Object> errorObj = new HashMap<String, Object>();
+				errorObj.put("message", "Error while encoding the request: " + ioEx.getMessage());
+				errorObj.put("type", "IOException");
+
+				exceptionObj.put("workbooks_api", this);
+				exceptionObj.put("error", errorObj);
+				WorkbooksApiException e = new WorkbooksApiException(exceptionObj);
+				throw e;
+			}
+		}
+		if (this.isLogging("debug")) {
+			log("Url to connect: ", new Object[] {url});
+		}
+
+		WorkbooksTransport.Response response;
+		try {
+			response = transport.send(url, method, headers, body, deadline == Long.MAX_VALUE ? 0 : Math.max(1, deadline - System.currentTimeMillis()),
+					cancellation_token);
+		} catch (IOException ioe) {
+			metrics.increment("request_errors");
+			HashMap<String, Object> exceptionObj = new HashMap<String, Object>();
+			HashMap<String, Object> errorObj = new HashMap<String, Object>();
+			errorObj.put("message", "Error while sending the request: " + ioe.getMessage());
+			errorObj.put("type", System.currentTimeMillis() >= deadline ? "TimeoutException" : "IOException");
+
+			exceptionObj.put("workbooks_api", this);
+			exceptionObj.put("error", errorObj);
+			WorkbooksApiException e = new WorkbooksApiException(exceptionObj);
+			throw e;
+		} catch (InterruptedException ie) {
+			Thread.currentThread().interrupt();
+			metrics.increment("request_errors");
+			HashMap<String, Object> exceptionObj = new HashMap<String, Object>();
+			HashMap<String, Object> errorObj = new HashMap<String, Object>();
+			errorObj.put("message", "Interrupted while waiting for the response");
+			errorObj.put("type", "InterruptedException");
+
+			exceptionObj.put("workbooks_api", this);
+			exceptionObj.put("error", errorObj);
+			WorkbooksApiException e = new WorkbooksApiException(exceptionObj);
+			throw e;
+		}
+		if (this.isLogging("debug")) {
+			log("Response Headers are: ", new Object[] {response.headers});
+		}
+		metrics.increment(response.protocol.equals("HTTP/2") ? "http2_responses" : "http1_responses");
+		if (compressed) {
+			// Learn whether the endpoint takes compressed bodies; one which does not is sent them uncompressed from now on
+			this.getRequest_compression().setAccepted(endpoint, response.status != HTTP_STATUS_UNSUPPORTED_MEDIA_TYPE);
+			if (response.status == HTTP_STATUS_UNSUPPORTED_MEDIA_TYPE) {
+				this.log("Compressed request body refused; sending it uncompressed", new Object[] {endpoint}, "warning", DEFAULT_LOG_LIMIT);
+				return this.makeTransportRequest(transport, endpoint, url, method, post_params, ordered_post_params, request_session, start_time,
+						deadline, options);
+			}
+		}
+
+		if (response.status != HttpURLConnection.HTTP_OK) {
+			metrics.increment("request_errors");
+			HashMap<String, Object> exceptionObj = new HashMap<String, Object>();
+			HashMap<String, Object> errorObj = new HashMap<String, Object>();
+			errorObj.put("message", "HTTP status not found: bad request?");
+			errorObj.put("type", "ConnectionException");
+
+			exceptionObj.put("workbooks_api", this);
+			exceptionObj.put("error_code", response.status);
+			exceptionObj.put("error", errorObj);
+			exceptionObj.put("retry_after", WorkbooksRetryPolicy.parseRetryAfter(response.getHeader("Retry-After")));
+
+			WorkbooksApiException e = new WorkbooksApiException(exceptionObj);
+			throw e;
+		}
+		for (Map.Entry<String, List<String>> header : response.headers.entrySet()) {
+			if ("Set-Cookie".equalsIgnoreCase(header.getKey())) {
+				this.updateSessionCookie(request_session, sessionIdFromCookies(header.getValue()));
+			}
+		}
+		long endtime = System.currentTimeMillis();
+		this.setLast_request_duration(endtime - start_time);
+		metrics.record("request_time", endtime - start_time);
+		metrics.add("response_bytes", response.body.length());
+		metrics.add("response_wire_bytes", response.wire_bytes);
+		if (this.isLogging("debug")) {
+			log("Time taken for request: ", new Object[] {this.getLast_request_duration()});
+			log("Response bytes received and decompressed: ", new Object[] {response.wire_bytes, response.body.length()});
+		}
+
+		HashMap<String, Object> retval = new HashMap<String, Object>();
+		retval.put("http_status", response.status);
+		retval.put("http_body", response.body);
+
+		return retval;
+	}
+
+	/**
+	 * @return long - the length of a form-encoded request body made of the given fields and ordered parameters
+	 */
+	private static long encodedLength(String post_fields, ArrayList<Object> ordered_post_params) {
+		long length = post_fields.length();
+		if (ordered_post_params != null) {
+			for (Object object_value : ordered_post_params) {
+				length += 1 + object_value.toString().length();
+			}
+		}
+		return length;
+	}
+
+	/**
+	 * Apply a request's deadline to a connection. The connect timeout (the 'connect_timeout' constructor option) and read timeout are
+	 * cut to the time remaining, and since a response which trickles in can outlast any read timeout, the connection is closed
+	 * when the deadline passes.
+	 * 
+	 * @return ScheduledFuture - to cancel once the request is complete
+	 */
+	private ScheduledFuture<?> disconnectAtDeadline(final URLConnection connection, long deadline, final AtomicBoolean deadline_passed) {
+		long connect_timeout = this.getConnect_timeout() * 1000L;
+		if (deadline == Long.MAX_VALUE) {
+			connection.setConnectTimeout((int) Math.min(Integer.MAX_VALUE, Math.max(0, connect_timeout)));
+			return null; // No deadline: wait for the response as long as it takes
+		}
+		long remaining = Math.max(1, deadline - System.currentTimeMillis());
+		connection.setConnectTimeout((int) Math.min(Integer.MAX_VALUE, connect_timeout > 0 ? Math.min(connect_timeout, remaining) : remaining));
+		connection.setReadTimeout((int) Math.min(Integer.MAX_VALUE, remaining));
+		return this.getBackgroundExecutor().schedule(new Runnable() {
+			public void run() {
+				deadline_passed.set(true);
+				((HttpURLConnection) connection).disconnect();
+			}
+		}, remaining, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * @return boolean - true if a request which has just failed did so because its deadline passed
+	 */
+	private boolean isPastDeadline(long deadline, AtomicBoolean deadline_passed) {
+		return deadline_passed.get() || System.currentTimeMillis() >= deadline;
+	}
+
+	/** Creates a HttpsURLConnection using the url and other parameters passed
+	 * @param url - the url to connect
+	 * @param method - GET/POST
+	 * @param post_fields - fields to be sent to connection
+	 * @param content_type - content-type 
+	 * @return - HttpsURLConnection - the connection to the url provided with the request paramters set
+	 * @throws IOException
+	 */
+	public URLConnection createHttpConnectionObject(String url, String method, String post_fields, String content_type) throws IOException {
+
+		String cookie = this.getSessionCookie();
+	//	HttpURLConnection connection = null;
+		URLConnection connection = null;
+		URL urlRequest = null;
+
+		if (this.isLogging("debug")) {
+			log("Url to connect: ", new Object[] {url});
+		}
+		urlRequest = URI.create(url).toURL();
+		
 		//connection = (HttpsURLConnection) urlRequest.openConnection();
 		connection = urlRequest.openConnection();
 		
 		if (connection instanceof javax.net.ssl.HttpsURLConnection) {
-			SSLSocketFactory sslsocketfactory = (SSLSocketFactory) SSLSocketFactory.getDefault();
-			((HttpsURLConnection)connection).setSSLSocketFactory(sslsocketfactory);
+			((HttpsURLConnection)connection).setSSLSocketFactory(this.getTls().getSocketFactory());
   		if (!isVerify_peer()) {
-  			((HttpsURLConnection)connection).setHostnameVerifier(new HostnameVerifier() {
-  				public boolean verify(String string, SSLSession ssls) {
-  					return true;
-  				}
-  			});
+  			((HttpsURLConnection)connection).setHostnameVerifier(TRUSTING_HOSTNAME_VERIFIER);
   		}
   		((HttpsURLConnection)connection).setInstanceFollowRedirects(true);
   		((HttpsURLConnection)connection).setRequestMethod(method.toUpperCase());
@@ -1017,8 +2209,11 @@ public class WorkbooksApi {
 		connection.setRequestProperty("User-Agent", this.getUser_agent());
 		connection.setRequestProperty("Content-Type", content_type);
 		connection.setRequestProperty("Charset", CHARSET);
-		connection.setRequestProperty("Content-Length", "" + Integer.toString(post_fields.getBytes().length));
+		connection.setRequestProperty("Content-Length", Long.toString(utf8Length(post_fields)));
 		connection.setRequestProperty("Expect", "");
+		if (this.isCompression()) {
+			connection.setRequestProperty("Accept-Encoding", WorkbooksCompression.ACCEPT_ENCODING);
+		}
 		if (cookie != null) {
 			connection.setRequestProperty("Cookie", cookie);
 		}
@@ -1040,27 +2235,404 @@ public class WorkbooksApi {
 	 *          ordered_post_params A simple array of additional parameters, to use for the POST body (may have duplicate keys e.g. 'id[]')
 	 * @param HashMap
 	 *          options Optional options to pass through to makeRequest(). For backwards-compatability, setting this instead to 'true' or 'false' toggles the
-	 *          decoding of JSON
+	 *          decoding of JSON. Setting 'cache' to false bypasses the response cache for this call. Setting 'idempotent' to true marks a
+	 *          write as safe to repeat, so that it is retried like a GET if it fails. Setting 'hedge' to true or false turns hedging on or off
+	 *          for a GET. A WorkbooksCancellationToken passed as 'cancellation_token' can be used to cancel the call from another thread.
+	 *          'timeout' sets the deadline for the call in seconds, including any retries, in place of the 'request_timeout' constructor option.
 	 * @return WorkbooksApiResponse - the decoded json response if decode_json is true (default), or the raw response if not.
 	 * @throws WorkbooksApiException
 	 * 
+	 * If the response cache is enabled (the 'response_cache_size' constructor option) GET requests to endpoints with a time-to-live are answered
+	 * from the cache where possible, and a successful write to an endpoint discards the responses cached for it.
+	 * 
 	 * As usual, check the API documentation for further information.
 	 */
 	public WorkbooksApiResponse apiCall(String endpoint, String method, HashMap<String, Object> post_params, ArrayList<Object> ordered_post_params,
 			HashMap<String, Object> options) throws WorkbooksApiException {
 
+		options = withDeadline(options);
+		WorkbooksResponseCache cache = this.getResponse_cache();
+		boolean decode_json = options == null || !options.containsKey("decode_json") || Boolean.parseBoolean(options.get("decode_json").toString());
+		boolean use_cache = options == null || !options.containsKey("cache") || Boolean.parseBoolean(options.get("cache").toString());
+
+		if (cache == null || !decode_json) {
+			return this.sendApiCall(endpoint, method, post_params, ordered_post_params, options);
+		}
+
+		if (!method.equals("GET")) {
+			WorkbooksApiResponse response = this.performApiCall(endpoint, method, post_params, ordered_post_params, options);
+			cache.invalidate(endpoint); // Only reached if the service accepted the request
+			return response;
+		}
+
+		if (!use_cache || !cache.isCacheable(endpoint)) {
+			return this.sendApiCall(endpoint, method, post_params, ordered_post_params, options);
+		}
+
+		final String key = requestKey(endpoint, post_params, ordered_post_params);
+		WorkbooksResponseCache.Entry entry = cache.get(key);
+		if (entry != null) {
+			if (!entry.isFresh() && cache.beginRevalidation(key)) {
+				revalidate(key, endpoint, post_params, ordered_post_params, options);
+			}
+			return new WorkbooksApiResponse(new HashMap<String, Object>(entry.getResponse()));
+		}
+
+		long generation = cache.generation(endpoint);
+		WorkbooksApiResponse response = this.sendApiCall(endpoint, method, post_params, ordered_post_params, options);
+		cache.put(key, endpoint, new HashMap<String, Object>(response.print()), response.body_length, generation);
+		return response;
+	}
+
+	/**
+	 * As apiCall(), but made in another thread. Cancelling the returned Future cancels the request, closing its connection. The
+	 * deadline of the call (its 'timeout' option, or the 'request_timeout' constructor option) runs from when it is submitted.
+	 * 
+	 * @return Future - the response; get() throws an ExecutionException wrapping any WorkbooksApiException
+	 */
+	public Future<WorkbooksApiResponse> apiCallAsync(final String endpoint, final String method, HashMap<String, Object> post_params,
+			ArrayList<Object> ordered_post_params, HashMap<String, Object> options) {
+		final HashMap<String, Object> params_copy = post_params == null ? null : new HashMap<String, Object>(post_params);
+		final ArrayList<Object> ordered_copy = ordered_post_params == null ? null : new ArrayList<Object>(ordered_post_params);
+		final HashMap<String, Object> call_options = cancellableOptions(options);
+		return submitCall(call_options, new Callable<WorkbooksApiResponse>() {
+			public WorkbooksApiResponse call() throws Exception {
+				return apiCall(endpoint, method, params_copy, ordered_copy, call_options);
+			}
+		});
+	}
+
+	/**
+	 * Copy a call's options, fixing its deadline and giving it a cancellation token of its own (a child of the caller's token, if any).
+	 */
+	private HashMap<String, Object> cancellableOptions(HashMap<String, Object> options) {
+		HashMap<String, Object> call_options = withDeadline(options);
+		if (call_options == options) {
+			call_options = options == null ? new HashMap<String, Object>() : new HashMap<String, Object>(options);
+		}
+		WorkbooksCancellationToken caller_token = (WorkbooksCancellationToken) call_options.get("cancellation_token");
+		call_options.put("cancellation_token", caller_token != null ? caller_token.child() : new WorkbooksCancellationToken());
+		return call_options;
+	}
+
+	/**
+	 * Run a call in another thread, returning a Future which cancels the call's token when it is cancelled. Once the call is done its
+	 * token is detached from the caller's, so that a long-lived caller's token does not collect one per call.
+	 */
+	private Future<WorkbooksApiResponse> submitCall(HashMap<String, Object> call_options, Callable<WorkbooksApiResponse> call) {
+		final WorkbooksCancellationToken token = (WorkbooksCancellationToken) call_options.get("cancellation_token");
+		FutureTask<WorkbooksApiResponse> task = new FutureTask<WorkbooksApiResponse>(call) {
+			public boolean cancel(boolean may_interrupt_if_running) {
+				boolean cancelled = super.cancel(may_interrupt_if_running);
+				token.cancel();
+				return cancelled;
+			}
+
+			protected void done() {
+				token.detach();
+			}
+		};
+		this.getRequest_executor().execute(task);
+		return task;
+	}
+
+	/**
+	 * Fix the time by which a call must complete, from its 'timeout' option or the 'request_timeout' constructor option. The deadline
+	 * is held in the 'deadline' option (milliseconds since the epoch) so that it is shared by every attempt at the request.
+	 * 
+	 * @return HashMap - a copy of the options with a 'deadline', or the options themselves if they already have one or the call has
+	 *         no timeout
+	 */
+	protected HashMap<String, Object> withDeadline(HashMap<String, Object> options) {
+		if (options != null && options.containsKey("deadline")) {
+			return options;
+		}
+		long timeout = this.getRequest_timeout() * 1000L;
+		if (options != null && options.containsKey("timeout")) {
+			timeout = (long) (Double.parseDouble(options.get("timeout").toString()) * 1000);
+		}
+		if (timeout <= 0) {
+			return options;
+		}
+		HashMap<String, Object> options_with_deadline = options == null ? new HashMap<String, Object>() : new HashMap<String, Object>(options);
+		options_with_deadline.put("deadline", System.currentTimeMillis() + timeout);
+		return options_with_deadline;
+	}
+
+	/**
+	 * Send a request to the service. If enabled by the 'single_flight' constructor option, a GET which is identical to one already in
+	 * progress in another thread is not sent: it waits for, and shares, the response to the request in progress. That request may have
+	 * been sent before a write made by the waiting thread had completed, so its response may not reflect that write.
+	 * 
+	 * A call with limits of its own, a 'timeout' or a 'cancellation_token' option, is always sent itself, so that it is not bound by the
+	 * limits of another caller, nor they by its. A call which shares a request waits for it only until its own deadline; should the
+	 * shared request time out first, the call is sent itself within the time it has left.
+	 */
+	protected WorkbooksApiResponse sendApiCall(final String endpoint, final String method, final HashMap<String, Object> post_params,
+			final ArrayList<Object> ordered_post_params, final HashMap<String, Object> options) throws WorkbooksApiException {
+
+		if (!method.equals("GET") || !this.isSingle_flight()
+				|| (options != null && (options.containsKey("timeout") || options.get("cancellation_token") != null))) {
+			return this.hedgedApiCall(endpoint, method, post_params, ordered_post_params, options);
+		}
+
+		String key = requestKey(endpoint, post_params, ordered_post_params);
+		if (options != null) {
+			key += "#" + options.get("decode_json") + "#" + options.get("content_type");
+		}
+		FutureTask<WorkbooksApiResponse> task = new FutureTask<WorkbooksApiResponse>(new Callable<WorkbooksApiResponse>() {
+			public WorkbooksApiResponse call() throws Exception {
+				return hedgedApiCall(endpoint, method, post_params, ordered_post_params, options);
+			}
+		});
+
+		FutureTask<WorkbooksApiResponse> leader = in_flight.putIfAbsent(key, task);
+		if (leader == null) {
+			try {
+				task.run();
+			} finally {
+				in_flight.remove(key, task);
+			}
+			return awaitResponse(task);
+		}
+
+		// Each follower gets its own response object, sharing the (immutable) decoded JSON
+		long deadline = options != null && options.containsKey("deadline") ? (Long) options.get("deadline") : Long.MAX_VALUE;
+		try {
+			return new WorkbooksApiResponse(awaitResponse(leader, deadline));
+		} catch (WorkbooksApiException e) {
+			if (!"TimeoutException".equals(e.getType()) || System.currentTimeMillis() >= deadline) {
+				throw e;
+			}
+			// The shared request was sent before this call, so its deadline passed first
+			return this.hedgedApiCall(endpoint, method, post_params, ordered_post_params, options);
+		}
+	}
+
+	/**
+	 * Make a call to the service with performApiCall(), hedging it if it is a GET and hedging is enabled (the 'hedge_gets' constructor
+	 * option, or the 'hedge' option of the call). If no response has arrived within a high percentile of the recent latency of the
+	 * endpoint, and the hedging budget allows, an identical request is sent; the first successful response is used and the other
+	 * request is cancelled.
+	 * 
+	 * The latency recorded is the time from sending the first request to receiving a successful response. When a hedge wins, the
+	 * first request had taken at least that long, so slow requests which lose the race still count towards the percentile.
+	 */
+	protected WorkbooksApiResponse hedgedApiCall(final String endpoint, String method, final HashMap<String, Object> post_params,
+			final ArrayList<Object> ordered_post_params, HashMap<String, Object> options) throws WorkbooksApiException {
+		final WorkbooksHedging hedging = this.getHedging();
+		boolean hedge = this.isHedge_gets();
+		if (options != null && options.containsKey("hedge")) {
+			hedge = Boolean.parseBoolean(options.get("hedge").toString());
+		}
+		if (hedging == null || !hedge || !method.equals("GET")) {
+			return this.performApiCall(endpoint, method, post_params, ordered_post_params, options);
+		}
+
+		long delay = hedging.delay(endpoint);
+		if (delay < 0) {
+			// Too little is known of the endpoint's latency: just time the request
+			long start_time = System.currentTimeMillis();
+			WorkbooksApiResponse response = this.performApiCall(endpoint, method, post_params, ordered_post_params, options);
+			hedging.record(endpoint, System.currentTimeMillis() - start_time);
+			return response;
+		}
+
+		WorkbooksCancellationToken caller_token = options != null ? (WorkbooksCancellationToken) options.get("cancellation_token") : null;
+		ExecutorCompletionService<WorkbooksApiResponse> completion = new ExecutorCompletionService<WorkbooksApiResponse>(this.getRequest_executor());
+		ArrayList<WorkbooksCancellationToken> tokens = new ArrayList<WorkbooksCancellationToken>();
+		long start_time = System.currentTimeMillis();
+		try {
+			for (int attempt = 0; attempt < 2; attempt++) {
+				if (attempt == 1) {
+					Future<WorkbooksApiResponse> first = completion.poll(delay, TimeUnit.MILLISECONDS);
+					if (first != null) {
+						WorkbooksApiResponse response = awaitResponse(first);
+						hedging.record(endpoint, System.currentTimeMillis() - start_time);
+						return response;
+					}
+					if (!hedging.tryHedge()) {
+						break;
+					}
+					this.getMetrics().increment("hedges");
+				}
+				WorkbooksCancellationToken token = caller_token != null ? caller_token.child() : new WorkbooksCancellationToken();
+				tokens.add(token);
+				final HashMap<String, Object> attempt_options = options != null ? new HashMap<String, Object>(options) : new HashMap<String, Object>();
+				attempt_options.put("cancellation_token", token);
+				completion.submit(new Callable<WorkbooksApiResponse>() {
+					public WorkbooksApiResponse call() throws Exception {
+						return performApiCall(endpoint, "GET", post_params, ordered_post_params, attempt_options);
+					}
+				});
+			}
+
+			// Use the first successful response; if the first to finish failed, wait for the other
+			WorkbooksApiException failure = null;
+			for (int finished = 0; finished < tokens.size(); finished++) {
+				try {
+					WorkbooksApiResponse response = awaitResponse(completion.take());
+					hedging.record(endpoint, System.currentTimeMillis() - start_time);
+					return response;
+				} catch (WorkbooksApiException e) {
+					failure = failure == null ? e : failure;
+				}
+			}
+			throw failure;
+		} catch (InterruptedException ie) {
+			Thread.currentThread().interrupt();
+			HashMap<String, Object> exceptionObj = new HashMap<String, Object>();
+			HashMap<String, Object> errorObj = new HashMap<String, Object>();
+			errorObj.put("message", "Interrupted while waiting for the response");
+			errorObj.put("type", "InterruptedException");
+
+			exceptionObj.put("workbooks_api", this);
+			exceptionObj.put("error", errorObj);
+			WorkbooksApiException e = new WorkbooksApiException(exceptionObj);
+			throw e;
+		} finally {
+			// Stop whichever request is still running
+			for (WorkbooksCancellationToken token : tokens) {
+				token.cancel();
+			}
+		}
+	}
+
+	/**
+	 * Wait for a request running as a Future, rethrowing any exception it raised.
+	 */
+	private WorkbooksApiResponse awaitResponse(Future<WorkbooksApiResponse> task) throws WorkbooksApiException {
+		return awaitResponse(task, Long.MAX_VALUE);
+	}
+
+	/**
+	 * Wait for a request running as a Future until a deadline, rethrowing any exception it raised. The request is left running if the
+	 * deadline passes.
+	 * 
+	 * @param deadline - when to stop waiting, in milliseconds since the epoch; Long.MAX_VALUE to wait as long as it takes
+	 */
+	private WorkbooksApiResponse awaitResponse(Future<WorkbooksApiResponse> task, long deadline) throws WorkbooksApiException {
+		try {
+			if (deadline == Long.MAX_VALUE) {
+				return task.get();
+			}
+			return task.get(Math.max(0, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+		} catch (TimeoutException te) {
+			HashMap<String, Object> exceptionObj = new HashMap<String, Object>();
+			HashMap<String, Object> errorObj = new HashMap<String, Object>();
+			errorObj.put("message", "Request deadline exceeded");
+			errorObj.put("type", "TimeoutException");
+
+			exceptionObj.put("workbooks_api", this);
+			exceptionObj.put("error", errorObj);
+			WorkbooksApiException e = new WorkbooksApiException(exceptionObj);
+			throw e;
+		} catch (ExecutionException ee) {
+			Throwable cause = ee.getCause();
+			if (cause instanceof WorkbooksApiException) {
+				throw (WorkbooksApiException) cause;
+			} else if (cause instanceof RuntimeException) {
+				throw (RuntimeException) cause;
+			} else if (cause instanceof Error) {
+				throw (Error) cause;
+			}
+			HashMap<String, Object> exceptionObj = new HashMap<String, Object>();
+			HashMap<String, Object> errorObj = new HashMap<String, Object>();
+			errorObj.put("message", "Error while waiting for the response: " + cause);
+			errorObj.put("type", cause.getClass().getSimpleName());
+
+			exceptionObj.put("workbooks_api", this);
+			exceptionObj.put("error", errorObj);
+			WorkbooksApiException e = new WorkbooksApiException(exceptionObj);
+			throw e;
+		} catch (InterruptedException ie) {
+			Thread.currentThread().interrupt();
+			HashMap<String, Object> exceptionObj = new HashMap<String, Object>();
+			HashMap<String, Object> errorObj = new HashMap<String, Object>();
+			errorObj.put("message", "Interrupted while waiting for the response");
+			errorObj.put("type", "InterruptedException");
+
+			exceptionObj.put("workbooks_api", this);
+			exceptionObj.put("error", errorObj);
+			WorkbooksApiException e = new WorkbooksApiException(exceptionObj);
+			throw e;
+		}
+	}
+
+	/**
+	 * Fetch a stale cached response again in the background, replacing it in the response cache.
+	 */
+	private void revalidate(final String key, final String endpoint, HashMap<String, Object> post_params, ArrayList<Object> ordered_post_params,
+			HashMap<String, Object> options) {
+		final HashMap<String, Object> params_copy = post_params == null ? null : new HashMap<String, Object>(post_params);
+		final ArrayList<Object> ordered_copy = ordered_post_params == null ? null : new ArrayList<Object>(ordered_post_params);
+		final HashMap<String, Object> options_copy = options == null ? new HashMap<String, Object>() : new HashMap<String, Object>(options);
+		options_copy.remove("deadline"); // The caller's deadline does not apply to a background request
+		options_copy.remove("cancellation_token");
+		final WorkbooksResponseCache cache = this.getResponse_cache();
+		final long generation = cache.generation(endpoint);
+
+		this.getBackgroundExecutor().execute(new Runnable() {
+			public void run() {
+				try {
+					WorkbooksApiResponse response = performApiCall(endpoint, "GET", params_copy, ordered_copy, withDeadline(options_copy));
+					cache.put(key, endpoint, new HashMap<String, Object>(response.print()), response.body_length, generation);
+				} catch (WorkbooksApiException e) {
+					// Carry on serving the stale response until it is evicted
+				} finally {
+					cache.endRevalidation(key);
+				}
+			}
+		});
+	}
+
+	/**
+	 * Build a key which identifies a request by its database, session, endpoint and parameters: the same request made with its
+	 * uniquely-named parameters in a different order has the same key, but one made in another database or as another user does not.
+	 * 
+	 * @return String - the key
+	 */
+	protected String requestKey(String endpoint, HashMap<String, Object> post_params, ArrayList<Object> ordered_post_params) {
+		SessionState state = session.get();
+		StringBuilder key = new StringBuilder();
+		key.append(state.logical_database_id).append('/').append(state.session_id).append('/');
+		key.append(WorkbooksResponseCache.normaliseEndpoint(endpoint));
+		key.append('?');
+		if (post_params != null) {
+			for (String name : new TreeSet<String>(post_params.keySet())) {
+				Object value = post_params.get(name);
+				key.append(name).append('=');
+				if (value instanceof Object[]) {
+					key.append(Arrays.deepToString((Object[]) value));
+				} else {
+					key.append(value);
+				}
+				key.append('&');
+			}
+		}
+		// Ordered parameters are significant in their order, e.g. the _ff[], _ft[] and _fc[] of each filter
+		if (ordered_post_params != null) {
+			for (Object value : ordered_post_params) {
+				key.append(value).append('&');
+			}
+		}
+		return key.toString();
+	}
+
+	private static final Pattern ENDPOINT_EXTENSION = Pattern.compile(".*\\.\\w{3,4}");
+
+	/**
+	 * Make a call to the service as described for apiCall(), without using the response cache.
+	 */
+	protected WorkbooksApiResponse performApiCall(String endpoint, String method, HashMap<String, Object> post_params, ArrayList<Object> ordered_post_params,
+			HashMap<String, Object> options) throws WorkbooksApiException {
+
 		//this.log("apiCall() called with params", new Object[] {endpoint, method, post_params, ordered_post_params, options});
 		HashMap<String, Object> response = null;
-		if (post_params == null) {
-			post_params = new HashMap<String, Object>();
-		}
+		// Leave the caller's parameters untouched
+		post_params = post_params == null ? new HashMap<String, Object>() : new HashMap<String, Object>(post_params);
 		// NOTE: Client needs to pass decode_json=false if parsing as json is not required
-		if (options == null) {
-			options = new HashMap<String, Object>();
-			options.put("decode_json", true);
-		} else if (!options.containsKey("decode_json")) {
-			options.put("decode_json", true);
-		}
+		boolean doDecodeJson = options == null || !options.containsKey("decode_json") || Boolean.parseBoolean(options.get("decode_json").toString());
 
 		// Clients using API Keys normally pass those on each request; otherwise
 		// establish a session to span multiple requests.
@@ -1073,10 +2645,22 @@ public class WorkbooksApi {
 
 		// API calls are always to a ".api" endpoint; the caller does not have to include this.
 		// Including ANY extension will prevent ".api" from being appended.
-		if (!endpoint.matches(".*\\.\\w{3,4}")) {
+		if (!ENDPOINT_EXTENSION.matcher(endpoint).matches()) {
 			endpoint += ".api";
 		}
-		HashMap<String, Object> serviceResponse = this.makeRequest(endpoint, method, post_params, ordered_post_params, options);
+		HashMap<String, Object> serviceResponse = null;
+		SessionState request_session = this.getSessionState();
+		try {
+			serviceResponse = this.sendWithRetries(endpoint, method, post_params, ordered_post_params, options);
+		} catch (WorkbooksApiException e) {
+			if (this.getApi_key() != null || !(this.isAuto_relogin() || request_session.from_cache) || !isSessionRejected(e) || !this.canLogInAgain()) {
+				throw e;
+			}
+			// The session has expired, or was saved by an earlier process and is no longer valid: log in again (or wait
+			// for another thread to do so) and repeat the request once.
+			this.renewSession(request_session, e);
+			serviceResponse = this.sendWithRetries(endpoint, method, post_params, ordered_post_params, options);
+		}
 
 		int http_status = 0;
 		Object http_body = null;
@@ -1085,36 +2669,258 @@ public class WorkbooksApi {
 			http_body = serviceResponse.get("http_body");
 		}
 
-		if (http_status != WorkbooksApi.HTTP_STATUS_OK) {
+		if (http_status != WorkbooksApi.HTTP_STATUS_OK) {
+
+			HashMap<String, Object> exceptionObj = new HashMap<String, Object>();
+			HashMap<String, Object> errorObj = new HashMap<String, Object>();
+			errorObj.put("message", "Non-OK response (" + http_status + ")");
+			errorObj.put("type", "WorkbooksServiceException");
+			errorObj.put("response", http_body);
+
+			exceptionObj.put("workbooks_api", this);
+			exceptionObj.put("error_code", http_status);
+			exceptionObj.put("error", errorObj);
+
+			WorkbooksApiException e = new WorkbooksApiException(exceptionObj);
+			throw e;
+		}
+		response = new HashMap<String, Object>();
+
+		if (doDecodeJson) {
+			JsonObject responseObject = decodeJson((String) http_body);
+			response.put("response", responseObject);
+		} else {
+			response.put("response", http_body);
+		}
+
+		//this.log("apiCall() returns", new Object[]{response}, "info", DEFAULT_LOG_LIMIT);
+
+		WorkbooksApiResponse wbResponse = new WorkbooksApiResponse(response);
+		wbResponse.body_length = http_body != null ? http_body.toString().length() : 0;
+		return wbResponse;
+
+	}
+
+	/**
+	 * Send a request with makeRequest(), sending it again after a delay if it fails in a way which the retry policy allows. Only GETs, and
+	 * writes for which the caller has set the 'idempotent' option to true, are sent more than once.
+	 */
+	protected HashMap<String, Object> sendWithRetries(String endpoint, String method, HashMap<String, Object> post_params, ArrayList<Object> ordered_post_params,
+			HashMap<String, Object> options) throws WorkbooksApiException {
+		WorkbooksRetryPolicy policy = this.getRetry_policy();
+		boolean idempotent = method.equals("GET") || (options != null && options.containsKey("idempotent") && Boolean.parseBoolean(options.get("idempotent").toString()));
+		WorkbooksCancellationToken cancellation_token = options != null ? (WorkbooksCancellationToken) options.get("cancellation_token") : null;
+		for (int attempt = 1; ; attempt++) {
+			try {
+				return this.makeLimitedRequest(endpoint, method, post_params, ordered_post_params, options);
+			} catch (WorkbooksApiException e) {
+				if (cancellation_token != null && cancellation_token.isCancelled() && !"CancelledException".equals(e.getType())) {
+					// The connection was closed beneath the request
+					HashMap<String, Object> exceptionObj = new HashMap<String, Object>();
+					HashMap<String, Object> errorObj = new HashMap<String, Object>();
+					errorObj.put("message", "Request cancelled");
+					errorObj.put("type", "CancelledException");
+
+					exceptionObj.put("workbooks_api", this);
+					exceptionObj.put("error", errorObj);
+					WorkbooksApiException cancelled = new WorkbooksApiException(exceptionObj);
+					throw cancelled;
+				}
+				if (!idempotent || !policy.shouldRetry(attempt, e.getError_code(), e.getType(), e.getRetry_after())) {
+					throw e;
+				}
+				long delay = policy.delay(attempt, e.getRetry_after());
+				if (options != null && options.containsKey("deadline") && System.currentTimeMillis() + delay >= (Long) options.get("deadline")) {
+					throw e; // No time for another attempt
+				}
+				this.log("Request failed; retrying", new Object[] {endpoint, e.getError_code(), e.getType(), attempt, delay}, "warning", DEFAULT_LOG_LIMIT);
+				this.getMetrics().increment("retries");
+				try {
+					Thread.sleep(delay);
+				} catch (InterruptedException ie) {
+					Thread.currentThread().interrupt();
+					throw e;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Send a request with makeRequest(), within the limits which are enabled:
+	 *  - the rate limit (the 'rate_limit' constructor option): wait for a token, or fail with a RateLimitException if none is
+	 *    available within 'rate_limit_wait' seconds.
+	 *  - the circuit breaker (the 'circuit_breaker' constructor option): while it is open, fail at once with a
+	 *    WorkbooksCircuitOpenException.
+	 *  - the adaptive concurrency limit (the 'adaptive_concurrency' constructor option): wait until fewer requests are in progress
+	 *    than the limit. The time taken and the outcome of the request adjust the limit.
+	 */
+	protected HashMap<String, Object> makeLimitedRequest(String endpoint, String method, HashMap<String, Object> post_params, ArrayList<Object> ordered_post_params,
+			HashMap<String, Object> options) throws WorkbooksApiException {
+		WorkbooksRateLimiter rate_limiter = this.getRate_limiter();
+		if (rate_limiter != null) {
+			long waited;
+			try {
+				waited = rate_limiter.acquire(endpoint);
+			} catch (InterruptedException ie) {
+				Thread.currentThread().interrupt();
+				waited = -1;
+			}
+			if (waited < 0) {
+				this.getMetrics().increment("rate_limited");
+				HashMap<String, Object> exceptionObj = new HashMap<String, Object>();
+				HashMap<String, Object> errorObj = new HashMap<String, Object>();
+				errorObj.put("message", "Request rate limit reached for " + endpoint);
+				errorObj.put("type", "RateLimitException");
+
+				exceptionObj.put("workbooks_api", this);
+				exceptionObj.put("error", errorObj);
+				WorkbooksApiException e = new WorkbooksApiException(exceptionObj);
+				throw e;
+			}
+			this.getMetrics().add("rate_limit_wait", waited);
+		}
+
+		WorkbooksCircuitBreaker breaker = this.getCircuit_breaker();
+		if (breaker != null && !breaker.tryAcquire()) {
+			this.getMetrics().increment("circuit_rejected");
+			HashMap<String, Object> exceptionObj = new HashMap<String, Object>();
+			HashMap<String, Object> errorObj = new HashMap<String, Object>();
+			errorObj.put("message", "The service is failing: request not sent while the circuit breaker is open");
+			errorObj.put("type", "CircuitOpenException");
+
+			exceptionObj.put("workbooks_api", this);
+			exceptionObj.put("error", errorObj);
+			exceptionObj.put("retry_after", breaker.getRemaining_open());
+			WorkbooksCircuitOpenException e = new WorkbooksCircuitOpenException(exceptionObj);
+			throw e;
+		}
+
+		WorkbooksConcurrencyLimiter limiter = this.getConcurrency_limiter();
+		if (limiter == null && breaker == null) {
+			return this.makeRequest(endpoint, method, post_params, ordered_post_params, options);
+		}
+
+		long token = 0;
+		if (limiter != null) {
+			try {
+				token = limiter.acquire();
+			} catch (InterruptedException ie) {
+				Thread.currentThread().interrupt();
+				if (breaker != null) {
+					breaker.record(WorkbooksConcurrencyLimiter.Outcome.IGNORE, 0);
+				}
+				HashMap<String, Object> exceptionObj = new HashMap<String, Object>();
+				HashMap<String, Object> errorObj = new HashMap<String, Object>();
+				errorObj.put("message", "Interrupted while waiting to send the request");
+				errorObj.put("type", "InterruptedException");
+
+				exceptionObj.put("workbooks_api", this);
+				exceptionObj.put("error", errorObj);
+				WorkbooksApiException e = new WorkbooksApiException(exceptionObj);
+				throw e;
+			}
+		}
+		long start_time = System.currentTimeMillis();
+		WorkbooksConcurrencyLimiter.Outcome outcome = WorkbooksConcurrencyLimiter.Outcome.IGNORE;
+		try {
+			HashMap<String, Object> serviceResponse = this.makeRequest(endpoint, method, post_params, ordered_post_params, options);
+			outcome = WorkbooksConcurrencyLimiter.Outcome.SUCCESS;
+			return serviceResponse;
+		} catch (WorkbooksApiException e) {
+			// Failures the caller brought about, by cancelling or by passing a deadline already past, say nothing of the service
+			WorkbooksCancellationToken cancellation_token = options != null ? (WorkbooksCancellationToken) options.get("cancellation_token") : null;
+			boolean expired = options != null && options.containsKey("deadline") && (Long) options.get("deadline") <= start_time;
+			if (isOverload(e) && (cancellation_token == null || !cancellation_token.isCancelled()) && !expired) {
+				outcome = WorkbooksConcurrencyLimiter.Outcome.OVERLOAD;
+			}
+			throw e;
+		} finally {
+			long duration = System.currentTimeMillis() - start_time;
+			if (limiter != null) {
+				limiter.release(token, endpoint, duration, outcome);
+			}
+			if (breaker != null) {
+				breaker.record(outcome, duration);
+			}
+		}
+	}
+
+	/**
+	 * @return boolean - true if the exception shows that the service is overloaded: HTTP 429 or 5xx, or no response,
+	 *   whether the connection failed or the response did not arrive before the deadline
+	 */
+	protected boolean isOverload(WorkbooksApiException e) {
+		int status = e.getError_code();
+		return status == 429 || status >= 500 || (status == 0 && ("IOException".equals(e.getType()) || "TimeoutException".equals(e.getType())));
+	}
+
+	/**
+	 * @return boolean - true if the exception shows that the service did not accept the session
+	 */
+	protected boolean isSessionRejected(WorkbooksApiException e) {
+		return e.getError_code() == HTTP_STATUS_UNAUTHORIZED || e.getError_code() == HTTP_STATUS_FORBIDDEN;
+	}
+
+	/**
+	 * @return boolean - true if there are the credentials to log in again: those given to login(), or a session to reconnect to
+	 */
+	protected boolean canLogInAgain() {
+		return this.login_params != null || (this.getUsername() != null && this.getSession_id() != null && this.getLogical_database_id() != null);
+	}
+
+	/**
+	 * Log in again once a session has been rejected by the service or lost. Only one thread logs in: others which find the same session
+	 * rejected wait for that login and then use the new session, so a session which expires part way through a bulk job costs one login.
+	 * 
+	 * @param rejected_session - the session in use when the request failed
+	 * @param rejection - the exception raised when the service rejected the session, or null
+	 * @throws WorkbooksApiException - if the login fails
+	 */
+	protected void renewSession(SessionState rejected_session, WorkbooksApiException rejection) throws WorkbooksApiException {
+		synchronized (relogin_lock) {
+			SessionState current = this.getSessionState();
+			if (current != rejected_session && current.login_state) {
+				return; // Another thread has already logged in again
+			}
+			this.log("Session rejected by the service; logging in again", new Object[] {rejection != null ? rejection.getError_code() : null}, "info", DEFAULT_LOG_LIMIT);
+			if (current.from_cache && this.getSession_cache() != null) {
+				this.getSession_cache().remove(this.session_cache_identity);
+			}
+
+			HashMap<String, Object> params = this.login_params != null ? new HashMap<String, Object>(this.login_params) : new HashMap<String, Object>();
+			if (params.containsKey("password")) {
+				// A fresh login: do not present the rejected session
+				this.publishSession(new SessionState(null, null, false, current.database_instance_id, current.logical_database_id, false));
+			}
+			String failure_message = null;
+			int http_status = 0;
+			try {
+				HashMap<String, Object> login_response = this.login(params, false);
+				http_status = (Integer) login_response.get("http_status");
+				failure_message = (String) login_response.get("failure_message");
+			} catch (WorkbooksApiException e) {
+				http_status = e.getError_code();
+				failure_message = e.getMessage();
+			} catch (Exception e) {
+				failure_message = e.getMessage();
+			}
+			if (http_status == HTTP_STATUS_OK) {
+				this.getMetrics().increment("relogins");
+				return;
+			}
 
+			this.log("Workbooks connection unsuccessful", new Object[] {failure_message}, "error", DEFAULT_LOG_LIMIT);
 			HashMap<String, Object> exceptionObj = new HashMap<String, Object>();
 			HashMap<String, Object> errorObj = new HashMap<String, Object>();
-			errorObj.put("message", "Non-OK response (" + http_status + ")");
-			errorObj.put("type", "WorkbooksServiceException");
-			errorObj.put("response", http_body);
+			errorObj.put("message", "Workbooks connection unsuccessful: " + failure_message);
+			errorObj.put("type", "WorkbooksLoginException");
 
 			exceptionObj.put("workbooks_api", this);
 			exceptionObj.put("error_code", http_status);
 			exceptionObj.put("error", errorObj);
-
 			WorkbooksApiException e = new WorkbooksApiException(exceptionObj);
 			throw e;
 		}
-		response = new HashMap<String, Object>();
-		boolean doDecodeJson = Boolean.parseBoolean(options.get("decode_json").toString());
-
-		if (options.containsKey("decode_json") && doDecodeJson) {
-			JsonObject responseObject = decodeJson((String) http_body);
-			response.put("response", responseObject);
-		} else {
-			response.put("response", http_body);
-		}
-
-		//this.log("apiCall() returns", new Object[]{response}, "info", DEFAULT_LOG_LIMIT);
-
-		WorkbooksApiResponse wbResponse = new WorkbooksApiResponse(response);
-		return wbResponse;
-
 	}
 
   /**
@@ -1143,25 +2949,24 @@ public class WorkbooksApi {
 		}
 
 		ArrayList<Object> array_params = new ArrayList<Object>();
-		int i = 0;
+		// Array values are passed as ordered parameters, and the rest in a copy of the caller's params which is left untouched
+		HashMap<String, Object> single_params = null;
 		if (params != null) {
-			for (Iterator iterator = params.entrySet().iterator(); iterator.hasNext();) {
-				Map.Entry<String, Object> entry = (Map.Entry) iterator.next();
+			single_params = new HashMap<String, Object>();
+			for (Map.Entry<String, Object> entry : params.entrySet()) {
 				String key = entry.getKey();
+				Object value = entry.getValue();
 
-				if (entry.getValue().getClass().isArray()) {
+				if (value.getClass().isArray()) {
 					if (key.equals("_filters[]")) {
-						try {
-							String[] fil = (String[]) entry.getValue();
+						if (!(value instanceof String[][])) {
+							String[] fil = (String[]) value;
 							String[][] make_2d_filter = new String[1][fil.length];
 							make_2d_filter[0] = Arrays.copyOf(fil, fil.length);
-							entry.setValue(make_2d_filter);
-						} catch (ClassCastException ce) {
-							String[][] fil = (String[][]) entry.getValue();
+							value = make_2d_filter;
 						}
 						try {
-  						String[][] filter_params = (String[][]) entry.getValue();
-  						System.out.println("The filter_oarams" + filter_params);
+  						String[][] filter_params = (String[][]) value;
   						for (String[] filter : filter_params) {
   							array_params.add("_ff[]=" + (url_encode ? URLEncoder.encode(filter[0], CHARSET) :filter[0]));
   							array_params.add("_ft[]=" + (url_encode ? URLEncoder.encode(filter[1], CHARSET) :filter[1]));
@@ -1180,7 +2985,7 @@ public class WorkbooksApi {
 							}
 					} else {
 						try {
-  						String[] paramValues = (String[]) entry.getValue();
+  						String[] paramValues = (String[]) value;
   						for (String string : paramValues) {
   								array_params.add(key + "=" + (url_encode ? URLEncoder.encode(string, CHARSET) : string));
   						}
@@ -1196,12 +3001,115 @@ public class WorkbooksApi {
 								throw e;
 							}
 					}
-					// Remove the key from the map
-					iterator.remove();
+				} else {
+					single_params.put(key, value);
 				}
 			}
 		}
-		return this.apiCall(endpoint, "GET", params, array_params, options);
+		String database = this.getLogical_database_id(); // the database the rows come from, should the session change meanwhile
+		WorkbooksApiResponse response = this.apiCall(endpoint, "GET", single_params, array_params, options);
+		if (this.getIdentity_map() != null) {
+			boolean selected = params != null && (params.containsKey("_select_columns[]") || params.containsKey("_select_columns"));
+			this.recordRows(database, endpoint, response, "data", !selected);
+		}
+		return response;
+	}
+
+	/**
+	 * As get(), but made in another thread. Cancelling the returned Future cancels the request; see apiCallAsync().
+	 */
+	public Future<WorkbooksApiResponse> getAsync(final String endpoint, HashMap<String, Object> params, HashMap<String, Object> options) {
+		final HashMap<String, Object> params_copy = params == null ? null : new HashMap<String, Object>(params);
+		final HashMap<String, Object> call_options = cancellableOptions(options);
+		return submitCall(call_options, new Callable<WorkbooksApiResponse>() {
+			public WorkbooksApiResponse call() throws Exception {
+				return get(endpoint, params_copy, call_options);
+			}
+		});
+	}
+
+	/**
+	 * Get a single record by its id. If the identity map is enabled (the 'identity_map_size' constructor option) and holds the record, having
+	 * seen it in an earlier response from the current database, then it is returned without a request to the service.
+	 * 
+	 * @param String
+	 *          endpoint selects the portion of the API to use, e.g. 'crm/organisations'.
+	 * @param Object
+	 *          id the id of the record
+	 * @return JsonObject - the record, or null if there is no such record
+	 * @throws WorkbooksApiException
+	 */
+	public JsonObject getRecord(String endpoint, Object id) throws WorkbooksApiException {
+		if (this.getIdentity_map() != null) {
+			JsonObject held = this.getIdentity_map().get(this.getLogical_database_id(), endpoint, id);
+			if (held != null) {
+				return held;
+			}
+		}
+		HashMap<String, Object> filter = new HashMap<String, Object>();
+		filter.put("_ff[]", "id");
+		filter.put("_ft[]", "eq");
+		filter.put("_fc[]", id.toString());
+		filter.put("_limit", "1");
+		WorkbooksApiResponse response = this.get(endpoint, filter, null);
+		JsonArray data = response.getData();
+		return data != null && data.size() > 0 ? data.getJsonObject(0) : null;
+	}
+
+	/**
+	 * Add the rows in a decoded response from the given database, under the given key ('data' or 'affected_objects'), to the identity
+	 * map; complete is false if they were read with a column selection.
+	 */
+	private void recordRows(String database, String endpoint, WorkbooksApiResponse response, String rows_key, boolean complete) {
+		Object decoded = response.print().get("response");
+		if (decoded instanceof JsonObject && ((JsonObject) decoded).get(rows_key) instanceof JsonArray) {
+			this.getIdentity_map().putAll(database, endpoint, ((JsonObject) decoded).getJsonArray(rows_key), complete);
+		}
+	}
+
+	/**
+	 * Get the metadata describing one or more classes, e.g. their fields and associations. If the metadata cache
+	 * is enabled (the 'metadata_cache' constructor option) then only classes which are not already cached are
+	 * fetched from the service; cached classes which are ageing are refreshed in the background. Cached metadata
+	 * is only used for the service and database it was fetched from.
+	 * 
+	 * @param class_names - the classes required, e.g. 'Private::Crm::Case'; null for all classes
+	 * @param columns - the columns to select, e.g. 'class_name', 'fields', 'associations'; null for the default set.
+	 *          With the metadata cache enabled 'class_name' is always included.
+	 * @return JsonArray - one object per class
+	 * @throws Exception
+	 */
+	public JsonArray getMetadata(String[] class_names, String[] columns) throws Exception {
+		if (this.getMetadata_cache() != null) {
+			return this.getMetadata_cache().get(metadataScope(), class_names, columns);
+		}
+		return fetchMetadata(class_names, columns);
+	}
+
+	/**
+	 * The scope under which metadata is cached: the service and the logical database. When no database has been
+	 * selected the API key determines it, so a digest of the key stands in for the database.
+	 */
+	protected String metadataScope() {
+		String logical_database_id = this.getLogical_database_id();
+		if (logical_database_id == null) {
+			logical_database_id = "api_key:" + WorkbooksSessionCache.identity(this.getService(), null, this.getApi_key(), null);
+		}
+		return this.getService() + " " + logical_database_id;
+	}
+
+	/**
+	 * Fetch metadata from the service, bypassing the metadata cache.
+	 */
+	protected JsonArray fetchMetadata(String[] class_names, String[] columns) throws Exception {
+		HashMap<String, Object> params = new HashMap<String, Object>();
+		if (class_names != null && class_names.length > 0) {
+			params.put("class_names[]", class_names);
+		}
+		if (columns != null) {
+			params.put("_select_columns[]", columns);
+		}
+		return this.assertGet("metadata/types", params, null).getData();
 	}
 
 	/**
@@ -1230,7 +3138,9 @@ public class WorkbooksApi {
 	 * @param method
 	 *          String The method (CREATE/UPDATE/DELETE) which is to be used if not specified for an object.
 	 * @param HashMap
-	 *          options Optional options to pass through to makeRequest() potentially including 'content_type'.
+	 *          options Optional options to pass through to makeRequest() potentially including 'content_type'. Without a 'content_type', the
+	 *          objects are sent form-encoded or as multipart/form-data, whichever is smaller (see chooseContentType()), unless the
+	 *          'auto_content_type' constructor option is false, when they are always sent form-encoded.
 	 * @return WorkbooksApiResponse -  the decoded response.
 	 * @throws WorkbooksApiException
 	 * 
@@ -1242,23 +3152,61 @@ public class WorkbooksApi {
 
 		ArrayList<Object> filter_params = this.populateFilters(objs, method);
 
-		objs = this.encodeMethodParams(objs, method);
+		// encodeMethodParams() modifies the objects in place: work on copies so the caller's objects are left untouched
+		ArrayList<HashMap<String, Object>> obj_copies = new ArrayList<HashMap<String, Object>>();
+		for (HashMap<String, Object> obj : objs) {
+			obj_copies.add(new HashMap<String, Object>(obj));
+		}
+		objs = this.encodeMethodParams(obj_copies, method);
 
 		boolean url_encode = true;
 		if (options != null && options.containsKey("content_type")) {
 			url_encode = !(options.get("content_type").toString().equals(WorkbooksApi.FORM_DATA));
+		} else if (this.isAuto_content_type()) {
+			url_encode = this.chooseContentType(endpoint, objs).equals(FORM_URL_ENCODED);
+			if (!url_encode) {
+				options = options == null ? new HashMap<String, Object>() : new HashMap<String, Object>(options);
+				options.put("content_type", FORM_DATA);
+				this.getMetrics().increment("batches_sent_multipart");
+			}
 		}
 
 		ArrayList<Object> ordered_post_params = this.fullSquare(objs, url_encode);
 
 		filter_params.addAll(ordered_post_params);
 
+		String database = this.getLogical_database_id();
 		WorkbooksApiResponse response = this.apiCall(endpoint, "PUT", params, filter_params, options);
 
+		// Keep the identity map in step with the service's view of the records written
+		if (this.getIdentity_map() != null) {
+			this.recordRows(database, endpoint, response, "affected_objects", true);
+			for (HashMap<String, Object> obj : objs) {
+				if ("DELETE".equals(obj.get("__method"))) {
+					this.getIdentity_map().remove(database, endpoint, obj.get("id"));
+				}
+			}
+		}
+
 //		this.log("batch returns", new Object[] {response}, "info", DEFAULT_LOG_LIMIT);
 		return response;
 	}
 
+	/**
+	 * As batch(), but made in another thread. Cancelling the returned Future cancels the request; see apiCallAsync().
+	 */
+	public Future<WorkbooksApiResponse> batchAsync(final String endpoint, ArrayList<HashMap<String, Object>> objs, HashMap<String, Object> params,
+			final String method, HashMap<String, Object> options) {
+		final ArrayList<HashMap<String, Object>> objs_copy = new ArrayList<HashMap<String, Object>>(objs);
+		final HashMap<String, Object> params_copy = params == null ? null : new HashMap<String, Object>(params);
+		final HashMap<String, Object> call_options = cancellableOptions(options);
+		return submitCall(call_options, new Callable<WorkbooksApiResponse>() {
+			public WorkbooksApiResponse call() throws Exception {
+				return batch(endpoint, objs_copy, params_copy, method, call_options);
+			}
+		});
+	}
+
 	/**
 	 * Interface as per batch() but if the response is not 'ok' it also logs an error and raises an exception.
 	 */
@@ -1520,6 +3468,93 @@ public class WorkbooksApi {
 		return obj_array;
 	}
 
+	/**
+	 * Choose the content type which gives the smaller body for a batch of objects, as sent by fullSquare(). Percent-encoding triples the
+	 * size of non-ASCII text and punctuation, while multipart/form-data adds a fixed overhead of around 100 bytes to each field, so large
+	 * or non-ASCII values are smaller as multipart and many short values are smaller form-encoded. Objects with a file to upload are
+	 * always sent as multipart. A form-encoded body which request compression applies to is kept form-encoded: gzip takes back most of what
+	 * percent-encoding adds, and multipart bodies are not compressed.
+	 * 
+	 * @param endpoint - the endpoint the batch is sent to, for the request compression rules
+	 * @param obj_array - the objects, after encodeMethodParams()
+	 * @return String - FORM_URL_ENCODED or FORM_DATA
+	 */
+	protected String chooseContentType(String endpoint, ArrayList<HashMap<String, Object>> obj_array) {
+		TreeSet<String> allKeys = new TreeSet<String>();
+		for (HashMap<String, Object> obj : obj_array) {
+			allKeys.addAll(obj.keySet());
+		}
+
+		long url_encoded_size = 0;
+		long multipart_size = MULTIPART_FIELD_OVERHEAD; // the closing boundary
+		for (HashMap<String, Object> obj : obj_array) {
+			for (String key : allKeys) {
+				Object value = obj.containsKey(key) ? obj.get(key) : ":no_value:";
+				if (value == null) {
+					value = ":null_value:";
+				} else if (value instanceof HashMap) {
+					return FORM_DATA;
+				}
+				String name = this.unnestKey(key) + "[]";
+				String text = value.toString();
+				url_encoded_size += urlEncodedLength(name) + 1 + urlEncodedLength(text) + 1;
+				multipart_size += MULTIPART_FIELD_OVERHEAD + name.length() + utf8Length(text);
+			}
+		}
+		WorkbooksCompression request_compression = this.getRequest_compression();
+		if (request_compression != null && request_compression.shouldCompress(endpoint, url_encoded_size)) {
+			return FORM_URL_ENCODED;
+		}
+		return multipart_size < url_encoded_size ? FORM_DATA : FORM_URL_ENCODED;
+	}
+
+	// The bytes which multipart/form-data adds to each field: the boundary, the Content-Disposition header and line ends
+	private static final int MULTIPART_FIELD_OVERHEAD = 110;
+
+	/**
+	 * @return long - the length of a string once encoded by URLEncoder
+	 */
+	private static long urlEncodedLength(String text) {
+		long length = 0;
+		for (int i = 0; i < text.length(); i++) {
+			char c = text.charAt(i);
+			if ((c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9') || c == '.' || c == '-' || c == '*' || c == '_' || c == ' ') {
+				length += 1;
+			} else if (c < 0x80) {
+				length += 3;
+			} else if (c < 0x800) {
+				length += 6;
+			} else if (Character.isHighSurrogate(c)) {
+				length += 12;
+				i++;
+			} else {
+				length += 9;
+			}
+		}
+		return length;
+	}
+
+	/**
+	 * @return long - the length of a string in UTF-8
+	 */
+	private static long utf8Length(String text) {
+		long length = 0;
+		for (int i = 0; i < text.length(); i++) {
+			char c = text.charAt(i);
+			if (c < 0x80) {
+				length += 1;
+			} else if (c < 0x800) {
+				length += 2;
+			} else if (Character.isHighSurrogate(c)) {
+				length += 4;
+				i++;
+			} else {
+				length += 3;
+			}
+		}
+		return length;
+	}
+
 	/**
 	 * The Workbooks wire protocol requires that each key which is used in any object be present in all objects, and delivered in the right order. Callers of this
 	 * binding library will omit keys from some objects and not from others. Some special values are used in this encoding - :null_value: and :no_value:.
@@ -1635,34 +3670,15 @@ public class WorkbooksApi {
 
 	/**
 	 * Ensure we are logged in; if not then reconnect to the service if possible.
+	 * 
+	 * A failure to reconnect raises a WorkbooksApiException; it is logged in the Process Log and, when uncaught, gives the exit code
+	 * EXIT_RETRY so that a scheduled process is retried later.
 	 */
 	public void ensureLogin() throws WorkbooksApiException {
 
-		if (!this.isLogin_state() && this.getUsername() != null && this.getSession_id() != null && this.getLogical_database_id() != null) {
-
-			/*
-			 * A login failure results in it being logged in the Process Log and if the process is scheduled then it is disabled and a notification raised. Timeouts
-			 * result in a retry return code.
-			 */
-
-
-			try {
-				HashMap<String, Object> login_response = this.login(new HashMap<String, Object>());
-				int http_status = (Integer) login_response.get("http_status");
-				if (http_status != WorkbooksApi.HTTP_STATUS_OK) {
-					this.log("Workbooks connection unsuccessful", new Object[] {login_response.get("failure_message")}, "error", DEFAULT_LOG_LIMIT);
-					System.exit(EXIT_RETRY); // retry later if the Action is scheduled
-				}
-			} catch (Exception e) {
-				// Handle timeouts differently with a retry.
-
-				if (e.getMessage().matches("operation timed out")) {
-					this.log("Workbooks connection timed out will re-try later", new Object[] {e.getMessage()}, "error", DEFAULT_LOG_LIMIT);
-					System.exit(EXIT_RETRY); // retry later if the Action is scheduled
-				}
-				this.log("Workbooks connection unsuccessful", new Object[] {e.getMessage()}, "error", DEFAULT_LOG_LIMIT);
-				System.exit(EXIT_RETRY); // retry later if the Action is scheduled
-			}
+		SessionState current = this.getSessionState();
+		if (!current.login_state && this.canLogInAgain()) {
+			this.renewSession(current, null);
 		}
 
 		if (this.isLogin_state() == false) {
@@ -1680,13 +3696,23 @@ public class WorkbooksApi {
 		}
 	}
 
+	/**
+	 * @throws IllegalStateException if this object was built by a Builder, whose configuration cannot be changed
+	 */
+	protected void checkConfigurable() {
+		if (configuration_frozen) {
+			throw new IllegalStateException("The configuration of a WorkbooksApi built by a Builder cannot be changed");
+		}
+	}
+
 	// ************************************Get/Set methods
 	public String getSession_id() {
-		return session_id;
+		return session.get().session_id;
 	}
 
-	public void setSession_id(String session_id) {
-		this.session_id = session_id;
+	public synchronized void setSession_id(String session_id) {
+		SessionState current = session.get();
+		session.set(new SessionState(session_id, current.authenticity_token, current.login_state, current.database_instance_id, current.logical_database_id, current.from_cache));
 	}
 
 	public String getApi_key() {
@@ -1694,6 +3720,11 @@ public class WorkbooksApi {
 	}
 
 	public void setApi_key(String api_key) {
+		checkConfigurable();
+		WorkbooksResponseCache cache = this.getResponse_cache();
+		if (cache != null && api_key != null && !api_key.equals(this.api_key)) {
+			cache.clear(); // Requests made with an API key have no session to tell one user's responses from another's
+		}
 		this.api_key = api_key;
 	}
 
@@ -1702,42 +3733,47 @@ public class WorkbooksApi {
 	}
 
 	public void setUsername(String username) {
+		checkConfigurable();
 		this.username = username;
 	}
 
 	public String getLogical_database_id() {
-		return logical_database_id;
+		return session.get().logical_database_id;
 	}
 
-	public void setLogical_database_id(String logical_database_id) {
-		this.logical_database_id = logical_database_id;
+	public synchronized void setLogical_database_id(String logical_database_id) {
+		SessionState current = session.get();
+		session.set(new SessionState(current.session_id, current.authenticity_token, current.login_state, current.database_instance_id, logical_database_id, current.from_cache));
 	}
 
 	public String getDatabase_instance_ref() throws WorkbooksApiException {
 	  this.ensureLogin();
-		int data_ref = Integer.parseInt(database_instance_id) + 17;
+		int data_ref = Integer.parseInt(session.get().database_instance_id) + 17;
 	  StringBuilder inst_ref = new StringBuilder(DatatypeConverter.printBase64Binary(Integer.toString(data_ref).getBytes()));
 		return inst_ref.reverse().toString();
 	}
 
-	public void setDatabase_instance_id(String database_instance_id) {
-		this.database_instance_id = database_instance_id;
+	public synchronized void setDatabase_instance_id(String database_instance_id) {
+		SessionState current = session.get();
+		session.set(new SessionState(current.session_id, current.authenticity_token, current.login_state, database_instance_id, current.logical_database_id, current.from_cache));
 	}
 
 	public String getAuthenticity_token() {
-		return authenticity_token;
+		return session.get().authenticity_token;
 	}
 
-	public void setAuthenticity_token(String authenticity_token) {
-		this.authenticity_token = authenticity_token;
+	public synchronized void setAuthenticity_token(String authenticity_token) {
+		SessionState current = session.get();
+		session.set(new SessionState(current.session_id, authenticity_token, current.login_state, current.database_instance_id, current.logical_database_id, current.from_cache));
 	}
 
 	public boolean isLogin_state() {
-		return login_state;
+		return session.get().login_state;
 	}
 
-	public void setLogin_state(boolean login_state) {
-		this.login_state = login_state;
+	public synchronized void setLogin_state(boolean login_state) {
+		SessionState current = session.get();
+		session.set(new SessionState(current.session_id, current.authenticity_token, login_state, current.database_instance_id, current.logical_database_id, current.from_cache));
 	}
 
 	public JsonObject getLogin_response() {
@@ -1753,6 +3789,7 @@ public class WorkbooksApi {
 	}
 
 	public void setAuto_logout(boolean auto_logout) {
+		checkConfigurable();
 		this.auto_logout = auto_logout;
 	}
 
@@ -1761,6 +3798,7 @@ public class WorkbooksApi {
 	}
 
 	public void setApplication_name(String application_name) {
+		checkConfigurable();
 		this.application_name = application_name;
 	}
 
@@ -1769,6 +3807,7 @@ public class WorkbooksApi {
 	}
 
 	public void setUser_agent(String user_agent) {
+		checkConfigurable();
 		this.user_agent = user_agent;
 	}
 
@@ -1777,22 +3816,168 @@ public class WorkbooksApi {
 	}
 
 	public void setConnect_timeout(int connect_timeout) {
+		checkConfigurable();
 		this.connect_timeout = connect_timeout;
 	}
 
+	public int getRequest_timeout() {
+		return request_timeout;
+	}
+
+	public void setRequest_timeout(int request_timeout) {
+		checkConfigurable();
+		this.request_timeout = request_timeout;
+	}
+
 	public boolean isVerify_peer() {
 		return verify_peer;
 	}
 
 	public void setVerify_peer(boolean verify_peer) {
+		checkConfigurable();
 		this.verify_peer = verify_peer;
 	}
 
+	public boolean isCompression() {
+		return compression;
+	}
+
+	public void setCompression(boolean compression) {
+		checkConfigurable();
+		this.compression = compression;
+	}
+
+	public WorkbooksCompression getRequest_compression() {
+		return request_compression;
+	}
+
+	public void setRequest_compression(WorkbooksCompression request_compression) {
+		checkConfigurable();
+		this.request_compression = request_compression;
+	}
+
+	public SSLContext getSsl_context() {
+		return ssl_context;
+	}
+
+	public synchronized void setSsl_context(SSLContext ssl_context) {
+		checkConfigurable();
+		this.ssl_context = ssl_context;
+		this.tls = null;
+	}
+
+	/**
+	 * Use a TLS configuration shared with other objects, in place of one built from the 'ssl_context', 'tls_session_cache_size' and
+	 * 'tls_session_timeout' options; see getTls().
+	 */
+	public synchronized void setTls(WorkbooksTls tls) {
+		checkConfigurable();
+		this.tls = tls;
+	}
+
+	public int getTls_session_cache_size() {
+		return tls_session_cache_size;
+	}
+
+	public synchronized void setTls_session_cache_size(int tls_session_cache_size) {
+		checkConfigurable();
+		this.tls_session_cache_size = tls_session_cache_size;
+		this.tls = null;
+	}
+
+	public int getTls_session_timeout() {
+		return tls_session_timeout;
+	}
+
+	public synchronized void setTls_session_timeout(int tls_session_timeout) {
+		checkConfigurable();
+		this.tls_session_timeout = tls_session_timeout;
+		this.tls = null;
+	}
+
+	public int getPrewarm_connections() {
+		return prewarm_connections;
+	}
+
+	public void setPrewarm_connections(int prewarm_connections) {
+		checkConfigurable();
+		this.prewarm_connections = prewarm_connections;
+	}
+
+	public long getKeep_alive_interval() {
+		return keep_alive_interval;
+	}
+
+	public void setKeep_alive_interval(long keep_alive_interval) {
+		checkConfigurable();
+		this.keep_alive_interval = keep_alive_interval;
+	}
+
+	public boolean isAuto_content_type() {
+		return auto_content_type;
+	}
+
+	public void setAuto_content_type(boolean auto_content_type) {
+		checkConfigurable();
+		this.auto_content_type = auto_content_type;
+	}
+
+	public WorkbooksJsonCodec getJson_codec() {
+		return json_codec;
+	}
+
+	public void setJson_codec(WorkbooksJsonCodec json_codec) {
+		checkConfigurable();
+		this.json_codec = json_codec;
+	}
+
+	public int getMax_url_length() {
+		return max_url_length;
+	}
+
+	public void setMax_url_length(int max_url_length) {
+		checkConfigurable();
+		this.max_url_length = max_url_length;
+	}
+
+	public boolean isHttp2() {
+		return http2;
+	}
+
+	public synchronized void setHttp2(boolean http2) {
+		checkConfigurable();
+		this.http2 = http2;
+		this.transport = null;
+		this.transport_unavailable = false;
+	}
+
+	/**
+	 * Send form-encoded requests with a transport shared with other objects, e.g. one HTTP/2 client for many WorkbooksApi objects;
+	 * null sends them with HttpURLConnection, or with a transport built on first use if 'http2' is set.
+	 */
+	public synchronized void setTransport(WorkbooksTransport transport) {
+		checkConfigurable();
+		this.transport = transport;
+		this.transport_unavailable = false;
+	}
+
+	public int getHttp2_max_streams() {
+		return http2_max_streams;
+	}
+
+	public synchronized void setHttp2_max_streams(int http2_max_streams) {
+		checkConfigurable();
+		this.http2_max_streams = http2_max_streams;
+		this.transport = null;
+		this.transport_unavailable = false;
+	}
+
 	public boolean isFast_login() {
 		return fast_login;
 	}
 
 	public void setFast_login(boolean fast_login) {
+		checkConfigurable();
 		this.fast_login = fast_login;
 	}
 
@@ -1801,6 +3986,7 @@ public class WorkbooksApi {
 	}
 
 	public void setService(String service) {
+		checkConfigurable();
 		this.service = service;
 	}
 
@@ -1826,12 +4012,170 @@ public class WorkbooksApi {
 	}
 
 	public void setJsonPretty(String jsonPretty) {
+		checkConfigurable();
 		this.jsonPretty = jsonPretty;
 	}
 	public int getApi_version() {
 		return api_version;
 	}
 	public void setApi_version(int api_version) {
+		checkConfigurable();
 		this.api_version = api_version;
 	}
+
+	public WorkbooksMetadataCache getMetadata_cache() {
+		return metadata_cache;
+	}
+
+	public void setMetadata_cache(WorkbooksMetadataCache metadata_cache) {
+		checkConfigurable();
+		this.metadata_cache = metadata_cache;
+	}
+
+	public WorkbooksSessionCache getSession_cache() {
+		return session_cache;
+	}
+
+	public void setSession_cache(WorkbooksSessionCache session_cache) {
+		checkConfigurable();
+		this.session_cache = session_cache;
+	}
+
+	public WorkbooksIdentityMap getIdentity_map() {
+		return identity_map;
+	}
+
+	public void setIdentity_map(WorkbooksIdentityMap identity_map) {
+		checkConfigurable();
+		this.identity_map = identity_map;
+	}
+
+	public boolean isSingle_flight() {
+		return single_flight;
+	}
+
+	public void setSingle_flight(boolean single_flight) {
+		checkConfigurable();
+		this.single_flight = single_flight;
+	}
+
+	public WorkbooksResponseCache getResponse_cache() {
+		return response_cache;
+	}
+
+	public void setResponse_cache(WorkbooksResponseCache response_cache) {
+		checkConfigurable();
+		this.response_cache = response_cache;
+	}
+
+	public WorkbooksMetrics getMetrics() {
+		return metrics;
+	}
+
+	public synchronized void setMetrics(WorkbooksMetrics metrics) {
+		checkConfigurable();
+		this.metrics = metrics;
+		this.tls = null; // Record handshakes in the new metrics
+	}
+
+	public boolean isAuto_relogin() {
+		return auto_relogin;
+	}
+
+	public void setAuto_relogin(boolean auto_relogin) {
+		checkConfigurable();
+		this.auto_relogin = auto_relogin;
+	}
+
+	public WorkbooksRetryPolicy getRetry_policy() {
+		return retry_policy;
+	}
+
+	public void setRetry_policy(WorkbooksRetryPolicy retry_policy) {
+		checkConfigurable();
+		this.retry_policy = retry_policy;
+	}
+
+	public WorkbooksConcurrencyLimiter getConcurrency_limiter() {
+		return concurrency_limiter;
+	}
+
+	/**
+	 * Set the adaptive concurrency limiter, or null for none. Its limit and the requests in progress are reported in the metrics
+	 * as 'concurrency_limit' and 'concurrency_in_flight'.
+	 */
+	public void setConcurrency_limiter(final WorkbooksConcurrencyLimiter concurrency_limiter) {
+		checkConfigurable();
+		this.concurrency_limiter = concurrency_limiter;
+		if (concurrency_limiter != null) {
+			this.getMetrics().gauge("concurrency_limit", new WorkbooksMetrics.Gauge() {
+				public long value() {
+					return concurrency_limiter.getLimit();
+				}
+			});
+			this.getMetrics().gauge("concurrency_in_flight", new WorkbooksMetrics.Gauge() {
+				public long value() {
+					return concurrency_limiter.getIn_flight();
+				}
+			});
+		}
+	}
+
+	public WorkbooksRateLimiter getRate_limiter() {
+		return rate_limiter;
+	}
+
+	/**
+	 * Set the rate limiter, or null for none. The fraction of its burst in use is reported in the metrics as 'rate_limit_utilisation',
+	 * a percentage.
+	 */
+	public void setRate_limiter(final WorkbooksRateLimiter rate_limiter) {
+		checkConfigurable();
+		this.rate_limiter = rate_limiter;
+		if (rate_limiter != null) {
+			this.getMetrics().gauge("rate_limit_utilisation", new WorkbooksMetrics.Gauge() {
+				public long value() {
+					return Math.round(rate_limiter.getUtilisation() * 100);
+				}
+			});
+		}
+	}
+
+	public WorkbooksCircuitBreaker getCircuit_breaker() {
+		return circuit_breaker;
+	}
+
+	/**
+	 * Set the circuit breaker, or null for none; one breaker may be shared by several objects. Its state is reported in the metrics as
+	 * 'circuit_state': 0 closed, 1 open, 2 half-open.
+	 */
+	public void setCircuit_breaker(final WorkbooksCircuitBreaker circuit_breaker) {
+		checkConfigurable();
+		this.circuit_breaker = circuit_breaker;
+		if (circuit_breaker != null) {
+			this.getMetrics().gauge("circuit_state", new WorkbooksMetrics.Gauge() {
+				public long value() {
+					return circuit_breaker.getState().ordinal();
+				}
+			});
+		}
+	}
+
+	public WorkbooksHedging getHedging() {
+		return hedging;
+	}
+
+	public void setHedging(WorkbooksHedging hedging) {
+		checkConfigurable();
+		this.hedging = hedging;
+	}
+
+	public boolean isHedge_gets() {
+		return hedge_gets;
+	}
+
+	public void setHedge_gets(boolean hedge_gets) {
+		checkConfigurable();
+		this.hedge_gets = hedge_gets;
+	}
 }
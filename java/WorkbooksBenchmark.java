@@ -0,0 +1,173 @@
+package workbooks_app.client_lib.java;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.util.HashMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ *	Measures the memory allocated, and the time taken, by the client for each GET to a local server which returns a
+ *  fixed response, so that changes to the request path can be checked for regressions. Only allocation by the calling
+ *  thread is counted, which includes that of HttpURLConnection; the bytes of the response text itself are reported
+ *  separately from the overhead of the request. Then compares the rate at which each WorkbooksJsonCodec decodes a
+ *  large response.
+ *
+ *  Usage: java workbooks_app.client_lib.java.WorkbooksBenchmark [requests] [response_bytes] [max_overhead_bytes]
+ *           [max_decoded_overhead_bytes]
+ *
+ *  Exits with a status of 1 if the overhead of a GET exceeds its budget: max_overhead_bytes for an undecoded GET, by
+ *  default 32000, and max_decoded_overhead_bytes for a GET decoded by the default codec, by default 41000. A budget of
+ *  -1 is not checked. The defaults are about 15% above the largest overheads measured in three runs of the defaults on
+ *  OpenJDK 17, 27,438 and 35,475 bytes, so that a regression of a few kilobytes fails while run-to-run noise does not.
+ *  Most of the undecoded overhead is that of HttpURLConnection itself. Requires a JVM which can report the memory
+ *  allocated by a thread, as HotSpot does.
+ *
+ * 	License: www.workbooks.com/mit_license
+ * 	Last commit $Id$
+ */
+
+public class WorkbooksBenchmark {
+
+	public static void main(String[] args) throws Exception {
+		int requests = args.length > 0 ? Integer.parseInt(args[0]) : 20000;
+		int response_bytes = args.length > 1 ? Integer.parseInt(args[1]) : 2048;
+		long max_overhead_bytes = args.length > 2 ? Long.parseLong(args[2]) : 32000;
+		long max_decoded_overhead_bytes = args.length > 3 ? Long.parseLong(args[3]) : 41000;
+
+		com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+		if (!threads.isThreadAllocatedMemorySupported()) {
+			System.err.println("This JVM cannot report the memory allocated by a thread");
+			System.exit(2);
+		}
+		threads.setThreadAllocatedMemoryEnabled(true);
+
+		final byte[] body = responseOf(response_bytes);
+		long text_bytes = textBytes(body, threads);
+		System.setProperty("sun.net.httpserver.nodelay", "true"); // Otherwise each response waits for a delayed ACK
+		HttpServer server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+		server.createContext("/", new HttpHandler() {
+			public void handle(HttpExchange exchange) throws IOException {
+				while (exchange.getRequestBody().read() >= 0) {
+					// Read the request in full so that the connection can be reused
+				}
+				exchange.getResponseHeaders().set("Content-Type", "application/json");
+				exchange.sendResponseHeaders(200, body.length);
+				OutputStream out = exchange.getResponseBody();
+				out.write(body);
+				out.close();
+			}
+		});
+		server.start();
+
+		// Every request is otherwise logged at INFO; measure the request rather than the console
+		Logger.getLogger(WorkbooksApi.class.getName()).setLevel(Level.WARNING);
+
+		HashMap<String, Object> params = new HashMap<String, Object>();
+		params.put("application_name", "benchmark");
+		params.put("user_agent", "benchmark/1.0");
+		params.put("service", "http://127.0.0.1:" + server.getAddress().getPort());
+		params.put("api_key", "01234-56789-01234-56789-01234-56789-01234-56789");
+		WorkbooksApi workbooks = new WorkbooksApi(params);
+
+		HashMap<String, Object> filter = new HashMap<String, Object>();
+		filter.put("_start", "0");
+		filter.put("_limit", "100");
+		filter.put("_sort", "id");
+		filter.put("_dir", "ASC");
+		filter.put("_select_columns[]", "id");
+		HashMap<String, Object> undecoded = new HashMap<String, Object>();
+		undecoded.put("decode_json", false);
+
+		boolean within_budget = true;
+		try {
+			String[] names = { "GET, undecoded", "GET, decoded" };
+			HashMap<?, ?>[] options = { undecoded, null };
+			long[] budgets = { max_overhead_bytes, max_decoded_overhead_bytes };
+			for (int i = 0; i < names.length; i++) {
+				@SuppressWarnings("unchecked")
+				HashMap<String, Object> call_options = (HashMap<String, Object>) options[i];
+				run(workbooks, filter, call_options, requests / 4, threads); // Warm up
+				long[] result = run(workbooks, filter, call_options, requests, threads);
+				long per_request = result[0] / requests;
+				long overhead = per_request - text_bytes;
+				System.out.println(String.format("%-16s %8d requests/s %10d bytes allocated per request, %8d beyond the response text",
+						names[i], requests * 1000000000L / Math.max(1, result[1]), per_request, overhead));
+				if (budgets[i] >= 0 && overhead > budgets[i]) {
+					System.out.println("Overhead exceeds " + budgets[i] + " bytes per request");
+					within_budget = false;
+				}
+			}
+		} finally {
+			workbooks.close();
+			server.stop(0);
+		}
+
+		String large = new String(responseOf(Math.max(response_bytes, 4 << 20)), WorkbooksApi.CHARSET);
+		WorkbooksJsonCodec[] codecs = { new WorkbooksJsonCodec.ReaderCodec(), new WorkbooksJsonParser() };
+		for (WorkbooksJsonCodec codec : codecs) {
+			decode(codec, large, 5); // Warm up
+			long nanos = decode(codec, large, 20);
+			System.out.println(String.format("%-20s %8d MB/s decoding a %d byte response", codec.getClass().getSimpleName(),
+					20L * large.length() * 1000 / Math.max(1, nanos), large.length()));
+		}
+		System.exit(within_budget ? 0 : 1);
+	}
+
+	/**
+	 * @return long - the nanoseconds taken to decode the text the given number of times
+	 */
+	private static long decode(WorkbooksJsonCodec codec, String json, int times) {
+		long start = System.nanoTime();
+		for (int i = 0; i < times; i++) {
+			codec.decode(json);
+		}
+		return System.nanoTime() - start;
+	}
+
+	/**
+	 * @return long[] - the bytes allocated by this thread, and the nanoseconds taken, to make the requests
+	 */
+	private static long[] run(WorkbooksApi workbooks, HashMap<String, Object> filter, HashMap<String, Object> options, int requests,
+			com.sun.management.ThreadMXBean threads) throws Exception {
+		long thread_id = Thread.currentThread().getId();
+		long allocated = threads.getThreadAllocatedBytes(thread_id);
+		long start = System.nanoTime();
+		for (int i = 0; i < requests; i++) {
+			workbooks.get("crm/organisations", filter, options);
+		}
+		long elapsed = System.nanoTime() - start;
+		return new long[] { threads.getThreadAllocatedBytes(thread_id) - allocated, elapsed };
+	}
+
+	/**
+	 * @return long - the bytes allocated for the text of a response, which depends on how the JVM stores strings
+	 */
+	private static long textBytes(byte[] body, com.sun.management.ThreadMXBean threads) throws IOException {
+		long thread_id = Thread.currentThread().getId();
+		long allocated = threads.getThreadAllocatedBytes(thread_id);
+		new String(body, WorkbooksApi.CHARSET);
+		return threads.getThreadAllocatedBytes(thread_id) - allocated;
+	}
+
+	/**
+	 * @return byte[] - a response of about the given size, listing organisations
+	 */
+	private static byte[] responseOf(int size) throws IOException {
+		StringBuilder json = new StringBuilder("{\"success\":true,\"total\":1000,\"data\":[");
+		for (int id = 1; json.length() < size - 40; id++) {
+			if (id > 1) {
+				json.append(',');
+			}
+			json.append("{\"id\":").append(id).append(",\"lock_version\":1,\"name\":\"Organisation ").append(id).append("\"}");
+		}
+		json.append("]}");
+		return json.toString().getBytes(WorkbooksApi.CHARSET);
+	}
+}
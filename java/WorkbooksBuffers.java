@@ -0,0 +1,97 @@
+package workbooks_app.client_lib.java;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+/**
+ *	Buffers which each thread reuses from one request to the next, so that building a request and reading its
+ *  response allocate little beyond the text of the response itself. A buffer which has grown large for one request is
+ *  not kept for the next, so that a thread does not hold on to the memory used by an unusually large response.
+ *
+ *  A buffer is only used within a single method and is not held across a call to another method which may use it.
+ *
+ * 	License: www.workbooks.com/mit_license
+ * 	Last commit $Id$
+ */
+
+public class WorkbooksBuffers {
+
+	public static final int BUFFER_SIZE = 8192;
+	public static final int MAX_RETAINED_SIZE = 1048576; // bytes or chars; larger buffers are discarded after use
+
+	private static final Charset UTF_8 = Charset.forName(WorkbooksApi.CHARSET);
+
+	private static final ThreadLocal<WorkbooksBuffers> buffers = new ThreadLocal<WorkbooksBuffers>() {
+		protected WorkbooksBuffers initialValue() {
+			return new WorkbooksBuffers();
+		}
+	};
+
+	private final byte[] chunk = new byte[BUFFER_SIZE];
+	private byte[] bytes = new byte[BUFFER_SIZE];
+	private StringBuilder text = new StringBuilder(BUFFER_SIZE / 8);
+
+	private WorkbooksBuffers() {
+	}
+
+	/**
+	 * @return WorkbooksBuffers - the buffers of the current thread
+	 */
+	public static WorkbooksBuffers get() {
+		return buffers.get();
+	}
+
+	/**
+	 * @return StringBuilder - an empty builder, e.g. for a query string; take its contents with toString() before calling
+	 *  anything else which may use it
+	 */
+	public StringBuilder text() {
+		if (text.capacity() > MAX_RETAINED_SIZE) {
+			text = new StringBuilder(BUFFER_SIZE / 8);
+		}
+		text.setLength(0);
+		return text;
+	}
+
+	/**
+	 * Read a stream to its end and decode it as UTF-8. The stream is not closed.
+	 *
+	 * @return String - the text read
+	 * @throws IOException
+	 */
+	public String readText(InputStream in) throws IOException {
+		int length = 0;
+		int n;
+		while ((n = in.read(bytes, length, bytes.length - length)) >= 0) {
+			length += n;
+			if (length == bytes.length) {
+				bytes = Arrays.copyOf(bytes, bytes.length * 2);
+			}
+		}
+		String read = new String(bytes, 0, length, UTF_8);
+		if (bytes.length > MAX_RETAINED_SIZE) {
+			bytes = new byte[BUFFER_SIZE];
+		}
+		return read;
+	}
+
+	/**
+	 * Write each char of a string as one byte, as DataOutputStream.writeBytes() does, but in blocks rather than a byte
+	 * at a time. Intended for text which is already encoded, e.g. a form-encoded request body.
+	 *
+	 * @throws IOException
+	 */
+	public void writeAscii(OutputStream out, String ascii) throws IOException {
+		int length = ascii.length();
+		for (int start = 0; start < length; start += chunk.length) {
+			int end = Math.min(length, start + chunk.length);
+			for (int i = start; i < end; i++) {
+				chunk[i - start] = (byte) ascii.charAt(i);
+			}
+			out.write(chunk, 0, end - start);
+		}
+	}
+}
@@ -0,0 +1,102 @@
+package workbooks_app.client_lib.java;
+
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ *	Lets a request be cancelled from another thread. Pass a token as the 'cancellation_token' option of apiCall(), get()
+ *  etc.; calling cancel() then closes the request's connection, so that a thread blocked sending or receiving is
+ *  released at once, and the request fails with a WorkbooksApiException of type 'CancelledException'.
+ *
+ * 	License: www.workbooks.com/mit_license
+ * 	Last commit $Id$
+ */
+
+public class WorkbooksCancellationToken {
+
+	/**
+	 * Called once when the token is cancelled, in the thread which cancels it.
+	 */
+	public interface Listener {
+		void cancelled();
+	}
+
+	private volatile boolean cancelled = false;
+	private final CopyOnWriteArrayList<Listener> listeners = new CopyOnWriteArrayList<Listener>();
+	private volatile WorkbooksCancellationToken parent = null; // set by child(), until detached
+	private Listener propagate = null; // the listener by which the parent cancels this token
+
+	/**
+	 * Cancel the requests using this token. Has no effect on a request which has already completed.
+	 */
+	public void cancel() {
+		synchronized (this) {
+			if (cancelled) {
+				return;
+			}
+			cancelled = true;
+		}
+		for (Listener listener : listeners) {
+			try {
+				listener.cancelled();
+			} catch (RuntimeException e) {
+				// Carry on cancelling
+			}
+		}
+		listeners.clear();
+	}
+
+	public boolean isCancelled() {
+		return cancelled;
+	}
+
+	/**
+	 * Add a listener to be called on cancellation; it is called at once if the token has already been cancelled.
+	 */
+	public void addListener(Listener listener) {
+		synchronized (this) {
+			if (!cancelled) {
+				listeners.add(listener);
+				return;
+			}
+		}
+		listener.cancelled();
+	}
+
+	public void removeListener(Listener listener) {
+		listeners.remove(listener);
+	}
+
+	/**
+	 * @return WorkbooksCancellationToken - a token which is cancelled with this one, and may also be cancelled on its own. Once the
+	 *         work it covers is done, call detach() on it, or cancel it, so that this token no longer holds on to it.
+	 */
+	public WorkbooksCancellationToken child() {
+		final WorkbooksCancellationToken child = new WorkbooksCancellationToken();
+		final Listener propagate = new Listener() {
+			public void cancelled() {
+				child.cancel();
+			}
+		};
+		child.parent = this;
+		child.propagate = propagate;
+		addListener(propagate);
+		child.addListener(new Listener() {
+			public void cancelled() {
+				child.detach();
+			}
+		});
+		return child;
+	}
+
+	/**
+	 * Stop a token made by child() from being cancelled with its parent, e.g. once the request it covers has completed. Has no
+	 * effect on a token which is not a child.
+	 */
+	public void detach() {
+		WorkbooksCancellationToken from = parent;
+		if (from != null) {
+			from.removeListener(propagate);
+			parent = null;
+		}
+	}
+}
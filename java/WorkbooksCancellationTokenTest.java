@@ -0,0 +1,92 @@
+package workbooks_app.client_lib.java;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ *	Unit tests of WorkbooksCancellationToken: listeners, and the cancelling and detaching of child tokens.
+ *
+ * 	License: www.workbooks.com/mit_license
+ * 	Last commit $Id$
+ */
+
+public class WorkbooksCancellationTokenTest {
+
+	static TestAssertHelper test = new TestAssertHelper();
+
+	public static void main(String[] args) {
+		testListeners();
+		testChild();
+		testDetach();
+		test.testExit(WorkbooksCancellationTokenTest.class);
+	}
+
+	static WorkbooksCancellationToken.Listener counter(final AtomicInteger count) {
+		return new WorkbooksCancellationToken.Listener() {
+			public void cancelled() {
+				count.incrementAndGet();
+			}
+		};
+	}
+
+	static void testListeners() {
+		WorkbooksCancellationToken token = new WorkbooksCancellationToken();
+		AtomicInteger count = new AtomicInteger();
+		token.addListener(counter(count));
+		token.addListener(new WorkbooksCancellationToken.Listener() {
+			public void cancelled() {
+				throw new RuntimeException("A failing listener");
+			}
+		});
+		token.addListener(counter(count));
+		token.cancel();
+		token.cancel();
+		test.check(token.isCancelled(), "the token is cancelled");
+		test.checkEqual(2, count.get(), "each listener is called once, despite a failing one");
+		token.addListener(counter(count));
+		test.checkEqual(3, count.get(), "a listener added after cancellation is called at once");
+
+		WorkbooksCancellationToken other = new WorkbooksCancellationToken();
+		AtomicInteger removed = new AtomicInteger();
+		WorkbooksCancellationToken.Listener listener = counter(removed);
+		other.addListener(listener);
+		other.removeListener(listener);
+		other.cancel();
+		test.checkEqual(0, removed.get(), "a removed listener is not called");
+	}
+
+	static void testChild() {
+		WorkbooksCancellationToken parent = new WorkbooksCancellationToken();
+		WorkbooksCancellationToken child = parent.child();
+		WorkbooksCancellationToken sibling = parent.child();
+		child.cancel();
+		test.check(child.isCancelled(), "a child may be cancelled on its own");
+		test.check(!parent.isCancelled() && !sibling.isCancelled(), "cancelling a child leaves its parent and siblings alone");
+		parent.cancel();
+		test.check(sibling.isCancelled(), "cancelling the parent cancels its children");
+
+		WorkbooksCancellationToken cancelled = new WorkbooksCancellationToken();
+		cancelled.cancel();
+		test.check(cancelled.child().isCancelled(), "a child of a cancelled token is cancelled at once");
+	}
+
+	static void testDetach() {
+		WorkbooksCancellationToken parent = new WorkbooksCancellationToken();
+		WorkbooksCancellationToken child = parent.child();
+		child.detach();
+		child.detach();
+		parent.cancel();
+		test.check(!child.isCancelled(), "a detached child is not cancelled with its parent");
+
+		WorkbooksCancellationToken token = new WorkbooksCancellationToken();
+		token.detach();
+		test.check(!token.isCancelled(), "detaching a token which is not a child has no effect");
+
+		WorkbooksCancellationToken long_lived = new WorkbooksCancellationToken();
+		for (int i = 0; i < 100000; i++) {
+			long_lived.child().detach();
+		}
+		WorkbooksCancellationToken last = long_lived.child();
+		long_lived.cancel();
+		test.check(last.isCancelled(), "a child still attached after many detached ones is cancelled");
+	}
+}
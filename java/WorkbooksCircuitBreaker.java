@@ -0,0 +1,208 @@
+package workbooks_app.client_lib.java;
+
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ *	A circuit breaker around the service, so that during an outage requests fail at once instead of each waiting for
+ *  its own timeout.
+ *
+ *  While CLOSED every request is allowed and the outcomes of the most recent are kept. Once enough have been seen, the
+ *  circuit OPENs if the share which failed (HTTP 429 or 5xx, or no response), or the share which were slow, reaches
+ *  its threshold. While OPEN no request is allowed. After the open duration the circuit is HALF_OPEN: a few probe
+ *  requests are allowed through, and it closes again if they all succeed promptly, or re-opens if any does not.
+ *
+ * 	License: www.workbooks.com/mit_license
+ * 	Last commit $Id$
+ */
+
+public class WorkbooksCircuitBreaker {
+
+	public enum State {
+		CLOSED, OPEN, HALF_OPEN
+	}
+
+	/**
+	 * Told of each change of state, e.g. to pause taking work from a queue while the circuit is open. Called in the thread
+	 * whose request caused the change, so it should return promptly.
+	 */
+	public interface Listener {
+		void stateChanged(State from, State to);
+	}
+
+	public static final int DEFAULT_FAILURE_RATE = 50; // percent
+	public static final int DEFAULT_SLOW_CALL_RATE = 100; // percent
+	public static final long DEFAULT_SLOW_CALL_DURATION = 60000L; // 1 minute
+	public static final int DEFAULT_WINDOW = 20;
+	public static final int DEFAULT_MINIMUM_CALLS = 10;
+	public static final long DEFAULT_OPEN_DURATION = 30000L; // 30 seconds
+	public static final int DEFAULT_HALF_OPEN_CALLS = 3;
+
+	private final int failure_rate;
+	private final int slow_call_rate;
+	private final long slow_call_duration;
+	private final int minimum_calls;
+	private final long open_duration;
+	private final int half_open_calls;
+	private final CopyOnWriteArrayList<Listener> listeners = new CopyOnWriteArrayList<Listener>();
+
+	// The outcomes of the most recent calls, in a ring
+	private final boolean[] failed;
+	private final boolean[] slow;
+	private int recorded = 0;
+	private int next = 0;
+	private int failures = 0;
+	private int slow_calls = 0;
+
+	private State state = State.CLOSED;
+	private long opened_at = 0;
+	private int probes_allowed = 0;
+	private int probes_succeeded = 0;
+
+	public WorkbooksCircuitBreaker() {
+		this(DEFAULT_FAILURE_RATE, DEFAULT_SLOW_CALL_RATE, DEFAULT_SLOW_CALL_DURATION, DEFAULT_WINDOW, DEFAULT_MINIMUM_CALLS, DEFAULT_OPEN_DURATION,
+				DEFAULT_HALF_OPEN_CALLS);
+	}
+
+	/**
+	 * @param failure_rate - the percentage of failed calls at which the circuit opens
+	 * @param slow_call_rate - the percentage of slow calls at which the circuit opens; over 100 to ignore slow calls
+	 * @param slow_call_duration - how long, in milliseconds, a call takes to count as slow
+	 * @param window - the number of recent calls considered
+	 * @param minimum_calls - the number of calls which must be seen before the circuit can open
+	 * @param open_duration - how long, in milliseconds, the circuit stays open before allowing probes
+	 * @param half_open_calls - the number of probes allowed, all of which must succeed to close the circuit
+	 */
+	public WorkbooksCircuitBreaker(int failure_rate, int slow_call_rate, long slow_call_duration, int window, int minimum_calls, long open_duration,
+			int half_open_calls) {
+		this.failure_rate = failure_rate;
+		this.slow_call_rate = slow_call_rate;
+		this.slow_call_duration = slow_call_duration;
+		this.failed = new boolean[Math.max(1, window)];
+		this.slow = new boolean[Math.max(1, window)];
+		this.minimum_calls = Math.min(Math.max(1, minimum_calls), this.failed.length);
+		this.open_duration = open_duration;
+		this.half_open_calls = Math.max(1, half_open_calls);
+	}
+
+	public void addListener(Listener listener) {
+		listeners.add(listener);
+	}
+
+	public void removeListener(Listener listener) {
+		listeners.remove(listener);
+	}
+
+	/**
+	 * Ask to make a call. A caller which is allowed must report its outcome with record().
+	 *
+	 * @return boolean - true if the call may be made, false if the circuit is open
+	 */
+	public boolean tryAcquire() {
+		State from;
+		synchronized (this) {
+			from = state;
+			if (state == State.CLOSED) {
+				return true;
+			}
+			if (state == State.OPEN) {
+				if (System.currentTimeMillis() - opened_at < open_duration) {
+					return false;
+				}
+				state = State.HALF_OPEN;
+				probes_allowed = 0;
+				probes_succeeded = 0;
+			}
+			if (probes_allowed >= half_open_calls) {
+				return false;
+			}
+			probes_allowed++;
+		}
+		if (from != State.HALF_OPEN) {
+			notifyListeners(from, State.HALF_OPEN);
+		}
+		return true;
+	}
+
+	/**
+	 * Report the outcome of a call allowed by tryAcquire().
+	 *
+	 * @param outcome - SUCCESS, OVERLOAD (a failure), or IGNORE for a call which says nothing about the health of the service
+	 * @param duration - how long the call took in milliseconds
+	 */
+	public void record(WorkbooksConcurrencyLimiter.Outcome outcome, long duration) {
+		boolean is_failure = outcome == WorkbooksConcurrencyLimiter.Outcome.OVERLOAD;
+		boolean is_slow = duration >= slow_call_duration;
+		State from;
+		State to;
+		synchronized (this) {
+			from = state;
+			if (state == State.HALF_OPEN) {
+				if (outcome == WorkbooksConcurrencyLimiter.Outcome.IGNORE) {
+					probes_allowed--; // Let another probe through in its place
+				} else if (is_failure || is_slow) {
+					open();
+				} else if (++probes_succeeded >= half_open_calls) {
+					close();
+				}
+			} else if (state == State.CLOSED && outcome != WorkbooksConcurrencyLimiter.Outcome.IGNORE) {
+				if (recorded == failed.length) {
+					failures -= failed[next] ? 1 : 0;
+					slow_calls -= slow[next] ? 1 : 0;
+				} else {
+					recorded++;
+				}
+				failed[next] = is_failure;
+				slow[next] = is_slow;
+				failures += is_failure ? 1 : 0;
+				slow_calls += is_slow ? 1 : 0;
+				next = (next + 1) % failed.length;
+				if (recorded >= minimum_calls && (failures * 100 >= failure_rate * recorded || slow_calls * 100 >= slow_call_rate * recorded)) {
+					open();
+				}
+			}
+			to = state;
+		}
+		if (from != to) {
+			notifyListeners(from, to);
+		}
+	}
+
+	public synchronized State getState() {
+		if (state == State.OPEN && System.currentTimeMillis() - opened_at >= open_duration) {
+			return State.HALF_OPEN; // as it will be for the next call
+		}
+		return state;
+	}
+
+	/**
+	 * @return long - how long, in milliseconds, until probes will be allowed, or 0 if the circuit is not open
+	 */
+	public synchronized long getRemaining_open() {
+		return state == State.OPEN ? Math.max(0, open_duration - (System.currentTimeMillis() - opened_at)) : 0;
+	}
+
+	// Callers hold the lock
+	private void open() {
+		state = State.OPEN;
+		opened_at = System.currentTimeMillis();
+	}
+
+	// Callers hold the lock
+	private void close() {
+		state = State.CLOSED;
+		recorded = 0;
+		next = 0;
+		failures = 0;
+		slow_calls = 0;
+	}
+
+	private void notifyListeners(State from, State to) {
+		for (Listener listener : listeners) {
+			try {
+				listener.stateChanged(from, to);
+			} catch (RuntimeException e) {
+				// A failing listener must not break the request path
+			}
+		}
+	}
+}
@@ -0,0 +1,225 @@
+package workbooks_app.client_lib.java;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+
+import workbooks_app.client_lib.java.WorkbooksCircuitBreaker.State;
+import workbooks_app.client_lib.java.WorkbooksConcurrencyLimiter.Outcome;
+
+/**
+ *	Unit tests of WorkbooksCircuitBreaker: opening on failed or slow calls, the half-open probes, and closing or
+ *  re-opening on their outcomes.
+ *
+ * 	License: www.workbooks.com/mit_license
+ * 	Last commit $Id$
+ */
+
+public class WorkbooksCircuitBreakerTest {
+
+	static TestAssertHelper test = new TestAssertHelper();
+
+	public static void main(String[] args) throws Exception {
+		testOpensOnFailures();
+		testMinimumCalls();
+		testWindow();
+		testSlowCalls();
+		testHalfOpen();
+		testListeners();
+		testTimeouts();
+		test.testExit(WorkbooksCircuitBreakerTest.class);
+	}
+
+	/**
+	 * A breaker which opens at a 50% failure rate over the last 10 calls, once 4 have been seen, and stays open for 50ms.
+	 */
+	static WorkbooksCircuitBreaker breaker() {
+		return new WorkbooksCircuitBreaker(50, 101, 1000, 10, 4, 50, 2);
+	}
+
+	static void call(WorkbooksCircuitBreaker breaker, Outcome outcome, long duration) {
+		if (breaker.tryAcquire()) {
+			breaker.record(outcome, duration);
+		}
+	}
+
+	static void testOpensOnFailures() {
+		WorkbooksCircuitBreaker breaker = breaker();
+		call(breaker, Outcome.SUCCESS, 10);
+		call(breaker, Outcome.OVERLOAD, 10);
+		call(breaker, Outcome.SUCCESS, 10);
+		test.checkEqual(State.CLOSED, breaker.getState(), "closed below the minimum number of calls");
+		call(breaker, Outcome.OVERLOAD, 10);
+		test.checkEqual(State.OPEN, breaker.getState(), "opens when half of the calls have failed");
+		test.check(!breaker.tryAcquire(), "no call is allowed while open");
+		long remaining = breaker.getRemaining_open();
+		test.check(remaining > 0 && remaining <= 50, "the time until probes is reported (" + remaining + "ms)");
+	}
+
+	static void testMinimumCalls() {
+		WorkbooksCircuitBreaker breaker = breaker();
+		for (int i = 0; i < 3; i++) {
+			call(breaker, Outcome.OVERLOAD, 10);
+		}
+		test.checkEqual(State.CLOSED, breaker.getState(), "three failures are fewer than the minimum calls");
+		for (int i = 0; i < 20; i++) {
+			call(breaker, Outcome.IGNORE, 10);
+		}
+		test.checkEqual(State.CLOSED, breaker.getState(), "ignored calls are not counted");
+		call(breaker, Outcome.OVERLOAD, 10);
+		test.checkEqual(State.OPEN, breaker.getState(), "the fourth failure opens the circuit");
+	}
+
+	static void testWindow() {
+		WorkbooksCircuitBreaker breaker = breaker();
+		for (int i = 0; i < 4; i++) {
+			call(breaker, Outcome.SUCCESS, 10);
+			call(breaker, Outcome.SUCCESS, 10);
+			call(breaker, Outcome.OVERLOAD, 10);
+		}
+		test.checkEqual(State.CLOSED, breaker.getState(), "a third of calls failing leaves the circuit closed");
+		for (int i = 0; i < 10; i++) {
+			call(breaker, Outcome.SUCCESS, 10);
+		}
+		for (int i = 0; i < 4; i++) {
+			call(breaker, Outcome.OVERLOAD, 10);
+		}
+		test.checkEqual(State.CLOSED, breaker.getState(), "old failures have left the window");
+		call(breaker, Outcome.OVERLOAD, 10);
+		test.checkEqual(State.OPEN, breaker.getState(), "five failures in the last ten calls open the circuit");
+	}
+
+	static void testSlowCalls() {
+		WorkbooksCircuitBreaker breaker = new WorkbooksCircuitBreaker(101, 50, 100, 10, 4, 50, 2);
+		for (int i = 0; i < 3; i++) {
+			call(breaker, Outcome.OVERLOAD, 10);
+		}
+		call(breaker, Outcome.SUCCESS, 10);
+		test.checkEqual(State.CLOSED, breaker.getState(), "failures are ignored when the failure rate is over 100");
+		call(breaker, Outcome.SUCCESS, 100);
+		call(breaker, Outcome.SUCCESS, 150);
+		test.checkEqual(State.CLOSED, breaker.getState(), "two slow calls in six leave the circuit closed");
+		call(breaker, Outcome.SUCCESS, 500);
+		call(breaker, Outcome.SUCCESS, 500);
+		test.checkEqual(State.OPEN, breaker.getState(), "half of the calls being slow opens the circuit");
+	}
+
+	static void testHalfOpen() throws Exception {
+		WorkbooksCircuitBreaker breaker = opened();
+		Thread.sleep(60);
+		test.checkEqual(State.HALF_OPEN, breaker.getState(), "half open after the open duration");
+		test.check(breaker.tryAcquire(), "the first probe is allowed");
+		test.check(breaker.tryAcquire(), "the second probe is allowed");
+		test.check(!breaker.tryAcquire(), "a third call waits for the probes");
+		breaker.record(Outcome.IGNORE, 10);
+		test.check(breaker.tryAcquire(), "an ignored probe lets another through");
+		breaker.record(Outcome.SUCCESS, 10);
+		test.checkEqual(State.HALF_OPEN, breaker.getState(), "still half open after one successful probe");
+		breaker.record(Outcome.SUCCESS, 10);
+		test.checkEqual(State.CLOSED, breaker.getState(), "closes when every probe succeeds");
+		for (int i = 0; i < 3; i++) {
+			call(breaker, Outcome.OVERLOAD, 10);
+		}
+		test.checkEqual(State.CLOSED, breaker.getState(), "the calls before the circuit opened are forgotten on closing");
+
+		breaker = opened();
+		Thread.sleep(60);
+		breaker.tryAcquire();
+		breaker.record(Outcome.OVERLOAD, 10);
+		test.checkEqual(State.OPEN, breaker.getState(), "re-opens when a probe fails");
+
+		breaker = opened();
+		Thread.sleep(60);
+		breaker.tryAcquire();
+		breaker.record(Outcome.SUCCESS, 5000);
+		test.checkEqual(State.OPEN, breaker.getState(), "re-opens when a probe is slow");
+	}
+
+	static void testListeners() throws Exception {
+		WorkbooksCircuitBreaker breaker = breaker();
+		final ArrayList<String> changes = new ArrayList<String>();
+		breaker.addListener(new WorkbooksCircuitBreaker.Listener() {
+			public void stateChanged(State from, State to) {
+				changes.add(from + ">" + to);
+			}
+		});
+		breaker.addListener(new WorkbooksCircuitBreaker.Listener() {
+			public void stateChanged(State from, State to) {
+				throw new RuntimeException("A failing listener");
+			}
+		});
+		for (int i = 0; i < 4; i++) {
+			call(breaker, Outcome.OVERLOAD, 10);
+		}
+		Thread.sleep(60);
+		call(breaker, Outcome.SUCCESS, 10);
+		call(breaker, Outcome.SUCCESS, 10);
+		test.checkEqual("[CLOSED>OPEN, OPEN>HALF_OPEN, HALF_OPEN>CLOSED]", changes.toString(), "listeners are told of each change");
+	}
+
+	static WorkbooksCircuitBreaker opened() {
+		WorkbooksCircuitBreaker breaker = breaker();
+		for (int i = 0; i < 4; i++) {
+			call(breaker, Outcome.OVERLOAD, 10);
+		}
+		return breaker;
+	}
+
+	/**
+	 * A WorkbooksApi whose every request times out, as it does when the service stops answering.
+	 */
+	static class TimingOutApi extends WorkbooksApi {
+		TimingOutApi(HashMap<String, Object> params) throws Exception {
+			super(params);
+		}
+
+		@Override
+		public HashMap<String, Object> makeRequest(String endpoint, String method, HashMap<String, Object> post_params,
+				ArrayList<Object> ordered_post_params, HashMap<String, Object> options) throws WorkbooksApiException {
+			HashMap<String, Object> exceptionObj = new HashMap<String, Object>();
+			HashMap<String, Object> errorObj = new HashMap<String, Object>();
+			errorObj.put("message", "Request deadline exceeded");
+			errorObj.put("type", "TimeoutException");
+			exceptionObj.put("error", errorObj);
+			throw new WorkbooksApiException(exceptionObj);
+		}
+	}
+
+	static void testTimeouts() throws Exception {
+		HashMap<String, Object> params = new HashMap<String, Object>();
+		params.put("application_name", "test");
+		params.put("user_agent", "test/1.0");
+		params.put("api_key", "key");
+		TimingOutApi api = new TimingOutApi(params);
+		WorkbooksCircuitBreaker breaker = new WorkbooksCircuitBreaker(50, 101, 60000, 10, 4, 60000, 2);
+		WorkbooksConcurrencyLimiter limiter = new WorkbooksConcurrencyLimiter(20, 1, 100, 0.5, 2.0);
+		api.setCircuit_breaker(breaker);
+		api.setConcurrency_limiter(limiter);
+
+		HashMap<String, Object> cancelled = new HashMap<String, Object>();
+		WorkbooksCancellationToken token = new WorkbooksCancellationToken();
+		token.cancel();
+		cancelled.put("cancellation_token", token);
+		HashMap<String, Object> expired = new HashMap<String, Object>();
+		expired.put("deadline", System.currentTimeMillis() - 1);
+		for (int i = 0; i < 4; i++) {
+			send(api, cancelled);
+			send(api, expired);
+		}
+		test.checkEqual(State.CLOSED, breaker.getState(), "timeouts the caller caused, by cancelling or an expired deadline, do not open the breaker");
+		test.checkEqual(20, limiter.getLimit(), "nor reduce the concurrency limit");
+
+		for (int i = 0; i < 4; i++) {
+			send(api, null);
+		}
+		test.checkEqual(State.OPEN, breaker.getState(), "requests timing out open the breaker");
+		test.check(limiter.getLimit() < 20, "and reduce the concurrency limit");
+	}
+
+	static void send(WorkbooksApi api, HashMap<String, Object> options) {
+		try {
+			api.makeLimitedRequest("crm/people", "GET", new HashMap<String, Object>(), null, options);
+		} catch (Exception e) {
+			// Expected: every request fails
+		}
+	}
+}
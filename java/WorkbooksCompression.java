@@ -0,0 +1,196 @@
+package workbooks_app.client_lib.java;
+
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PushbackInputStream;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ *	Compression of the bodies exchanged with the service. Responses sent with a Content-Encoding of gzip or deflate are
+ *  decompressed as they are read, so that a large response is never held in memory in its compressed form.
+ *
+ *  An instance decides which requests to compress: those whose body is at least a threshold size, to endpoints which
+ *  have not refused a compressed body. Whether an endpoint accepts compressed bodies is learnt from the first
+ *  compressed request sent to it.
+ *
+ * 	License: www.workbooks.com/mit_license
+ * 	Last commit $Id$
+ */
+
+public class WorkbooksCompression {
+
+	public static final String ACCEPT_ENCODING = "gzip, deflate";
+
+	public static final String CONTENT_ENCODING = "gzip";
+	public static final long DEFAULT_THRESHOLD = 65536L; // bytes
+
+	private static final int BUFFER_SIZE = 8192;
+
+	private final long threshold;
+	private final ConcurrentHashMap<String, Boolean> accepted = new ConcurrentHashMap<String, Boolean>();
+
+	public WorkbooksCompression() {
+		this(DEFAULT_THRESHOLD);
+	}
+
+	/**
+	 * @param threshold - the size, in bytes, from which a request body is compressed
+	 */
+	public WorkbooksCompression(long threshold) {
+		this.threshold = threshold;
+	}
+
+	/**
+	 * @return boolean - true if a request body of the given size should be compressed
+	 */
+	public boolean shouldCompress(String endpoint, long length) {
+		return length >= threshold && !Boolean.FALSE.equals(accepted.get(WorkbooksResponseCache.normaliseEndpoint(endpoint)));
+	}
+
+	/**
+	 * Record whether the service took a compressed request body for an endpoint.
+	 */
+	public void setAccepted(String endpoint, boolean accepts) {
+		accepted.put(WorkbooksResponseCache.normaliseEndpoint(endpoint), accepts);
+	}
+
+	/**
+	 * @return Boolean - whether the endpoint accepts compressed request bodies, or null if none has been sent to it yet
+	 */
+	public Boolean isAccepted(String endpoint) {
+		return accepted.get(WorkbooksResponseCache.normaliseEndpoint(endpoint));
+	}
+
+	public long getThreshold() {
+		return threshold;
+	}
+
+	/**
+	 * Counts the bytes written through it, e.g. the bytes of a request as sent on the wire.
+	 */
+	public static class CountingOutputStream extends FilterOutputStream {
+		private long count = 0;
+
+		public CountingOutputStream(OutputStream out) {
+			super(out);
+		}
+
+		public void write(int b) throws IOException {
+			out.write(b);
+			count++;
+		}
+
+		public void write(byte[] buffer, int offset, int length) throws IOException {
+			out.write(buffer, offset, length);
+			count += length;
+		}
+
+		public long getCount() {
+			return count;
+		}
+	}
+
+	/**
+	 * Counts the bytes read through it, e.g. the bytes of a response as they arrived on the wire.
+	 */
+	public static class CountingInputStream extends FilterInputStream {
+		private long count = 0;
+
+		public CountingInputStream(InputStream in) {
+			super(in);
+		}
+
+		public int read() throws IOException {
+			int b = super.read();
+			if (b >= 0) {
+				count++;
+			}
+			return b;
+		}
+
+		public int read(byte[] buffer, int offset, int length) throws IOException {
+			int n = super.read(buffer, offset, length);
+			if (n > 0) {
+				count += n;
+			}
+			return n;
+		}
+
+		public long skip(long n) throws IOException {
+			long skipped = super.skip(n);
+			count += skipped;
+			return skipped;
+		}
+
+		public boolean markSupported() {
+			return false;
+		}
+
+		public long getCount() {
+			return count;
+		}
+	}
+
+	/**
+	 * Wrap a request stream to compress what is written to it with gzip. Closing the returned stream finishes the
+	 * compressed data and closes the request stream.
+	 */
+	public static OutputStream encode(OutputStream out) throws IOException {
+		return new GZIPOutputStream(out, BUFFER_SIZE);
+	}
+
+	/**
+	 * Wrap a response stream to decompress it according to its Content-Encoding.
+	 *
+	 * @param in - the response as received
+	 * @param content_encoding - the Content-Encoding header of the response; may be null
+	 * @return InputStream - the decompressed response
+	 * @throws IOException
+	 */
+	public static InputStream decode(InputStream in, String content_encoding) throws IOException {
+		if (content_encoding == null) {
+			return in;
+		}
+		String encoding = content_encoding.trim().toLowerCase();
+		boolean gzip = encoding.equals("gzip") || encoding.equals("x-gzip");
+		if (!gzip && !encoding.equals("deflate")) {
+			return in;
+		}
+		PushbackInputStream pushback = new PushbackInputStream(in, 2);
+		byte[] header = new byte[2];
+		int n = 0;
+		while (n < 2) {
+			int read = pushback.read(header, n, 2 - n);
+			if (read < 0) {
+				break;
+			}
+			n += read;
+		}
+		if (n == 0) {
+			return pushback; // An empty body, e.g. of a 204 response, has nothing to decompress
+		}
+		pushback.unread(header, 0, n);
+		if (gzip) {
+			return new GZIPInputStream(pushback, BUFFER_SIZE);
+		}
+		// Meant to be a zlib stream, but some servers send raw deflate data: tell them apart by the zlib header
+		boolean zlib = n == 2 && (header[0] & 0x0f) == 8 && (((header[0] & 0xff) << 8) | (header[1] & 0xff)) % 31 == 0;
+		final Inflater inflater = new Inflater(!zlib);
+		return new InflaterInputStream(pushback, inflater, BUFFER_SIZE) {
+			public void close() throws IOException {
+				try {
+					super.close();
+				} finally {
+					inflater.end(); // An Inflater passed in is not ended by InflaterInputStream
+				}
+			}
+		};
+	}
+}
@@ -0,0 +1,160 @@
+package workbooks_app.client_lib.java;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ *	Unit tests of WorkbooksCompression: decoding of each Content-Encoding, telling zlib from raw deflate data by its
+ *  header, the encoding of requests, and the choice of which requests to compress.
+ *
+ * 	License: www.workbooks.com/mit_license
+ * 	Last commit $Id$
+ */
+
+public class WorkbooksCompressionTest {
+
+	static TestAssertHelper test = new TestAssertHelper();
+
+	public static void main(String[] args) throws Exception {
+		testIdentity();
+		testGzip();
+		testDeflate();
+		testShortBodies();
+		testEncode();
+		testShouldCompress();
+		testCounting();
+		test.testExit(WorkbooksCompressionTest.class);
+	}
+
+	static final byte[] BODY = body();
+
+	static byte[] body() {
+		StringBuilder json = new StringBuilder("{\"success\":true,\"data\":[");
+		Random random = new Random(41);
+		for (int i = 0; i < 2000; i++) {
+			json.append(i == 0 ? "" : ",").append("{\"id\":").append(random.nextInt(100000)).append(",\"name\":\"Person ").append(i).append("\"}");
+		}
+		try {
+			return json.append("]}").toString().getBytes("UTF-8");
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	static byte[] readAll(InputStream in) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		byte[] buffer = new byte[1000];
+		int n;
+		while ((n = in.read(buffer)) >= 0) {
+			out.write(buffer, 0, n);
+		}
+		in.close();
+		return out.toByteArray();
+	}
+
+	static byte[] decoded(byte[] data, String content_encoding) throws IOException {
+		return readAll(WorkbooksCompression.decode(new ByteArrayInputStream(data), content_encoding));
+	}
+
+	static byte[] gzip(byte[] data) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		OutputStream gzip = new GZIPOutputStream(out);
+		gzip.write(data);
+		gzip.close();
+		return out.toByteArray();
+	}
+
+	static byte[] deflate(byte[] data, int level, boolean raw) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		Deflater deflater = new Deflater(level, raw);
+		OutputStream deflate = new DeflaterOutputStream(out, deflater);
+		deflate.write(data);
+		deflate.close();
+		deflater.end();
+		return out.toByteArray();
+	}
+
+	static void testIdentity() throws Exception {
+		InputStream in = new ByteArrayInputStream(BODY);
+		test.check(WorkbooksCompression.decode(in, null) == in, "a response without a Content-Encoding is read as it is");
+		test.check(WorkbooksCompression.decode(in, "identity") == in, "an identity response is read as it is");
+		test.check(WorkbooksCompression.decode(in, "br") == in, "a response in an unknown encoding is read as it is");
+	}
+
+	static void testGzip() throws Exception {
+		byte[] gzipped = gzip(BODY);
+		test.check(gzipped.length < BODY.length / 2, "the test body compresses");
+		test.check(Arrays.equals(BODY, decoded(gzipped, "gzip")), "gzip is decoded");
+		test.check(Arrays.equals(BODY, decoded(gzipped, " GZIP ")), "the encoding is matched ignoring case and spaces");
+		test.check(Arrays.equals(BODY, decoded(gzipped, "x-gzip")), "x-gzip is decoded");
+	}
+
+	static void testDeflate() throws Exception {
+		int[] levels = {Deflater.NO_COMPRESSION, Deflater.BEST_SPEED, Deflater.DEFAULT_COMPRESSION, Deflater.BEST_COMPRESSION};
+		for (int level : levels) {
+			test.check(Arrays.equals(BODY, decoded(deflate(BODY, level, false), "deflate")), "zlib data at level " + level + " is decoded");
+			test.check(Arrays.equals(BODY, decoded(deflate(BODY, level, true), "deflate")), "raw deflate data at level " + level + " is decoded");
+		}
+		Random random = new Random(41);
+		int failures = 0;
+		for (int i = 0; i < 200; i++) {
+			byte[] data = new byte[random.nextInt(3000)];
+			random.nextBytes(data);
+			boolean raw = random.nextBoolean();
+			if (!Arrays.equals(data, decoded(deflate(data, random.nextInt(10), raw), "deflate"))) {
+				failures++;
+			}
+		}
+		test.checkEqual(0, failures, "random data in zlib or raw deflate form is decoded");
+	}
+
+	static void testShortBodies() throws Exception {
+		test.checkEqual(0, decoded(deflate(new byte[0], Deflater.DEFAULT_COMPRESSION, false), "deflate").length, "an empty zlib stream");
+		test.checkEqual(0, decoded(deflate(new byte[0], Deflater.DEFAULT_COMPRESSION, true), "deflate").length, "an empty raw deflate stream");
+		test.checkEqual(0, decoded(new byte[0], "deflate").length, "an empty body sent as deflate");
+		test.checkEqual(0, decoded(new byte[0], "gzip").length, "an empty body sent as gzip");
+	}
+
+	static void testEncode() throws Exception {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		OutputStream encoded = WorkbooksCompression.encode(out);
+		encoded.write(BODY);
+		encoded.close();
+		test.check(out.size() < BODY.length / 2, "encode() compresses");
+		test.check(Arrays.equals(BODY, decoded(out.toByteArray(), WorkbooksCompression.CONTENT_ENCODING)), "what encode() writes is decoded");
+	}
+
+	static void testShouldCompress() {
+		WorkbooksCompression compression = new WorkbooksCompression(1000);
+		test.check(!compression.shouldCompress("crm/people", 999), "a body below the threshold is not compressed");
+		test.check(compression.shouldCompress("crm/people", 1000), "a body at the threshold is compressed");
+		test.checkEqual(null, compression.isAccepted("crm/people"), "nothing is known of an endpoint before a compressed request");
+		compression.setAccepted("/crm/people.api", false);
+		test.check(!compression.shouldCompress("crm/people", 5000), "an endpoint which refused a compressed body is not sent another");
+		test.checkEqual(Boolean.FALSE, compression.isAccepted("crm/people"), "endpoints are matched in any form");
+		test.check(compression.shouldCompress("crm/organisations", 5000), "other endpoints are still compressed");
+		compression.setAccepted("crm/people", true);
+		test.check(compression.shouldCompress("crm/people", 5000), "an endpoint which took a compressed body is sent more");
+	}
+
+	static void testCounting() throws Exception {
+		byte[] gzipped = gzip(BODY);
+		WorkbooksCompression.CountingInputStream wire = new WorkbooksCompression.CountingInputStream(new ByteArrayInputStream(gzipped));
+		readAll(WorkbooksCompression.decode(wire, "gzip"));
+		test.checkEqual((long) gzipped.length, wire.getCount(), "the bytes of a response are counted as they arrived");
+
+		WorkbooksCompression.CountingOutputStream sent = new WorkbooksCompression.CountingOutputStream(new ByteArrayOutputStream());
+		OutputStream encoded = WorkbooksCompression.encode(sent);
+		encoded.write(BODY);
+		encoded.close();
+		test.check(sent.getCount() > 0 && sent.getCount() < BODY.length, "the bytes of a request are counted as sent (" + sent.getCount() + ")");
+	}
+}
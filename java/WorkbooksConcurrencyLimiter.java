@@ -0,0 +1,182 @@
+package workbooks_app.client_lib.java;
+
+import java.util.HashMap;
+
+/**
+ *	Limits the number of requests in progress at once, adjusting the limit as it goes to find the capacity of the
+ *  service: additive increase, multiplicative decrease (AIMD).
+ *
+ *  Each request which completes promptly raises the limit by 1/limit, so by about one for each limit's worth of
+ *  requests, provided the requests in progress were using most of the limit. A request which is rejected as overload
+ *  (HTTP 429 or 5xx, or no response) cuts the limit by 'backoff_ratio', as does a request after which the smoothed
+ *  round trip time of its endpoint exceeds 'latency_tolerance' times that endpoint's shortest recent round trip. Further
+ *  cuts wait until the requests sent at the old limit have completed. The limit settles just below the point at which
+ *  the service starts to queue.
+ *
+ *  Latency is judged per endpoint, since a list read or a batch takes far longer than a small GET even when the service
+ *  is idle, and is smoothed, so that a single slow request does not cut the limit.
+ *
+ * 	License: www.workbooks.com/mit_license
+ * 	Last commit $Id$
+ */
+
+public class WorkbooksConcurrencyLimiter {
+
+	/**
+	 * How a request ended, for the purpose of adjusting the limit.
+	 */
+	public enum Outcome {
+		SUCCESS, // the round trip time is a sample of the service's latency
+		OVERLOAD, // the service is overloaded, e.g. HTTP 429 or 503
+		IGNORE // the request failed for a reason which says nothing about load, e.g. HTTP 404
+	}
+
+	public static final int DEFAULT_INITIAL_LIMIT = 10;
+	public static final int DEFAULT_MIN_LIMIT = 1;
+	public static final int DEFAULT_MAX_LIMIT = 200;
+	public static final double DEFAULT_BACKOFF_RATIO = 0.9;
+	public static final double DEFAULT_LATENCY_TOLERANCE = 2.0;
+
+	// The shortest round trip is forgotten after this many samples, so that the baseline follows a lasting change in latency.
+	private static final int MIN_RTT_WINDOW = 500;
+	private static final double SMOOTHING = 0.1; // the weight of each new sample in the smoothed round trip time
+	private static final int MAX_ENDPOINTS = 1000; // the latency of further endpoints is not judged
+
+	/**
+	 * The recent round trip times of successful requests to one endpoint.
+	 */
+	static class Latency {
+		long min_rtt = Long.MAX_VALUE;
+		long window_min_rtt = Long.MAX_VALUE;
+		int samples = 0;
+		double smoothed_rtt = -1;
+
+		/**
+		 * Add a sample, in milliseconds; each is taken to be at least 1ms, so that a fast local service has a usable baseline. A sample
+		 * counts towards the smoothed round trip as at most twice that, so that one very slow request only moves it a little.
+		 */
+		void record(long rtt) {
+			rtt = Math.max(1, rtt);
+			window_min_rtt = Math.min(window_min_rtt, rtt);
+			min_rtt = Math.min(min_rtt, window_min_rtt);
+			if (++samples >= MIN_RTT_WINDOW) {
+				min_rtt = window_min_rtt;
+				window_min_rtt = Long.MAX_VALUE;
+				samples = 0;
+			}
+			smoothed_rtt = smoothed_rtt < 0 ? rtt : smoothed_rtt + SMOOTHING * (Math.min(rtt, 2 * smoothed_rtt) - smoothed_rtt);
+		}
+	}
+
+	private final int min_limit;
+	private final int max_limit;
+	private final double backoff_ratio;
+	private final double latency_tolerance;
+
+	private double limit;
+	private int in_flight = 0;
+	private final HashMap<String, Latency> latencies = new HashMap<String, Latency>();
+	private long sequence = 0; // counts requests started
+	private long cut_sequence = 0; // requests started before the last cut do not cause another one
+
+	public WorkbooksConcurrencyLimiter() {
+		this(DEFAULT_INITIAL_LIMIT, DEFAULT_MIN_LIMIT, DEFAULT_MAX_LIMIT, DEFAULT_BACKOFF_RATIO, DEFAULT_LATENCY_TOLERANCE);
+	}
+
+	/**
+	 * @param initial_limit - the number of requests allowed at once to begin with
+	 * @param min_limit - the lowest the limit may fall to
+	 * @param max_limit - the highest the limit may rise to
+	 * @param backoff_ratio - the factor by which the limit is cut on overload, e.g. 0.9
+	 * @param latency_tolerance - how many times its shortest recent round trip the smoothed round trip of an endpoint may grow to before
+	 *          it counts as overload
+	 */
+	public WorkbooksConcurrencyLimiter(int initial_limit, int min_limit, int max_limit, double backoff_ratio, double latency_tolerance) {
+		this.min_limit = Math.max(1, min_limit);
+		this.max_limit = Math.max(this.min_limit, max_limit);
+		this.limit = Math.min(this.max_limit, Math.max(this.min_limit, initial_limit));
+		this.backoff_ratio = backoff_ratio;
+		this.latency_tolerance = latency_tolerance;
+	}
+
+	/**
+	 * Wait until a request may start.
+	 *
+	 * @return long - a token to pass to release()
+	 * @throws InterruptedException
+	 */
+	public synchronized long acquire() throws InterruptedException {
+		while (in_flight >= (int) limit) {
+			wait();
+		}
+		in_flight++;
+		return ++sequence;
+	}
+
+	/**
+	 * Record the end of a request whose endpoint is unknown, and adjust the limit.
+	 */
+	public void release(long token, long rtt, Outcome outcome) {
+		release(token, "", rtt, outcome);
+	}
+
+	/**
+	 * Record the end of a request and adjust the limit.
+	 *
+	 * @param token - as returned by acquire()
+	 * @param endpoint - the endpoint of the request, e.g. 'crm/people'
+	 * @param rtt - the round trip time of the request in milliseconds
+	 * @param outcome - how the request ended
+	 */
+	public synchronized void release(long token, String endpoint, long rtt, Outcome outcome) {
+		boolean saturated = in_flight >= limit / 2; // only raise the limit if it is being used
+		in_flight--;
+
+		if (outcome == Outcome.SUCCESS) {
+			Latency latency = latencyOf(endpoint);
+			if (latency != null) {
+				latency.record(rtt);
+			}
+			if (latency != null && latency.smoothed_rtt > latency.min_rtt * latency_tolerance) {
+				cut(token);
+			} else if (saturated) {
+				limit = Math.min(max_limit, limit + 1.0 / limit);
+			}
+		} else if (outcome == Outcome.OVERLOAD) {
+			cut(token);
+		}
+		notifyAll();
+	}
+
+	/**
+	 * @return int - the number of requests currently allowed at once
+	 */
+	public synchronized int getLimit() {
+		return (int) limit;
+	}
+
+	/**
+	 * @return int - the number of requests in progress
+	 */
+	public synchronized int getIn_flight() {
+		return in_flight;
+	}
+
+	private Latency latencyOf(String endpoint) {
+		String normalised = WorkbooksResponseCache.normaliseEndpoint(endpoint);
+		Latency latency = latencies.get(normalised);
+		if (latency == null && latencies.size() < MAX_ENDPOINTS) {
+			latency = new Latency();
+			latencies.put(normalised, latency);
+		}
+		return latency;
+	}
+
+	private void cut(long token) {
+		if (token <= cut_sequence) {
+			return; // Started before the last cut: that cut has already allowed for it
+		}
+		limit = Math.max(min_limit, limit * backoff_ratio);
+		cut_sequence = sequence;
+	}
+}
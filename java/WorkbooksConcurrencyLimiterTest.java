@@ -0,0 +1,125 @@
+package workbooks_app.client_lib.java;
+
+import workbooks_app.client_lib.java.WorkbooksConcurrencyLimiter.Outcome;
+
+/**
+ *	Unit tests of WorkbooksConcurrencyLimiter: the bounds of the limit, its increase while requests complete promptly,
+ *  and its cuts on overload and on a lasting rise in the latency of an endpoint.
+ *
+ * 	License: www.workbooks.com/mit_license
+ * 	Last commit $Id$
+ */
+
+public class WorkbooksConcurrencyLimiterTest {
+
+	static TestAssertHelper test = new TestAssertHelper();
+
+	public static void main(String[] args) throws Exception {
+		testBounds();
+		testIncrease();
+		testOverload();
+		testLatency();
+		testMixedEndpoints();
+		testZeroRoundTrip();
+		testWaiting();
+		test.testExit(WorkbooksConcurrencyLimiterTest.class);
+	}
+
+	static void testBounds() {
+		test.checkEqual(5, new WorkbooksConcurrencyLimiter(1, 5, 50, 0.9, 2.0).getLimit(), "the initial limit is raised to the minimum");
+		test.checkEqual(50, new WorkbooksConcurrencyLimiter(80, 5, 50, 0.9, 2.0).getLimit(), "the initial limit is lowered to the maximum");
+		test.checkEqual(1, new WorkbooksConcurrencyLimiter(0, 0, 0, 0.9, 2.0).getLimit(), "the limit is at least 1");
+	}
+
+	static void testIncrease() throws Exception {
+		WorkbooksConcurrencyLimiter limiter = new WorkbooksConcurrencyLimiter(10, 1, 12, 0.9, 2.0);
+		for (int round = 0; round < 100; round++) {
+			long[] tokens = new long[limiter.getLimit()];
+			for (int i = 0; i < tokens.length; i++) {
+				tokens[i] = limiter.acquire();
+			}
+			for (long token : tokens) {
+				limiter.release(token, "crm/people", 20, Outcome.SUCCESS);
+			}
+		}
+		test.checkEqual(12, limiter.getLimit(), "a saturated limit grows to the maximum");
+		test.checkEqual(0, limiter.getIn_flight(), "nothing is left in flight");
+
+		WorkbooksConcurrencyLimiter idle = new WorkbooksConcurrencyLimiter(10, 1, 100, 0.9, 2.0);
+		for (int i = 0; i < 1000; i++) {
+			idle.release(idle.acquire(), "crm/people", 20, Outcome.SUCCESS);
+		}
+		test.checkEqual(10, idle.getLimit(), "a limit which is not being used does not grow");
+	}
+
+	static void testOverload() throws Exception {
+		WorkbooksConcurrencyLimiter limiter = new WorkbooksConcurrencyLimiter(20, 1, 100, 0.5, 2.0);
+		long first = limiter.acquire();
+		long second = limiter.acquire();
+		limiter.release(first, "crm/people", 20, Outcome.OVERLOAD);
+		test.checkEqual(10, limiter.getLimit(), "overload cuts the limit by the backoff ratio");
+		limiter.release(second, "crm/people", 20, Outcome.OVERLOAD);
+		test.checkEqual(10, limiter.getLimit(), "a request sent before the cut does not cut again");
+		limiter.release(limiter.acquire(), "crm/people", 20, Outcome.OVERLOAD);
+		test.checkEqual(5, limiter.getLimit(), "a request sent after the cut cuts again");
+		limiter.release(limiter.acquire(), "crm/people", 20, Outcome.IGNORE);
+		test.checkEqual(5, limiter.getLimit(), "an ignored outcome leaves the limit alone");
+		for (int i = 0; i < 10; i++) {
+			limiter.release(limiter.acquire(), "crm/people", 20, Outcome.OVERLOAD);
+		}
+		test.checkEqual(1, limiter.getLimit(), "the limit does not fall below the minimum");
+	}
+
+	static void testLatency() throws Exception {
+		WorkbooksConcurrencyLimiter limiter = new WorkbooksConcurrencyLimiter(20, 1, 100, 0.9, 2.0);
+		for (int i = 0; i < 50; i++) {
+			limiter.release(limiter.acquire(), "crm/people", 20, Outcome.SUCCESS);
+		}
+		limiter.release(limiter.acquire(), "crm/people", 400, Outcome.SUCCESS);
+		test.checkEqual(20, limiter.getLimit(), "a single slow request does not cut the limit");
+
+		for (int i = 0; i < 50; i++) {
+			limiter.release(limiter.acquire(), "crm/people", 100, Outcome.SUCCESS);
+		}
+		test.check(limiter.getLimit() < 20, "a lasting rise in latency cuts the limit (limit " + limiter.getLimit() + ")");
+	}
+
+	static void testMixedEndpoints() throws Exception {
+		WorkbooksConcurrencyLimiter limiter = new WorkbooksConcurrencyLimiter(20, 1, 100, 0.9, 2.0);
+		for (int i = 0; i < 1000; i++) {
+			limiter.release(limiter.acquire(), "crm/people", 10, Outcome.SUCCESS);
+			limiter.release(limiter.acquire(), "/crm/organisations.api", 300, Outcome.SUCCESS);
+			limiter.release(limiter.acquire(), "crm/organisations", 320, Outcome.SUCCESS);
+		}
+		test.checkEqual(20, limiter.getLimit(), "slow endpoints are judged against their own baseline");
+	}
+
+	static void testZeroRoundTrip() throws Exception {
+		WorkbooksConcurrencyLimiter limiter = new WorkbooksConcurrencyLimiter(20, 1, 100, 0.9, 2.0);
+		for (int i = 0; i < 100; i++) {
+			limiter.release(limiter.acquire(), "crm/people", i % 2, Outcome.SUCCESS);
+		}
+		test.checkEqual(20, limiter.getLimit(), "round trips of 0 and 1ms do not cut the limit");
+	}
+
+	static void testWaiting() throws Exception {
+		final WorkbooksConcurrencyLimiter limiter = new WorkbooksConcurrencyLimiter(1, 1, 1, 0.9, 2.0);
+		long token = limiter.acquire();
+		final long[] waiter_token = {0};
+		Thread waiter = new Thread(new Runnable() {
+			public void run() {
+				try {
+					waiter_token[0] = limiter.acquire();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			}
+		});
+		waiter.start();
+		waiter.join(200);
+		test.check(waiter.isAlive(), "a request over the limit waits");
+		limiter.release(token, "crm/people", 10, Outcome.SUCCESS);
+		waiter.join(2000);
+		test.check(!waiter.isAlive() && waiter_token[0] > token, "a waiting request starts when one finishes");
+	}
+}
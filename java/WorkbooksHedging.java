@@ -0,0 +1,103 @@
+package workbooks_app.client_lib.java;
+
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**
+ *	Decides when to hedge a GET: to send a second, identical request if the first has not been answered within a
+ *  high percentile of the recent latency of its endpoint, and use whichever response arrives first.
+ *
+ *  The extra load is bounded by a budget: hedges may be at most a given percentage of the requests made.
+ *
+ * 	License: www.workbooks.com/mit_license
+ * 	Last commit $Id$
+ */
+
+public class WorkbooksHedging {
+
+	public static final int DEFAULT_PERCENTILE = 95;
+	public static final int DEFAULT_BUDGET = 5; // percent
+	public static final int SAMPLES = 200; // per endpoint
+	public static final int MINIMUM_SAMPLES = 20; // before an endpoint is hedged
+
+	/**
+	 * The latencies of the most recent successful requests to an endpoint, in a ring.
+	 */
+	static class Latencies {
+		final long[] samples = new long[SAMPLES];
+		int count = 0;
+		int next = 0;
+	}
+
+	private final int percentile;
+	private final int budget;
+	private final HashMap<String, Latencies> latencies = new HashMap<String, Latencies>();
+	private long requests = 0;
+	private long hedges = 0;
+
+	public WorkbooksHedging() {
+		this(DEFAULT_PERCENTILE, DEFAULT_BUDGET);
+	}
+
+	/**
+	 * @param percentile - the percentile of recent latency after which a request is hedged, e.g. 95
+	 * @param budget - the most hedges to send, as a percentage of requests, e.g. 5
+	 */
+	public WorkbooksHedging(int percentile, int budget) {
+		this.percentile = Math.min(100, Math.max(1, percentile));
+		this.budget = budget;
+	}
+
+	/**
+	 * Record the latency of a successful request.
+	 */
+	public synchronized void record(String endpoint, long millis) {
+		String normalised = WorkbooksResponseCache.normaliseEndpoint(endpoint);
+		Latencies endpoint_latencies = latencies.get(normalised);
+		if (endpoint_latencies == null) {
+			endpoint_latencies = new Latencies();
+			latencies.put(normalised, endpoint_latencies);
+		}
+		endpoint_latencies.samples[endpoint_latencies.next] = millis;
+		endpoint_latencies.next = (endpoint_latencies.next + 1) % SAMPLES;
+		endpoint_latencies.count = Math.min(SAMPLES, endpoint_latencies.count + 1);
+	}
+
+	/**
+	 * Count a request which may be hedged, towards the budget.
+	 *
+	 * @return long - how long, in milliseconds, to wait for a response before hedging; or -1 if the endpoint has too few samples
+	 */
+	public synchronized long delay(String endpoint) {
+		requests++;
+		Latencies endpoint_latencies = latencies.get(WorkbooksResponseCache.normaliseEndpoint(endpoint));
+		if (endpoint_latencies == null || endpoint_latencies.count < MINIMUM_SAMPLES) {
+			return -1;
+		}
+		long[] sorted = Arrays.copyOf(endpoint_latencies.samples, endpoint_latencies.count);
+		Arrays.sort(sorted);
+		int index = (int) Math.ceil(percentile / 100.0 * sorted.length) - 1;
+		return sorted[Math.max(0, index)];
+	}
+
+	/**
+	 * Claim a hedge from the budget.
+	 *
+	 * @return boolean - true if a hedge may be sent
+	 */
+	public synchronized boolean tryHedge() {
+		if ((hedges + 1) * 100 > budget * requests) {
+			return false;
+		}
+		hedges++;
+		return true;
+	}
+
+	public synchronized long getRequests() {
+		return requests;
+	}
+
+	public synchronized long getHedges() {
+		return hedges;
+	}
+}
@@ -0,0 +1,135 @@
+package workbooks_app.client_lib.java;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.net.http.HttpTimeoutException;
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import javax.net.ssl.SSLContext;
+
+/**
+ *	Sends requests with the java.net.http client of Java 11 and later, which multiplexes concurrent requests as streams
+ *  over one HTTP/2 connection to the service instead of opening a connection for each. The version is agreed during
+ *  the TLS handshake, so a service which does not offer HTTP/2 is spoken to over HTTP/1.1.
+ *
+ *  The number of requests in progress at once is limited to 'max_streams'; further requests wait for a stream.
+ *
+ *  WorkbooksApi loads this class by name when the 'http2' option is set, so the rest of the library still runs on
+ *  earlier versions of Java.
+ *
+ * 	License: www.workbooks.com/mit_license
+ * 	Last commit $Id$
+ */
+
+public class WorkbooksHttp2Transport implements WorkbooksTransport {
+
+	public static final int DEFAULT_MAX_STREAMS = 100;
+
+	private final HttpClient client;
+	private final Semaphore streams;
+
+	/**
+	 * @param ssl_context - the TLS configuration to use
+	 * @param connect_timeout - how long, in milliseconds, to wait for a connection
+	 * @param max_streams - the most requests in progress at once
+	 * @param http2 - false to use HTTP/1.1 only
+	 */
+	public WorkbooksHttp2Transport(SSLContext ssl_context, long connect_timeout, int max_streams, boolean http2) {
+		HttpClient.Builder builder = HttpClient.newBuilder()
+				.version(http2 ? HttpClient.Version.HTTP_2 : HttpClient.Version.HTTP_1_1)
+				.followRedirects(HttpClient.Redirect.NORMAL)
+				.sslContext(ssl_context);
+		if (connect_timeout > 0) {
+			builder.connectTimeout(Duration.ofMillis(connect_timeout));
+		}
+		this.client = builder.build();
+		this.streams = new Semaphore(Math.max(1, max_streams), true);
+	}
+
+	public Response send(String url, String method, HashMap<String, String> headers, byte[] body, long timeout,
+			final WorkbooksCancellationToken cancellation_token) throws IOException, InterruptedException {
+		long deadline = timeout > 0 ? System.currentTimeMillis() + timeout : Long.MAX_VALUE;
+		HttpRequest.Builder request = HttpRequest.newBuilder(URI.create(url));
+		if (timeout > 0) {
+			request.timeout(Duration.ofMillis(timeout));
+		}
+		for (Map.Entry<String, String> header : headers.entrySet()) {
+			request.header(header.getKey(), header.getValue());
+		}
+		HttpRequest.BodyPublisher publisher = body == null ? HttpRequest.BodyPublishers.noBody() : HttpRequest.BodyPublishers.ofByteArray(body);
+		request.method(method.toUpperCase(), publisher);
+
+		if (timeout <= 0) {
+			streams.acquire();
+		} else if (!streams.tryAcquire(Math.max(0, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS)) {
+			throw new HttpTimeoutException("Timed out waiting for a stream");
+		}
+		WorkbooksCancellationToken.Listener cancel = null;
+		CompletableFuture<HttpResponse<byte[]>> exchange = null;
+		try {
+			// The body is received in full before the exchange completes, so the deadline covers it too
+			exchange = client.sendAsync(request.build(), HttpResponse.BodyHandlers.ofByteArray());
+			final CompletableFuture<HttpResponse<byte[]>> cancellable = exchange;
+			if (cancellation_token != null) {
+				cancel = new WorkbooksCancellationToken.Listener() {
+					public void cancelled() {
+						cancellable.cancel(true);
+					}
+				};
+				cancellation_token.addListener(cancel);
+			}
+			HttpResponse<byte[]> response = timeout > 0 ? exchange.get(Math.max(1, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS)
+					: exchange.get();
+
+			String content_encoding = response.headers().firstValue("Content-Encoding").orElse(null);
+			InputStream in = WorkbooksCompression.decode(new ByteArrayInputStream(response.body()), content_encoding);
+			ByteArrayOutputStream decoded = new ByteArrayOutputStream();
+			try {
+				byte[] buffer = new byte[8192];
+				int n;
+				while ((n = in.read(buffer)) > 0) {
+					decoded.write(buffer, 0, n);
+				}
+			} finally {
+				in.close();
+			}
+			String protocol = response.version() == HttpClient.Version.HTTP_2 ? "HTTP/2" : "HTTP/1.1";
+			return new Response(response.statusCode(), response.headers().map(), decoded.toString(WorkbooksApi.CHARSET), response.body().length, protocol);
+		} catch (TimeoutException e) {
+			exchange.cancel(true);
+			throw new HttpTimeoutException("Request timed out");
+		} catch (CancellationException e) {
+			throw new IOException("Request cancelled");
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof IOException) {
+				throw (IOException) e.getCause();
+			}
+			throw new IOException(e.getCause());
+		} finally {
+			if (cancel != null) {
+				cancellation_token.removeListener(cancel);
+			}
+			streams.release();
+		}
+	}
+
+	/**
+	 * @return int - the number of requests which could start at once now
+	 */
+	public int getAvailable_streams() {
+		return streams.availablePermits();
+	}
+}
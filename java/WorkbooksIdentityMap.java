@@ -0,0 +1,175 @@
+package workbooks_app.client_lib.java;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import javax.json.Json;
+import javax.json.JsonArray;
+import javax.json.JsonNumber;
+import javax.json.JsonObject;
+import javax.json.JsonObjectBuilder;
+import javax.json.JsonString;
+import javax.json.JsonValue;
+
+/**
+ *	An identity map of records, keyed by database, endpoint and id, holding the most recent view of each record
+ *  seen in a response: rows returned by get() and the affected objects returned by create(), update()
+ *  and batch(). The same endpoint and id name different records in different databases, so each record is held
+ *  under the logical database it was read from. The number of records held is bounded, the least recently used
+ *  being discarded first.
+ *
+ *  Only complete rows, read without a column selection, are held on their own. A row for a record at the same
+ *  lock_version as the one held is merged into it, so that reads which select different columns build up one view
+ *  of the record. A complete row at a newer lock_version replaces the one held; a partial row at a newer lock_version
+ *  shows that the one held is out of date, so it is forgotten. Rows at an older lock_version are ignored.
+ *
+ * 	License: www.workbooks.com/mit_license
+ * 	Last commit $Id$
+ */
+
+public class WorkbooksIdentityMap {
+
+	private final LinkedHashMap<String, JsonObject> records;
+
+	/**
+	 * @param max_records - the maximum number of records to hold
+	 */
+	public WorkbooksIdentityMap(final int max_records) {
+		this.records = new LinkedHashMap<String, JsonObject>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, JsonObject> eldest) {
+				return size() > max_records;
+			}
+		};
+	}
+
+	/**
+	 * @param database - the logical database the record is in
+	 * @return JsonObject - the record held for this database, endpoint and id, or null
+	 */
+	public JsonObject get(String database, String endpoint, Object id) {
+		synchronized (records) {
+			return records.get(key(database, endpoint, id));
+		}
+	}
+
+	/**
+	 * Record each complete row (which has an id) from a response.
+	 */
+	public void putAll(String database, String endpoint, JsonArray rows) {
+		putAll(database, endpoint, rows, true);
+	}
+
+	/**
+	 * Record each row (which has an id) from a response.
+	 *
+	 * @param complete - false if the rows were read with a column selection, so hold only some of the columns of each record
+	 */
+	public void putAll(String database, String endpoint, JsonArray rows, boolean complete) {
+		if (rows == null) {
+			return;
+		}
+		for (int i = 0; i < rows.size(); i++) {
+			if (rows.get(i).getValueType() == JsonValue.ValueType.OBJECT) {
+				put(database, endpoint, rows.getJsonObject(i), complete);
+			}
+		}
+	}
+
+	/**
+	 * Record a complete row, merging it into the record held if that is at the same lock_version.
+	 */
+	public void put(String database, String endpoint, JsonObject row) {
+		put(database, endpoint, row, true);
+	}
+
+	/**
+	 * Record a row, merging it into the record held if that is at the same lock_version.
+	 *
+	 * @param complete - false if the row holds only some of the columns of the record
+	 */
+	public void put(String database, String endpoint, JsonObject row, boolean complete) {
+		Object id = idOf(row.get("id"));
+		if (id == null) {
+			return;
+		}
+		String key = key(database, endpoint, id);
+		synchronized (records) {
+			JsonObject held = records.get(key);
+			int order = held == null ? 1 : compareVersions(row.get("lock_version"), held.get("lock_version"));
+			if (order < 0) {
+				return; // An older view than the one held, e.g. from a read which overlapped a write
+			}
+			if (order == 0) {
+				JsonObjectBuilder merged = Json.createObjectBuilder();
+				for (Map.Entry<String, JsonValue> field : held.entrySet()) {
+					merged.add(field.getKey(), field.getValue());
+				}
+				for (Map.Entry<String, JsonValue> field : row.entrySet()) {
+					merged.add(field.getKey(), field.getValue());
+				}
+				records.put(key, merged.build());
+			} else if (complete) {
+				records.put(key, row);
+			} else if (held != null) {
+				records.remove(key); // The record has changed, but only some of its new columns are known
+			}
+		}
+	}
+
+	/**
+	 * Forget a record, e.g. once it has been deleted.
+	 */
+	public void remove(String database, String endpoint, Object id) {
+		synchronized (records) {
+			records.remove(key(database, endpoint, id));
+		}
+	}
+
+	/**
+	 * Forget all records.
+	 */
+	public void clear() {
+		synchronized (records) {
+			records.clear();
+		}
+	}
+
+	public int size() {
+		synchronized (records) {
+			return records.size();
+		}
+	}
+
+	/**
+	 * Compare the lock_versions of two rows for the same record. A row without a numeric lock_version is taken to be newer than
+	 * the one held, unless both lack one.
+	 *
+	 * @return int - negative, zero or positive as the row's version is older than, the same as, or newer than the held version
+	 */
+	private static int compareVersions(JsonValue row_version, JsonValue held_version) {
+		if (row_version instanceof JsonNumber && held_version instanceof JsonNumber) {
+			return ((JsonNumber) row_version).bigDecimalValue().compareTo(((JsonNumber) held_version).bigDecimalValue());
+		}
+		return row_version != null && row_version.equals(held_version) ? 0 : 1;
+	}
+
+	private static String key(String database, String endpoint, Object id) {
+		return database + '/' + WorkbooksResponseCache.normaliseEndpoint(endpoint) + "#" + idOf(id);
+	}
+
+	/**
+	 * Ids arrive as JSON numbers or strings, or as Java values from the caller: compare them as strings.
+	 */
+	private static String idOf(Object id) {
+		if (id == null || id == JsonValue.NULL) {
+			return null;
+		} else if (id instanceof JsonString) {
+			return ((JsonString) id).getString();
+		} else if (id instanceof JsonNumber) {
+			return ((JsonNumber) id).bigDecimalValue().toPlainString();
+		}
+		return id.toString();
+	}
+}
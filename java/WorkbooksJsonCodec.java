@@ -0,0 +1,58 @@
+package workbooks_app.client_lib.java;
+
+import java.io.StringReader;
+import java.util.Map;
+import javax.json.Json;
+import javax.json.JsonObject;
+import javax.json.JsonReader;
+import javax.json.JsonReaderFactory;
+
+/**
+ *	Decodes the JSON responses of the service into javax.json values. The default, WorkbooksJsonParser, reads the
+ *  response text directly into its own implementations of the javax.json interfaces; ReaderCodec uses a JsonReader from
+ *  whichever javax.json provider is on the class path. Another codec can be given with the 'json_codec' constructor
+ *  option. A codec is shared by every thread using the WorkbooksApi object, so must be thread-safe.
+ *
+ * 	License: www.workbooks.com/mit_license
+ * 	Last commit $Id$
+ */
+
+public interface WorkbooksJsonCodec {
+
+	/**
+	 * Decode the body of a response.
+	 *
+	 * @param json - the text of the response, which should be a JSON object
+	 * @return JsonObject - the decoded object
+	 * @throws javax.json.JsonException - if the text is not a JSON object
+	 */
+	JsonObject decode(String json);
+
+	/**
+	 * Decodes with a JsonReader from the javax.json provider on the class path. The provider is looked up once, when the
+	 * codec is created, rather than for each response.
+	 */
+	public static class ReaderCodec implements WorkbooksJsonCodec {
+		private final JsonReaderFactory factory;
+
+		public ReaderCodec() {
+			this(null);
+		}
+
+		/**
+		 * @param config - provider-specific configuration of the readers; may be null
+		 */
+		public ReaderCodec(Map<String, ?> config) {
+			this.factory = Json.createReaderFactory(config);
+		}
+
+		public JsonObject decode(String json) {
+			JsonReader reader = factory.createReader(new StringReader(json));
+			try {
+				return reader.readObject();
+			} finally {
+				reader.close();
+			}
+		}
+	}
+}
@@ -0,0 +1,909 @@
+package workbooks_app.client_lib.java;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.util.AbstractList;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import javax.json.JsonArray;
+import javax.json.JsonException;
+import javax.json.JsonNumber;
+import javax.json.JsonObject;
+import javax.json.JsonString;
+import javax.json.JsonValue;
+
+/**
+ *	The default WorkbooksJsonCodec: decodes a response in a single pass over its text, straight into immutable
+ *  javax.json values, without the event stream and builders through which a JsonReader constructs them. Objects hold
+ *  their members in arrays, and a member name which recurs in every row of a response is shared by all of them rather
+ *  than copied for each.
+ *
+ *  The values behave as those of the javax.json reference implementation: they are equal to the values it would
+ *  decode from the same text, their accessors fail in the same ways, and they print as the same compact JSON.
+ *  WorkbooksJsonParserTest checks this against ReaderCodec.
+ *
+ * 	License: www.workbooks.com/mit_license
+ * 	Last commit $Id$
+ */
+
+public class WorkbooksJsonParser implements WorkbooksJsonCodec {
+
+	public static final int MAX_DEPTH = 1000; // the most deeply nested arrays and objects decoded
+
+	private static final int NAME_CACHE_SIZE = 512; // a power of 2
+	private static final int MAX_RETAINED_MEMBERS = 4096; // larger member stacks are discarded after use
+
+	private static final ThreadLocal<Parser> parsers = new ThreadLocal<Parser>() {
+		protected Parser initialValue() {
+			return new Parser();
+		}
+	};
+
+	public JsonObject decode(String json) {
+		return parsers.get().parse(json);
+	}
+
+	/**
+	 * The state of a parse. Each thread reuses one, keeping the member names it has seen for its next response.
+	 */
+	private static final class Parser {
+		private String json;
+		private int length;
+		private int position;
+		private int depth;
+
+		// The members of the objects and arrays being decoded, whose values are copied out once each is complete
+		private String[] names = new String[64];
+		private JsonValue[] values = new JsonValue[64];
+		private int top = 0;
+		private int high = 0;
+
+		private final String[] name_cache = new String[NAME_CACHE_SIZE];
+		private final StringBuilder text = new StringBuilder(); // a string which contains escapes
+
+		JsonObject parse(String json) {
+			this.json = json;
+			this.length = json.length();
+			this.position = 0;
+			this.depth = 0;
+			this.top = 0;
+			try {
+				skipWhitespace();
+				if (position >= length || json.charAt(position) != '{') {
+					throw error("Expected a JSON object");
+				}
+				return (JsonObject) readValue(); // As a JsonReader does, ignore anything after the object
+			} finally {
+				this.json = null;
+				if (values.length > MAX_RETAINED_MEMBERS) {
+					names = new String[64];
+					values = new JsonValue[64];
+				} else {
+					Arrays.fill(values, 0, high, null); // Hold nothing of the response once it is decoded
+				}
+				high = 0;
+				if (text.capacity() > WorkbooksBuffers.MAX_RETAINED_SIZE) {
+					text.setLength(0);
+					text.trimToSize();
+				}
+			}
+		}
+
+		private JsonValue readValue() {
+			skipWhitespace();
+			if (position >= length) {
+				throw error("Unexpected end of text");
+			}
+			char c = json.charAt(position);
+			switch (c) {
+			case '{':
+				position++;
+				return readObject();
+			case '[':
+				position++;
+				return readArray();
+			case '"':
+				position++;
+				return new StringValue(readString());
+			case 't':
+				readLiteral("true");
+				return JsonValue.TRUE;
+			case 'f':
+				readLiteral("false");
+				return JsonValue.FALSE;
+			case 'n':
+				readLiteral("null");
+				return JsonValue.NULL;
+			default:
+				if (c == '-' || (c >= '0' && c <= '9')) {
+					return readNumber();
+				}
+				throw error("Unexpected character '" + c + "'");
+			}
+		}
+
+		private JsonObject readObject() {
+			if (++depth > MAX_DEPTH) {
+				throw error("Nested too deeply");
+			}
+			int start = top;
+			skipWhitespace();
+			if (position < length && json.charAt(position) == '}') {
+				position++;
+			} else {
+				while (true) {
+					skipWhitespace();
+					if (position >= length || json.charAt(position) != '"') {
+						throw error("Expected a member name");
+					}
+					position++;
+					String name = readName();
+					skipWhitespace();
+					if (position >= length || json.charAt(position) != ':') {
+						throw error("Expected ':'");
+					}
+					position++;
+					JsonValue value = readValue();
+					push(name, value);
+					skipWhitespace();
+					char c = position < length ? json.charAt(position++) : 0;
+					if (c == '}') {
+						break;
+					} else if (c != ',') {
+						throw error("Expected ',' or '}'");
+					}
+				}
+			}
+			JsonObject object = new ObjectValue(names, values, start, top);
+			Arrays.fill(values, start, top, null);
+			top = start;
+			depth--;
+			return object;
+		}
+
+		private JsonArray readArray() {
+			if (++depth > MAX_DEPTH) {
+				throw error("Nested too deeply");
+			}
+			int start = top;
+			skipWhitespace();
+			if (position < length && json.charAt(position) == ']') {
+				position++;
+			} else {
+				while (true) {
+					push(null, readValue());
+					skipWhitespace();
+					char c = position < length ? json.charAt(position++) : 0;
+					if (c == ']') {
+						break;
+					} else if (c != ',') {
+						throw error("Expected ',' or ']'");
+					}
+				}
+			}
+			JsonArray array = new ArrayValue(Arrays.copyOfRange(values, start, top));
+			Arrays.fill(values, start, top, null);
+			top = start;
+			depth--;
+			return array;
+		}
+
+		private void push(String name, JsonValue value) {
+			if (top == values.length) {
+				names = Arrays.copyOf(names, top * 2);
+				values = Arrays.copyOf(values, top * 2);
+			}
+			names[top] = name;
+			values[top] = value;
+			top++;
+			if (top > high) {
+				high = top;
+			}
+		}
+
+		/**
+		 * Read a member name, reusing the String of an earlier occurrence of the same name if there is one.
+		 */
+		private String readName() {
+			int start = position;
+			int hash = 0;
+			while (position < length) {
+				char c = json.charAt(position);
+				if (c == '"') {
+					int name_length = position - start;
+					position++;
+					int slot = hash & (NAME_CACHE_SIZE - 1);
+					String cached = name_cache[slot];
+					if (cached != null && cached.length() == name_length && json.regionMatches(start, cached, 0, name_length)) {
+						return cached;
+					}
+					String name = json.substring(start, start + name_length);
+					name_cache[slot] = name;
+					return name;
+				}
+				if (c == '\\' || c < 0x20) {
+					break;
+				}
+				hash = 31 * hash + c;
+				position++;
+			}
+			position = start;
+			return readString();
+		}
+
+		/**
+		 * Read a string, the opening quote of which has been read.
+		 */
+		private String readString() {
+			int start = position;
+			while (true) {
+				if (position >= length) {
+					throw error("Unterminated string");
+				}
+				char c = json.charAt(position);
+				if (c == '"') {
+					return json.substring(start, position++);
+				}
+				if (c == '\\') {
+					break;
+				}
+				if (c < 0x20) {
+					throw error("Unescaped control character in string");
+				}
+				position++;
+			}
+			text.setLength(0);
+			text.append(json, start, position);
+			while (true) {
+				if (position >= length) {
+					throw error("Unterminated string");
+				}
+				char c = json.charAt(position++);
+				if (c == '"') {
+					return text.toString();
+				} else if (c == '\\') {
+					if (position >= length) {
+						throw error("Unterminated string");
+					}
+					char escaped = json.charAt(position++);
+					switch (escaped) {
+					case '"':
+					case '\\':
+					case '/':
+						text.append(escaped);
+						break;
+					case 'b':
+						text.append('\b');
+						break;
+					case 'f':
+						text.append('\f');
+						break;
+					case 'n':
+						text.append('\n');
+						break;
+					case 'r':
+						text.append('\r');
+						break;
+					case 't':
+						text.append('\t');
+						break;
+					case 'u':
+						int code = 0;
+						for (int i = 0; i < 4; i++) {
+							int digit = position < length ? Character.digit(json.charAt(position++), 16) : -1;
+							if (digit < 0) {
+								throw error("Invalid \\u escape");
+							}
+							code = code * 16 + digit;
+						}
+						text.append((char) code);
+						break;
+					default:
+						throw error("Invalid escape '\\" + escaped + "'");
+					}
+				} else if (c < 0x20) {
+					throw error("Unescaped control character in string");
+				} else {
+					text.append(c);
+				}
+			}
+		}
+
+		private JsonNumber readNumber() {
+			int start = position;
+			boolean negative = json.charAt(position) == '-';
+			if (negative) {
+				position++;
+			}
+			if (position < length && json.charAt(position) == '0') {
+				position++;
+			} else if (!skipDigits()) {
+				throw error("Invalid number");
+			}
+			int digits = position - start - (negative ? 1 : 0);
+			boolean integral = true;
+			if (position < length && json.charAt(position) == '.') {
+				integral = false;
+				position++;
+				if (!skipDigits()) {
+					throw error("Invalid number");
+				}
+			}
+			if (position < length && (json.charAt(position) == 'e' || json.charAt(position) == 'E')) {
+				integral = false;
+				position++;
+				if (position < length && (json.charAt(position) == '+' || json.charAt(position) == '-')) {
+					position++;
+				}
+				if (!skipDigits()) {
+					throw error("Invalid number");
+				}
+			}
+			if (integral && digits <= 18) { // Cannot overflow a long
+				long value = 0;
+				for (int i = position - digits; i < position; i++) {
+					value = value * 10 + (json.charAt(i) - '0');
+				}
+				return new LongValue(negative ? -value : value);
+			}
+			try {
+				return new DecimalValue(new BigDecimal(json.substring(start, position)));
+			} catch (NumberFormatException e) {
+				throw error("Number out of range"); // An exponent beyond the range of an int
+			}
+		}
+
+		/**
+		 * @return boolean - true if at least one digit was skipped
+		 */
+		private boolean skipDigits() {
+			int start = position;
+			while (position < length && json.charAt(position) >= '0' && json.charAt(position) <= '9') {
+				position++;
+			}
+			return position > start;
+		}
+
+		private void readLiteral(String literal) {
+			if (!json.startsWith(literal, position)) {
+				throw error("Unexpected text");
+			}
+			position += literal.length();
+		}
+
+		private void skipWhitespace() {
+			while (position < length) {
+				char c = json.charAt(position);
+				if (c != ' ' && c != '\n' && c != '\r' && c != '\t') {
+					return;
+				}
+				position++;
+			}
+		}
+
+		private JsonException error(String message) {
+			return new JsonException(message + " at offset " + position + " of the JSON response");
+		}
+	}
+
+	/**
+	 * Append a value as compact JSON.
+	 */
+	static void write(StringBuilder out, JsonValue value) {
+		switch (value.getValueType()) {
+		case OBJECT:
+			out.append('{');
+			boolean first = true;
+			for (Map.Entry<String, JsonValue> member : ((JsonObject) value).entrySet()) {
+				if (!first) {
+					out.append(',');
+				}
+				first = false;
+				appendQuoted(out, member.getKey());
+				out.append(':');
+				write(out, member.getValue());
+			}
+			out.append('}');
+			break;
+		case ARRAY:
+			out.append('[');
+			JsonArray array = (JsonArray) value;
+			for (int i = 0; i < array.size(); i++) {
+				if (i > 0) {
+					out.append(',');
+				}
+				write(out, array.get(i));
+			}
+			out.append(']');
+			break;
+		case STRING:
+			appendQuoted(out, ((JsonString) value).getString());
+			break;
+		default:
+			out.append(value.toString());
+		}
+	}
+
+	private static void appendQuoted(StringBuilder out, String text) {
+		out.append('"');
+		for (int i = 0; i < text.length(); i++) {
+			char c = text.charAt(i);
+			if (c >= 0x20 && c != '"' && c != '\\') {
+				out.append(c);
+				continue;
+			}
+			switch (c) {
+			case '"':
+				out.append("\\\"");
+				break;
+			case '\\':
+				out.append("\\\\");
+				break;
+			case '\b':
+				out.append("\\b");
+				break;
+			case '\f':
+				out.append("\\f");
+				break;
+			case '\n':
+				out.append("\\n");
+				break;
+			case '\r':
+				out.append("\\r");
+				break;
+			case '\t':
+				out.append("\\t");
+				break;
+			default:
+				String hex = "000" + Integer.toHexString(c);
+				out.append("\\u").append(hex.substring(hex.length() - 4));
+			}
+		}
+		out.append('"');
+	}
+
+	/**
+	 * An object, its members in the order they were read. A later member of the same name as an earlier one replaces its value.
+	 */
+	static final class ObjectValue extends AbstractMap<String, JsonValue> implements JsonObject {
+		private static final int INDEX_FROM = 8; // members; smaller objects are searched in turn
+
+		private final String[] names;
+		private final JsonValue[] values;
+		private final int[] index; // an open-addressed hash table of member positions + 1; null for a small object
+
+		ObjectValue(String[] name_stack, JsonValue[] value_stack, int from, int to) {
+			int size = to - from;
+			String[] names = new String[size];
+			JsonValue[] values = new JsonValue[size];
+			int[] index = size >= INDEX_FROM ? new int[Integer.highestOneBit(size) * 4] : null;
+			int count = 0;
+			for (int i = from; i < to; i++) {
+				String name = name_stack[i];
+				int existing = index != null ? find(names, index, name) : find(names, count, name);
+				if (existing >= 0) {
+					values[existing] = value_stack[i];
+					continue;
+				}
+				if (index != null) {
+					int mask = index.length - 1;
+					int slot = name.hashCode() & mask;
+					while (index[slot] != 0) {
+						slot = (slot + 1) & mask;
+					}
+					index[slot] = count + 1;
+				}
+				names[count] = name;
+				values[count] = value_stack[i];
+				count++;
+			}
+			this.names = count == size ? names : Arrays.copyOf(names, count);
+			this.values = count == size ? values : Arrays.copyOf(values, count);
+			this.index = index;
+		}
+
+		private static int find(String[] names, int count, Object name) {
+			for (int i = 0; i < count; i++) {
+				if (names[i] == name) {
+					return i;
+				}
+			}
+			for (int i = 0; i < count; i++) {
+				if (names[i].equals(name)) {
+					return i;
+				}
+			}
+			return -1;
+		}
+
+		private static int find(String[] names, int[] index, Object name) {
+			int mask = index.length - 1;
+			for (int slot = name.hashCode() & mask; index[slot] != 0; slot = (slot + 1) & mask) {
+				String candidate = names[index[slot] - 1];
+				if (candidate == name || candidate.equals(name)) {
+					return index[slot] - 1;
+				}
+			}
+			return -1;
+		}
+
+		private int find(Object name) {
+			if (name == null) {
+				return -1;
+			}
+			return index != null ? find(names, index, name) : find(names, names.length, name);
+		}
+
+		public JsonValue get(Object name) {
+			int i = find(name);
+			return i < 0 ? null : values[i];
+		}
+
+		public boolean containsKey(Object name) {
+			return find(name) >= 0;
+		}
+
+		public int size() {
+			return names.length;
+		}
+
+		public boolean isEmpty() {
+			return names.length == 0;
+		}
+
+		public Set<Map.Entry<String, JsonValue>> entrySet() {
+			return new AbstractSet<Map.Entry<String, JsonValue>>() {
+				public Iterator<Map.Entry<String, JsonValue>> iterator() {
+					return new Iterator<Map.Entry<String, JsonValue>>() {
+						private int next = 0;
+
+						public boolean hasNext() {
+							return next < names.length;
+						}
+
+						public Map.Entry<String, JsonValue> next() {
+							if (next >= names.length) {
+								throw new NoSuchElementException();
+							}
+							Map.Entry<String, JsonValue> entry = new AbstractMap.SimpleImmutableEntry<String, JsonValue>(names[next], values[next]);
+							next++;
+							return entry;
+						}
+
+						public void remove() {
+							throw new UnsupportedOperationException();
+						}
+					};
+				}
+
+				public int size() {
+					return names.length;
+				}
+			};
+		}
+
+		public JsonArray getJsonArray(String name) {
+			return (JsonArray) get(name);
+		}
+
+		public JsonObject getJsonObject(String name) {
+			return (JsonObject) get(name);
+		}
+
+		public JsonNumber getJsonNumber(String name) {
+			return (JsonNumber) get(name);
+		}
+
+		public JsonString getJsonString(String name) {
+			return (JsonString) get(name);
+		}
+
+		public String getString(String name) {
+			return getJsonString(name).getString();
+		}
+
+		public String getString(String name, String default_value) {
+			JsonValue value = get(name);
+			return value instanceof JsonString ? ((JsonString) value).getString() : default_value;
+		}
+
+		public int getInt(String name) {
+			return getJsonNumber(name).intValue();
+		}
+
+		public int getInt(String name, int default_value) {
+			JsonValue value = get(name);
+			return value instanceof JsonNumber ? ((JsonNumber) value).intValue() : default_value;
+		}
+
+		public boolean getBoolean(String name) {
+			JsonValue value = get(name);
+			if (value == null) {
+				throw new NullPointerException();
+			}
+			return booleanValue(value);
+		}
+
+		public boolean getBoolean(String name, boolean default_value) {
+			JsonValue value = get(name);
+			return value == JsonValue.TRUE ? true : value == JsonValue.FALSE ? false : default_value;
+		}
+
+		public boolean isNull(String name) {
+			return get(name).equals(JsonValue.NULL);
+		}
+
+		public ValueType getValueType() {
+			return ValueType.OBJECT;
+		}
+
+		public String toString() {
+			StringBuilder out = new StringBuilder();
+			write(out, this);
+			return out.toString();
+		}
+	}
+
+	/**
+	 * An array.
+	 */
+	static final class ArrayValue extends AbstractList<JsonValue> implements JsonArray {
+		private final JsonValue[] values;
+
+		ArrayValue(JsonValue[] values) {
+			this.values = values;
+		}
+
+		public JsonValue get(int i) {
+			return values[i];
+		}
+
+		public int size() {
+			return values.length;
+		}
+
+		public JsonObject getJsonObject(int i) {
+			return (JsonObject) values[i];
+		}
+
+		public JsonArray getJsonArray(int i) {
+			return (JsonArray) values[i];
+		}
+
+		public JsonNumber getJsonNumber(int i) {
+			return (JsonNumber) values[i];
+		}
+
+		public JsonString getJsonString(int i) {
+			return (JsonString) values[i];
+		}
+
+		@SuppressWarnings("unchecked")
+		public <T extends JsonValue> List<T> getValuesAs(Class<T> type) {
+			return (List<T>) this;
+		}
+
+		public String getString(int i) {
+			return getJsonString(i).getString();
+		}
+
+		public String getString(int i, String default_value) {
+			JsonValue value = i >= 0 && i < values.length ? values[i] : null;
+			return value instanceof JsonString ? ((JsonString) value).getString() : default_value;
+		}
+
+		public int getInt(int i) {
+			return getJsonNumber(i).intValue();
+		}
+
+		public int getInt(int i, int default_value) {
+			JsonValue value = i >= 0 && i < values.length ? values[i] : null;
+			return value instanceof JsonNumber ? ((JsonNumber) value).intValue() : default_value;
+		}
+
+		public boolean getBoolean(int i) {
+			return booleanValue(values[i]);
+		}
+
+		public boolean getBoolean(int i, boolean default_value) {
+			JsonValue value = i >= 0 && i < values.length ? values[i] : null;
+			return value == JsonValue.TRUE ? true : value == JsonValue.FALSE ? false : default_value;
+		}
+
+		public boolean isNull(int i) {
+			return values[i].equals(JsonValue.NULL);
+		}
+
+		public ValueType getValueType() {
+			return ValueType.ARRAY;
+		}
+
+		public String toString() {
+			StringBuilder out = new StringBuilder();
+			write(out, this);
+			return out.toString();
+		}
+	}
+
+	private static boolean booleanValue(JsonValue value) {
+		if (value == JsonValue.TRUE) {
+			return true;
+		}
+		if (value == JsonValue.FALSE) {
+			return false;
+		}
+		throw new ClassCastException("Not a boolean: " + value.getValueType());
+	}
+
+	static final class StringValue implements JsonString {
+		private final String value;
+
+		StringValue(String value) {
+			this.value = value;
+		}
+
+		public String getString() {
+			return value;
+		}
+
+		public CharSequence getChars() {
+			return value;
+		}
+
+		public ValueType getValueType() {
+			return ValueType.STRING;
+		}
+
+		public boolean equals(Object other) {
+			return other instanceof JsonString && value.equals(((JsonString) other).getString());
+		}
+
+		public int hashCode() {
+			return value.hashCode();
+		}
+
+		public String toString() {
+			StringBuilder out = new StringBuilder(value.length() + 2);
+			appendQuoted(out, value);
+			return out.toString();
+		}
+	}
+
+	/**
+	 * A number. Two numbers are equal if their BigDecimal values are, so that 1 and 1.0 differ, as in javax.json.
+	 */
+	abstract static class NumberValue implements JsonNumber {
+		public ValueType getValueType() {
+			return ValueType.NUMBER;
+		}
+
+		public boolean equals(Object other) {
+			if (this == other) {
+				return true;
+			}
+			if (other instanceof LongValue && this instanceof LongValue) {
+				return ((LongValue) other).value == ((LongValue) this).value;
+			}
+			return other instanceof JsonNumber && bigDecimalValue().equals(((JsonNumber) other).bigDecimalValue());
+		}
+
+		public int hashCode() {
+			return bigDecimalValue().hashCode();
+		}
+	}
+
+	/**
+	 * An integer of up to 18 digits.
+	 */
+	static final class LongValue extends NumberValue {
+		private final long value;
+
+		LongValue(long value) {
+			this.value = value;
+		}
+
+		public boolean isIntegral() {
+			return true;
+		}
+
+		public int intValue() {
+			return (int) value;
+		}
+
+		public int intValueExact() {
+			if (value < Integer.MIN_VALUE || value > Integer.MAX_VALUE) {
+				throw new ArithmeticException("Out of the range of an int: " + value);
+			}
+			return (int) value;
+		}
+
+		public long longValue() {
+			return value;
+		}
+
+		public long longValueExact() {
+			return value;
+		}
+
+		public BigInteger bigIntegerValue() {
+			return BigInteger.valueOf(value);
+		}
+
+		public BigInteger bigIntegerValueExact() {
+			return BigInteger.valueOf(value);
+		}
+
+		public double doubleValue() {
+			return value;
+		}
+
+		public BigDecimal bigDecimalValue() {
+			return BigDecimal.valueOf(value);
+		}
+
+		public Number numberValue() {
+			return value;
+		}
+
+		public String toString() {
+			return Long.toString(value);
+		}
+	}
+
+	/**
+	 * Any other number: one with a fraction or exponent, or too long for a long.
+	 */
+	static final class DecimalValue extends NumberValue {
+		private final BigDecimal value;
+
+		DecimalValue(BigDecimal value) {
+			this.value = value;
+		}
+
+		public boolean isIntegral() {
+			return value.scale() == 0;
+		}
+
+		public int intValue() {
+			return value.intValue();
+		}
+
+		public int intValueExact() {
+			return value.intValueExact();
+		}
+
+		public long longValue() {
+			return value.longValue();
+		}
+
+		public long longValueExact() {
+			return value.longValueExact();
+		}
+
+		public BigInteger bigIntegerValue() {
+			return value.toBigInteger();
+		}
+
+		public BigInteger bigIntegerValueExact() {
+			return value.toBigIntegerExact();
+		}
+
+		public double doubleValue() {
+			return value.doubleValue();
+		}
+
+		public BigDecimal bigDecimalValue() {
+			return value;
+		}
+
+		public String toString() {
+			return value.toString();
+		}
+	}
+}
@@ -0,0 +1,422 @@
+package workbooks_app.client_lib.java;
+
+import java.util.Random;
+import javax.json.JsonArray;
+import javax.json.JsonException;
+import javax.json.JsonNumber;
+import javax.json.JsonObject;
+import javax.json.JsonValue;
+
+/**
+ *	Unit tests of WorkbooksJsonParser, which check that it decodes as WorkbooksJsonCodec.ReaderCodec does: a fixed corpus
+ *  of escapes, surrogate pairs, long numbers, exponents, duplicate names, deep nesting and malformed text, then random
+ *  documents and random corruptions of them from a fixed seed. Each document must decode to equal values which print
+ *  the same and whose numbers convert the same, or fail to decode with both.
+ *
+ * 	License: www.workbooks.com/mit_license
+ * 	Last commit $Id$
+ */
+
+public class WorkbooksJsonParserTest {
+
+	static TestAssertHelper test = new TestAssertHelper();
+
+	static final WorkbooksJsonCodec parser = new WorkbooksJsonParser();
+	static final WorkbooksJsonCodec reader = new WorkbooksJsonCodec.ReaderCodec();
+
+	static final String[] VALID = {
+		"{}",
+		" \t\r\n{ \"a\" : [ ] , \"b\" : { } } ",
+		"{\"a\":true,\"b\":false,\"c\":null}",
+		"{\"s\":\"\"}",
+		"{\"s\":\"plain text\"}",
+		"{\"s\":\"\\\" \\\\ \\/ \\b \\f \\n \\r \\t\"}",
+		"{\"s\":\"\\u0000\\u001f\\u0041\\u00e9\\u20ac\\uffff\"}",
+		"{\"s\":\"\\uD83D\\uDE00 a surrogate pair\"}",
+		"{\"s\":\"\\ud83d\\ude00 in lower case\"}",
+		"{\"s\":\"\\uD83D alone, then \\uDE00 alone\"}",
+		"{\"s\":\"\u00e9\u20ac\ud83d\ude00 unescaped\"}",
+		"{\"\\u006eame\":\"an escaped name\"}",
+		"{\"n\":[0,-0,1,-1,2147483647,2147483648,-2147483649]}",
+		"{\"n\":[123456789012345678,-123456789012345678,999999999999999999]}",
+		"{\"n\":[1234567890123456789,-1234567890123456789,9223372036854775807,-9223372036854775808]}",
+		"{\"n\":[9223372036854775808,-9223372036854775809,12345678901234567890123]}",
+		"{\"n\":[0.5,-0.5,1.0,1.50,3.141592653589793238462643383279]}",
+		"{\"n\":[1e3,1E3,1e+3,1e-3,-1.5e10,2.5E-7,0e0,1e400,1e-400]}",
+		"{\"n\":[1.0e2,100,1e2]}",
+		"{\"a\":1,\"a\":2}",
+		"{\"a\":{\"x\":1},\"b\":2,\"a\":[3]}",
+		"{\"rows\":[{\"id\":1,\"name\":\"a\"},{\"id\":2,\"name\":\"b\"},{\"name\":\"c\",\"id\":3}]}",
+		"{\"a\":1} trailing text is ignored",
+		"{\"a\":[1,[2,[3,[4,{\"b\":[]}]]]]}",
+	};
+
+	static final String[] MALFORMED = {
+		"",
+		"   ",
+		"[1,2]",
+		"\"text\"",
+		"{",
+		"{\"a\"",
+		"{\"a\":",
+		"{\"a\":1",
+		"{\"a\":1,}",
+		"{,\"a\":1}",
+		"{\"a\" 1}",
+		"{a:1}",
+		"{'a':1}",
+		"{\"a\":[1,]}",
+		"{\"a\":[1 2]}",
+		"{\"a\":tru}",
+		"{\"a\":nul}",
+		"{\"a\":True}",
+		"{\"a\":\"unterminated}",
+		"{\"a\":\"bad \\x escape\"}",
+		"{\"a\":\"short \\u12 escape\"}",
+		"{\"a\":\"bad \\u12G4 escape\"}",
+		"{\"a\":\"a raw\ttab\"}",
+		"{\"a\":\"a raw\nnewline\"}",
+		"{\"a\":01}",
+		"{\"a\":-}",
+		"{\"a\":1.}",
+		"{\"a\":.5}",
+		"{\"a\":1e}",
+		"{\"a\":1e+}",
+		"{\"a\":+1}",
+		"{\"a\":NaN}",
+		"{\"a\":Infinity}",
+	};
+
+	public static void main(String[] args) {
+		testCorpus();
+		testMalformed();
+		testDeepNesting();
+		testNumbers();
+		testRandom();
+		test.testExit(WorkbooksJsonParserTest.class);
+	}
+
+	/**
+	 * @return String - null if both codecs decode the text to the same values, or fail on it; otherwise how they differ
+	 */
+	static String compare(String json) {
+		JsonObject expected = null;
+		JsonObject actual = null;
+		RuntimeException expected_failure = null;
+		RuntimeException actual_failure = null;
+		try {
+			expected = reader.decode(json);
+		} catch (RuntimeException e) {
+			expected_failure = e;
+		}
+		try {
+			actual = parser.decode(json);
+		} catch (RuntimeException e) {
+			actual_failure = e;
+		}
+		if (expected_failure != null || actual_failure != null) {
+			if (expected_failure == null) {
+				return "the parser failed where the reader did not: " + actual_failure;
+			}
+			if (actual_failure == null) {
+				return "the reader failed where the parser did not: " + expected_failure;
+			}
+			if (!(actual_failure instanceof JsonException)) {
+				return "the parser failed with " + actual_failure + " rather than a JsonException";
+			}
+			return null;
+		}
+		if (!expected.equals(actual) || !actual.equals(expected)) {
+			return "the values differ: " + expected + " and " + actual;
+		}
+		if (expected.hashCode() != actual.hashCode()) {
+			return "the hash codes differ";
+		}
+		if (!expected.toString().equals(actual.toString())) {
+			return "the values print differently: " + expected + " and " + actual;
+		}
+		return compareNumbers(expected, actual);
+	}
+
+	/**
+	 * @return String - null if every number converts the same with both codecs, otherwise the first which does not
+	 */
+	static String compareNumbers(JsonValue expected, JsonValue actual) {
+		switch (expected.getValueType()) {
+		case OBJECT:
+			for (String name : ((JsonObject) expected).keySet()) {
+				String difference = compareNumbers(((JsonObject) expected).get(name), ((JsonObject) actual).get(name));
+				if (difference != null) {
+					return difference;
+				}
+			}
+			return null;
+		case ARRAY:
+			for (int i = 0; i < ((JsonArray) expected).size(); i++) {
+				String difference = compareNumbers(((JsonArray) expected).get(i), ((JsonArray) actual).get(i));
+				if (difference != null) {
+					return difference;
+				}
+			}
+			return null;
+		case NUMBER:
+			JsonNumber a = (JsonNumber) expected;
+			JsonNumber b = (JsonNumber) actual;
+			if (Math.abs(a.bigDecimalValue().scale()) > 1000) {
+				// Converting 1e100000 to an integer takes longer than is worth waiting for
+				return a.bigDecimalValue().equals(b.bigDecimalValue()) && a.doubleValue() == b.doubleValue() ? null
+						: "the number " + a + " converts as " + a.bigDecimalValue() + " and " + b.bigDecimalValue();
+			}
+			String conversions = a.isIntegral() + " " + a.intValue() + " " + a.longValue() + " " + a.doubleValue() + " " + a.bigDecimalValue();
+			String other = b.isIntegral() + " " + b.intValue() + " " + b.longValue() + " " + b.doubleValue() + " " + b.bigDecimalValue();
+			if (!conversions.equals(other)) {
+				return "the number " + a + " converts as " + conversions + " and " + other;
+			}
+			String exact = exact(a);
+			if (!exact.equals(exact(b))) {
+				return "the number " + a + " converts exactly as " + exact + " and " + exact(b);
+			}
+			return null;
+		default:
+			return null;
+		}
+	}
+
+	static String exact(JsonNumber number) {
+		StringBuilder result = new StringBuilder();
+		try {
+			result.append(number.intValueExact());
+		} catch (ArithmeticException e) {
+			result.append("-");
+		}
+		result.append(' ');
+		try {
+			result.append(number.longValueExact());
+		} catch (ArithmeticException e) {
+			result.append("-");
+		}
+		result.append(' ');
+		try {
+			result.append(number.bigIntegerValueExact());
+		} catch (ArithmeticException e) {
+			result.append("-");
+		}
+		return result.toString();
+	}
+
+	static void testCorpus() {
+		for (String json : VALID) {
+			String difference = compare(json);
+			test.check(difference == null, "decodes as the reader does: " + json + (difference == null ? "" : " - " + difference));
+		}
+		JsonObject pair = parser.decode("{\"s\":\"\\uD83D\\uDE00\"}");
+		test.checkEqual("\ud83d\ude00", pair.getString("s"), "a surrogate pair is decoded to one character");
+		test.checkEqual(2, parser.decode("{\"a\":1,\"a\":2}").getInt("a"), "the last of duplicate names wins");
+		test.checkEqual(1, parser.decode("{\"a\":1,\"a\":2}").size(), "duplicate names give one member");
+	}
+
+	static void testMalformed() {
+		for (final String json : MALFORMED) {
+			test.check(compare(json) == null, "fails as the reader does: " + json + " - " + compare(json));
+			test.checkThrows(JsonException.class, new Runnable() {
+				public void run() {
+					parser.decode(json);
+				}
+			}, "is refused: " + json);
+		}
+	}
+
+	static String nested(int depth) {
+		StringBuilder json = new StringBuilder("{\"a\":");
+		for (int i = 1; i < depth; i++) {
+			json.append(i % 2 == 0 ? "{\"b\":" : "[");
+		}
+		json.append("null");
+		for (int i = depth - 1; i >= 1; i--) {
+			json.append(i % 2 == 0 ? "}" : "]");
+		}
+		return json.append("}").toString();
+	}
+
+	static void testDeepNesting() {
+		String difference = compare(nested(500));
+		test.check(difference == null, "500 levels of nesting decode as the reader does" + (difference == null ? "" : " - " + difference));
+		test.check(parser.decode(nested(WorkbooksJsonParser.MAX_DEPTH)) != null, "MAX_DEPTH levels of nesting are decoded");
+		test.checkThrows(JsonException.class, new Runnable() {
+			public void run() {
+				parser.decode(nested(WorkbooksJsonParser.MAX_DEPTH + 1));
+			}
+		}, "deeper nesting fails with a JsonException rather than a StackOverflowError");
+	}
+
+	static void testNumbers() {
+		int failures = 0;
+		Random random = new Random(49);
+		for (int i = 0; i < 20000; i++) {
+			String json = "{\"n\":" + number(random) + "}";
+			String difference = compare(json);
+			if (difference != null) {
+				failures++;
+				if (failures <= 5) {
+					System.out.println(json + ": " + difference);
+				}
+			}
+		}
+		test.checkEqual(0, failures, "random numbers of up to 25 digits, with fractions and exponents, decode as the reader does");
+	}
+
+	static void testRandom() {
+		int failures = 0;
+		int corrupted = 0;
+		Random random = new Random(49);
+		for (int i = 0; i < 5000; i++) {
+			StringBuilder json = new StringBuilder();
+			object(random, json, 0);
+			String document = json.toString();
+			String difference = compare(document);
+			if (difference != null) {
+				failures++;
+				if (failures <= 5) {
+					System.out.println(document + ": " + difference);
+				}
+			}
+			String corruption = corrupt(random, document);
+			difference = compare(corruption);
+			if (difference != null) {
+				corrupted++;
+				if (corrupted <= 5) {
+					System.out.println(corruption + ": " + difference);
+				}
+			}
+		}
+		test.checkEqual(0, failures, "random documents decode as the reader does");
+		test.checkEqual(0, corrupted, "random corruptions of them decode, or fail, as the reader does");
+	}
+
+	static final String[] NAMES = {"id", "name", "lock_version", "", "a b", "\\u00e9t\\u00e9", "\\\"quoted\\\"", "id"};
+
+	static void object(Random random, StringBuilder json, int depth) {
+		json.append('{');
+		int members = random.nextInt(depth == 0 ? 8 : 5);
+		for (int i = 0; i < members; i++) {
+			if (i > 0) {
+				json.append(',');
+			}
+			space(random, json);
+			json.append('"').append(NAMES[random.nextInt(NAMES.length)]).append('"');
+			space(random, json);
+			json.append(':');
+			value(random, json, depth + 1);
+		}
+		space(random, json);
+		json.append('}');
+	}
+
+	static void value(Random random, StringBuilder json, int depth) {
+		space(random, json);
+		switch (random.nextInt(depth > 6 ? 5 : 7)) {
+		case 0:
+			json.append(random.nextBoolean() ? "true" : random.nextBoolean() ? "false" : "null");
+			break;
+		case 1:
+		case 2:
+			json.append(number(random));
+			break;
+		case 3:
+		case 4:
+			string(random, json);
+			break;
+		case 5:
+			object(random, json, depth);
+			break;
+		default:
+			json.append('[');
+			int elements = random.nextInt(5);
+			for (int i = 0; i < elements; i++) {
+				if (i > 0) {
+					json.append(',');
+				}
+				value(random, json, depth + 1);
+			}
+			space(random, json);
+			json.append(']');
+		}
+		space(random, json);
+	}
+
+	static final String[] ESCAPES = {"\\\"", "\\\\", "\\/", "\\b", "\\f", "\\n", "\\r", "\\t", "\\u0000", "\\u00E9", "\\u20ac",
+			"\\uD83D\\uDE00", "\\uDBFF\\uDFFF", "\\uD800", "\\uDC00"};
+
+	static void string(Random random, StringBuilder json) {
+		json.append('"');
+		int length = random.nextInt(12);
+		for (int i = 0; i < length; i++) {
+			int kind = random.nextInt(10);
+			if (kind < 5) {
+				char c = (char) (' ' + random.nextInt(95));
+				json.append(c == '"' || c == '\\' ? 'x' : c);
+			} else if (kind < 8) {
+				json.append(ESCAPES[random.nextInt(ESCAPES.length)]);
+			} else if (kind == 8) {
+				json.append((char) (0xa0 + random.nextInt(0xd000)));
+			} else {
+				json.appendCodePoint(0x10000 + random.nextInt(0x10000));
+			}
+		}
+		json.append('"');
+	}
+
+	static String number(Random random) {
+		StringBuilder number = new StringBuilder();
+		if (random.nextBoolean()) {
+			number.append('-');
+		}
+		int digits = 1 + random.nextInt(random.nextInt(4) == 0 ? 25 : 19);
+		number.append(random.nextInt(10) == 0 ? '0' : (char) ('1' + random.nextInt(9)));
+		if (number.charAt(number.length() - 1) != '0') {
+			for (int i = 1; i < digits; i++) {
+				number.append((char) ('0' + random.nextInt(10)));
+			}
+		}
+		if (random.nextInt(3) == 0) {
+			number.append('.');
+			int fraction = 1 + random.nextInt(8);
+			for (int i = 0; i < fraction; i++) {
+				number.append((char) ('0' + random.nextInt(10)));
+			}
+		}
+		if (random.nextInt(4) == 0) {
+			number.append(random.nextBoolean() ? 'e' : 'E');
+			int sign = random.nextInt(3);
+			number.append(sign == 0 ? "" : sign == 1 ? "+" : "-");
+			number.append(random.nextInt(random.nextBoolean() ? 10 : 400));
+		}
+		return number.toString();
+	}
+
+	static void space(Random random, StringBuilder json) {
+		if (random.nextInt(4) == 0) {
+			json.append(" \t\r\n".charAt(random.nextInt(4)));
+		}
+	}
+
+	static final String NOISE = "{}[],:\"\\ -+.eE0123456789tfnulax\u00e9";
+
+	/**
+	 * @return String - the text with a character removed, replaced or inserted, or cut short
+	 */
+	static String corrupt(Random random, String json) {
+		int at = random.nextInt(json.length());
+		char noise = NOISE.charAt(random.nextInt(NOISE.length()));
+		switch (random.nextInt(4)) {
+		case 0:
+			return json.substring(0, at) + json.substring(at + 1);
+		case 1:
+			return json.substring(0, at) + noise + json.substring(at + 1);
+		case 2:
+			return json.substring(0, at) + noise + json.substring(at);
+		default:
+			return json.substring(0, at);
+		}
+	}
+}
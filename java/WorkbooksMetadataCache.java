@@ -0,0 +1,415 @@
+package workbooks_app.client_lib.java;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import javax.json.Json;
+import javax.json.JsonArray;
+import javax.json.JsonArrayBuilder;
+import javax.json.JsonObject;
+import javax.json.JsonReader;
+import javax.json.JsonValue;
+import javax.json.JsonWriter;
+
+/**
+ *	A cache of the per-class metadata returned by the 'metadata/types' endpoint.
+ *
+ *  Metadata describes the custom fields and associations of one database, so every entry is held under
+ *  a scope naming the service and database it was fetched from, and is only returned for that scope.
+ *  One file can hold the metadata of several databases, each under its own scope.
+ *
+ *  Entries are held for a time-to-live and the number of entries is bounded, the least recently
+ *  used being discarded first. The cache can be saved to a local file so that a new process starts
+ *  with the metadata fetched by the previous one. Entries which are close to, or past, their
+ *  time-to-live are still returned but are refreshed in the background so that callers do not wait
+ *  for the service; only entries which are missing or too old to use are fetched synchronously.
+ *
+ * 	License: www.workbooks.com/mit_license
+ * 	Last commit $Id$
+ */
+
+public class WorkbooksMetadataCache {
+
+	/**
+	 * Fetches the metadata for a set of classes from the service. Called on a cache miss and to refresh entries.
+	 */
+	public interface Loader {
+		/**
+		 * @param scope - the scope the metadata is wanted for; a loader no longer connected to it should fail
+		 * @param class_names - the classes to fetch, or null for all classes
+		 * @param columns - the columns to select, or null for the default set
+		 * @return JsonArray - one object per class, each including a 'class_name'
+		 */
+		JsonArray load(String scope, String[] class_names, String[] columns) throws Exception;
+	}
+
+	/**
+	 * An immutable cache entry: the metadata for one class, fetched with a given set of columns.
+	 */
+	static class Entry {
+		final String scope;
+		final String class_name;
+		final String columns_key;
+		final JsonObject data;
+		final long fetched_at;
+
+		Entry(String scope, String class_name, String columns_key, JsonObject data, long fetched_at) {
+			this.scope = scope;
+			this.class_name = class_name;
+			this.columns_key = columns_key;
+			this.data = data;
+			this.fetched_at = fetched_at;
+		}
+	}
+
+	public static final long DEFAULT_TTL = 3600000L; // 1 hour
+	public static final long DEFAULT_MAX_STALE = 86400000L; // 1 day
+	public static final int DEFAULT_MAX_ENTRIES = 1000;
+	public static final int FILE_FORMAT_VERSION = 2; // 2 => entries grouped by scope
+
+	// The class name under which the names of all classes are held, for requests for all classes
+	private static final String ALL_CLASSES = "*";
+
+	/**
+	 * Entries older than this fraction of the time-to-live are refreshed in the background when used.
+	 */
+	public static final double REFRESH_AHEAD = 0.8;
+
+	private final Loader loader;
+	private final ExecutorService executor;
+	private final long ttl;
+	private final long max_stale;
+	private final File file;
+	private final LinkedHashMap<String, Entry> entries;
+	private final Set<String> refreshing = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+	/**
+	 * @param loader - fetches metadata from the service
+	 * @param executor - runs background refreshes and saves; if null these are done in the calling thread
+	 * @param ttl - how long, in milliseconds, an entry is fresh
+	 * @param max_stale - how long, in milliseconds, after expiry an entry may still be returned while it is refreshed
+	 * @param max_entries - the maximum number of classes to hold
+	 * @param file - where to persist the cache between runs, or null to keep it only in memory
+	 */
+	public WorkbooksMetadataCache(Loader loader, ExecutorService executor, long ttl, long max_stale, final int max_entries, File file) {
+		this.loader = loader;
+		this.executor = executor;
+		this.ttl = ttl;
+		this.max_stale = max_stale;
+		this.file = file;
+		this.entries = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+				return size() > max_entries;
+			}
+		};
+		if (file != null && file.exists()) {
+			load();
+		}
+	}
+
+	/**
+	 * Return the metadata for the given classes, fetching only those which are not already held.
+	 *
+	 * @param scope - the service and database the metadata is for
+	 * @param class_names - the classes required; if null or empty then all classes are returned, the list of
+	 *          classes being cached as the classes themselves are
+	 * @param columns - the columns to select, e.g. including 'fields' and 'associations'; 'class_name' is
+	 *          always fetched as well since entries are filed by it
+	 * @return JsonArray - the metadata, in the order requested, for those classes known to the service
+	 */
+	public JsonArray get(String scope, String[] class_names, String[] columns) throws Exception {
+		columns = withClassName(columns);
+		String columns_key = columnsKey(columns);
+		long now = System.currentTimeMillis();
+
+		if (class_names == null || class_names.length == 0) {
+			Entry all;
+			synchronized (entries) {
+				all = entries.get(key(scope, ALL_CLASSES, columns_key));
+			}
+			long age = all == null ? Long.MAX_VALUE : now - all.fetched_at;
+			if (age > ttl + max_stale) {
+				JsonArray rows = loader.load(scope, null, columns);
+				store(scope, rows, columns_key, true);
+				return rows;
+			}
+			if (age > ttl * REFRESH_AHEAD) {
+				refresh(scope, null, columns);
+			}
+			JsonArray names = all.data.getJsonArray("class_names");
+			class_names = new String[names.size()];
+			for (int i = 0; i < class_names.length; i++) {
+				class_names[i] = names.getString(i);
+			}
+		}
+
+		HashMap<String, JsonObject> found = new HashMap<String, JsonObject>();
+		ArrayList<String> missing = new ArrayList<String>();
+		ArrayList<String> ageing = new ArrayList<String>();
+		synchronized (entries) {
+			for (String class_name : class_names) {
+				Entry entry = entries.get(key(scope, class_name, columns_key));
+				long age = entry == null ? Long.MAX_VALUE : now - entry.fetched_at;
+				if (age > ttl + max_stale) {
+					missing.add(class_name);
+				} else {
+					found.put(class_name, entry.data);
+					if (age > ttl * REFRESH_AHEAD) {
+						ageing.add(class_name);
+					}
+				}
+			}
+		}
+
+		if (!missing.isEmpty()) {
+			JsonArray rows = loader.load(scope, missing.toArray(new String[missing.size()]), columns);
+			store(scope, rows, columns_key, false);
+			// Answer from the rows as loaded: the cache may hold fewer classes than were asked for
+			for (int i = 0; rows != null && i < rows.size(); i++) {
+				JsonObject row = rows.getJsonObject(i);
+				if (row.containsKey("class_name") && !row.isNull("class_name")) {
+					found.put(row.getString("class_name"), row);
+				}
+			}
+		}
+		if (!ageing.isEmpty()) {
+			refresh(scope, ageing.toArray(new String[ageing.size()]), columns);
+		}
+
+		JsonArrayBuilder result = Json.createArrayBuilder();
+		for (String class_name : class_names) {
+			JsonObject row = found.get(class_name);
+			if (row != null) {
+				result.add(row);
+			}
+		}
+		return result.build();
+	}
+
+	/**
+	 * Discard all entries, including any which have been saved to the file.
+	 */
+	public void clear() {
+		synchronized (entries) {
+			entries.clear();
+		}
+		if (file != null) {
+			file.delete();
+		}
+	}
+
+	/**
+	 * @return int - the number of entries held
+	 */
+	public int size() {
+		synchronized (entries) {
+			return entries.size();
+		}
+	}
+
+	/**
+	 * Fetch the given classes in the background, replacing the entries held. A class which is already being
+	 * refreshed is not fetched again.
+	 *
+	 * @param class_names - the classes to fetch, or null for all classes
+	 */
+	private void refresh(final String scope, String[] class_names, final String[] columns) {
+		final String columns_key = columnsKey(columns);
+		final boolean all = class_names == null;
+		final ArrayList<String> claimed = new ArrayList<String>();
+		for (String class_name : all ? new String[] {ALL_CLASSES} : class_names) {
+			if (refreshing.add(key(scope, class_name, columns_key))) {
+				claimed.add(class_name);
+			}
+		}
+		if (claimed.isEmpty()) {
+			return;
+		}
+		Runnable task = new Runnable() {
+			public void run() {
+				try {
+					store(scope, loader.load(scope, all ? null : claimed.toArray(new String[claimed.size()]), columns), columns_key, all);
+				} catch (Exception e) {
+					// Keep serving the entries we have; the next use will try again.
+				} finally {
+					for (String class_name : claimed) {
+						refreshing.remove(key(scope, class_name, columns_key));
+					}
+				}
+			}
+		};
+		if (executor != null) {
+			executor.execute(task);
+		} else {
+			task.run();
+		}
+	}
+
+	/**
+	 * Add the fetched metadata to the cache and, if a file is configured, save it.
+	 *
+	 * @param all - true if the rows are those of all classes, whose names are then held as well
+	 */
+	private void store(String scope, JsonArray rows, String columns_key, boolean all) {
+		if (rows == null) {
+			return;
+		}
+		long now = System.currentTimeMillis();
+		JsonArrayBuilder class_names = Json.createArrayBuilder();
+		synchronized (entries) {
+			for (int i = 0; i < rows.size(); i++) {
+				JsonObject row = rows.getJsonObject(i);
+				if (row.containsKey("class_name") && !row.isNull("class_name")) {
+					String class_name = row.getString("class_name");
+					entries.put(key(scope, class_name, columns_key), new Entry(scope, class_name, columns_key, row, now));
+					class_names.add(class_name);
+				}
+			}
+			if (all) {
+				JsonObject names = Json.createObjectBuilder().add("class_names", class_names).build();
+				entries.put(key(scope, ALL_CLASSES, columns_key), new Entry(scope, ALL_CLASSES, columns_key, names, now));
+			}
+		}
+		if (file != null) {
+			Runnable task = new Runnable() {
+				public void run() {
+					save();
+				}
+			};
+			if (executor != null) {
+				executor.execute(task);
+			} else {
+				task.run();
+			}
+		}
+	}
+
+	/**
+	 * Write the cache to its file. The file is written under a temporary name of its own and then renamed, so
+	 * that another process never reads a partially-written file and processes saving at the same time do not
+	 * write into each other's file; the last to rename wins.
+	 */
+	public synchronized void save() {
+		if (file == null) {
+			return;
+		}
+		LinkedHashMap<String, JsonArrayBuilder> scopes = new LinkedHashMap<String, JsonArrayBuilder>();
+		synchronized (entries) {
+			for (Entry entry : entries.values()) {
+				if (!scopes.containsKey(entry.scope)) {
+					scopes.put(entry.scope, Json.createArrayBuilder());
+				}
+				scopes.get(entry.scope).add(Json.createObjectBuilder()
+						.add("class_name", entry.class_name)
+						.add("columns", entry.columns_key)
+						.add("fetched_at", entry.fetched_at)
+						.add("data", entry.data));
+			}
+		}
+		JsonArrayBuilder saved = Json.createArrayBuilder();
+		for (Map.Entry<String, JsonArrayBuilder> scope : scopes.entrySet()) {
+			saved.add(Json.createObjectBuilder()
+					.add("scope", scope.getKey())
+					.add("entries", scope.getValue()));
+		}
+		JsonObject document = Json.createObjectBuilder()
+				.add("version", FILE_FORMAT_VERSION)
+				.add("scopes", saved)
+				.build();
+
+		File tmp = null;
+		try {
+			tmp = File.createTempFile(file.getName() + ".", ".tmp", file.getAbsoluteFile().getParentFile());
+			JsonWriter writer = Json.createWriter(new OutputStreamWriter(new FileOutputStream(tmp), WorkbooksApi.CHARSET));
+			writer.writeObject(document);
+			writer.close();
+			if (!tmp.renameTo(file)) {
+				file.delete();
+				tmp.renameTo(file);
+			}
+		} catch (Exception e) {
+			if (tmp != null) {
+				tmp.delete(); // The cache is only an optimisation: carry on without it
+			}
+		}
+	}
+
+	/**
+	 * Read the cache from its file. A file which cannot be read, or which was written by an incompatible
+	 * version (including version 1, whose entries do not say which database they came from), is ignored.
+	 */
+	private void load() {
+		try {
+			JsonReader reader = Json.createReader(new InputStreamReader(new FileInputStream(file), WorkbooksApi.CHARSET));
+			JsonObject document = reader.readObject();
+			reader.close();
+			if (document.getInt("version", 0) != FILE_FORMAT_VERSION) {
+				return;
+			}
+			JsonArray saved = document.getJsonArray("scopes");
+			synchronized (entries) {
+				for (JsonValue group : saved) {
+					String scope = ((JsonObject) group).getString("scope");
+					for (JsonValue value : ((JsonObject) group).getJsonArray("entries")) {
+						JsonObject entry = (JsonObject) value;
+						String class_name = entry.getString("class_name");
+						String columns_key = entry.getString("columns");
+						entries.put(key(scope, class_name, columns_key), new Entry(scope, class_name, columns_key, entry.getJsonObject("data"),
+								entry.getJsonNumber("fetched_at").longValue()));
+					}
+				}
+			}
+		} catch (IOException e) {
+			// Start with an empty cache
+		} catch (RuntimeException e) {
+			// A corrupt file: start with an empty cache
+		}
+	}
+
+	private static String key(String scope, String class_name, String columns_key) {
+		return scope + "|" + class_name + "|" + columns_key;
+	}
+
+	/**
+	 * @return String[] - the columns, with 'class_name' added if they do not include it
+	 */
+	private static String[] withClassName(String[] columns) {
+		if (columns == null || Arrays.asList(columns).contains("class_name")) {
+			return columns; // The default set includes the class name
+		}
+		String[] with = Arrays.copyOf(columns, columns.length + 1);
+		with[columns.length] = "class_name";
+		return with;
+	}
+
+	/**
+	 * The same columns in any order select the same metadata.
+	 */
+	private static String columnsKey(String[] columns) {
+		if (columns == null) {
+			return "";
+		}
+		String[] sorted = Arrays.copyOf(columns, columns.length);
+		Arrays.sort(sorted);
+		StringBuilder key = new StringBuilder();
+		for (String column : sorted) {
+			key.append(column).append(',');
+		}
+		return key.toString();
+	}
+}
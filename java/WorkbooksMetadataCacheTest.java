@@ -0,0 +1,134 @@
+package workbooks_app.client_lib.java;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import javax.json.Json;
+import javax.json.JsonArray;
+import javax.json.JsonArrayBuilder;
+import javax.json.JsonWriter;
+
+/**
+ *	Unit tests of WorkbooksMetadataCache: separation of scopes, column selections without 'class_name',
+ *  caching of all classes, and saving to and loading from a file.
+ *
+ * 	License: www.workbooks.com/mit_license
+ * 	Last commit $Id$
+ */
+
+public class WorkbooksMetadataCacheTest {
+
+	static TestAssertHelper test = new TestAssertHelper();
+
+	static final String[] ALL = {"Private::Crm::Person", "Private::Crm::Organisation", "Private::Crm::Case"};
+
+	public static void main(String[] args) throws Exception {
+		testScopes();
+		testColumns();
+		testAllClasses();
+		testFile();
+		test.testExit(WorkbooksMetadataCacheTest.class);
+	}
+
+	/**
+	 * A loader which records its calls and answers with one row per class, naming the scope it was loaded for.
+	 */
+	static class RecordingLoader implements WorkbooksMetadataCache.Loader {
+		final List<String> calls = new ArrayList<String>();
+
+		public JsonArray load(String scope, String[] class_names, String[] columns) {
+			calls.add(scope + " " + (class_names == null ? "*" : Arrays.toString(class_names)) + " " + Arrays.toString(columns));
+			JsonArrayBuilder rows = Json.createArrayBuilder();
+			for (String class_name : class_names == null ? ALL : class_names) {
+				rows.add(Json.createObjectBuilder().add("class_name", class_name).add("scope", scope));
+			}
+			return rows.build();
+		}
+	}
+
+	static WorkbooksMetadataCache cache(RecordingLoader loader, File file) {
+		return new WorkbooksMetadataCache(loader, null, 3600000L, 0, 100, file);
+	}
+
+	static void testScopes() throws Exception {
+		RecordingLoader loader = new RecordingLoader();
+		WorkbooksMetadataCache cache = cache(loader, null);
+		String[] person = {"Private::Crm::Person"};
+		String[] columns = {"class_name", "fields"};
+
+		cache.get("service db1", person, columns);
+		JsonArray again = cache.get("service db1", person, columns);
+		test.checkEqual(1, loader.calls.size(), "a second get in the same scope is answered from the cache");
+		test.checkEqual("service db1", again.getJsonObject(0).getString("scope"), "the cached row is returned");
+
+		JsonArray other = cache.get("service db2", person, columns);
+		test.checkEqual(2, loader.calls.size(), "another database is fetched, not served from the first");
+		test.checkEqual("service db2", other.getJsonObject(0).getString("scope"), "the other database's row is returned");
+	}
+
+	static void testColumns() throws Exception {
+		RecordingLoader loader = new RecordingLoader();
+		WorkbooksMetadataCache cache = cache(loader, null);
+		String[] classes = {"Private::Crm::Person", "Private::Crm::Case"};
+		String[] columns = {"fields", "associations"};
+
+		JsonArray first = cache.get("s", classes, columns);
+		test.checkEqual(2, first.size(), "columns without class_name still return the classes");
+		test.check(loader.calls.get(0).endsWith("[fields, associations, class_name]"), "class_name is added to the columns fetched");
+		JsonArray second = cache.get("s", classes, columns);
+		test.checkEqual(1, loader.calls.size(), "and the classes are cached");
+		test.checkEqual(2, second.size(), "so both are returned from the cache");
+	}
+
+	static void testAllClasses() throws Exception {
+		RecordingLoader loader = new RecordingLoader();
+		WorkbooksMetadataCache cache = cache(loader, null);
+
+		JsonArray all = cache.get("s", null, null);
+		test.checkEqual(ALL.length, all.size(), "all classes are returned");
+		JsonArray again = cache.get("s", new String[0], null);
+		test.checkEqual(1, loader.calls.size(), "a second request for all classes is answered from the cache");
+		test.checkEqual(all, again, "with the same rows in the same order");
+		cache.get("s", new String[] {"Private::Crm::Case"}, null);
+		test.checkEqual(1, loader.calls.size(), "a class fetched with all classes is cached");
+		cache.get("other", null, null);
+		test.checkEqual(2, loader.calls.size(), "all classes of another scope are fetched");
+	}
+
+	static void testFile() throws Exception {
+		File dir = File.createTempFile("metadata", "");
+		dir.delete();
+		dir.mkdir();
+		File file = new File(dir, "metadata.json");
+		try {
+			String[] person = {"Private::Crm::Person"};
+			RecordingLoader loader = new RecordingLoader();
+			WorkbooksMetadataCache cache = cache(loader, file);
+			cache.get("service db1", person, null);
+			cache.get("service db2", person, null);
+			test.check(file.exists(), "the cache is saved");
+			test.checkEqual(1, dir.list().length, "no temporary files are left behind");
+
+			RecordingLoader reloaded = new RecordingLoader();
+			WorkbooksMetadataCache next = cache(reloaded, file);
+			test.checkEqual(2, next.size(), "both scopes are reloaded");
+			test.checkEqual("service db2", next.get("service db2", person, null).getJsonObject(0).getString("scope"),
+					"each scope's entries are returned for that scope");
+			test.checkEqual(0, reloaded.calls.size(), "without fetching");
+			next.get("service db3", person, null);
+			test.checkEqual(1, reloaded.calls.size(), "a scope not in the file is fetched");
+
+			JsonWriter writer = Json.createWriter(new FileOutputStream(file));
+			writer.writeObject(Json.createObjectBuilder().add("version", 1).add("entries", Json.createArrayBuilder()).build());
+			writer.close();
+			test.checkEqual(0, cache(new RecordingLoader(), file).size(), "a file of the earlier format is ignored");
+		} finally {
+			for (File f : dir.listFiles()) {
+				f.delete();
+			}
+			dir.delete();
+		}
+	}
+}
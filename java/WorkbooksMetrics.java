@@ -0,0 +1,152 @@
+package workbooks_app.client_lib.java;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ *	A registry of counters, timings and gauges describing the requests made by one or more WorkbooksApi objects,
+ *  e.g. for export to a monitoring system. Updates are lock-free so that recording costs little on the request path.
+ *
+ *  A scope, such as one per tenant, records under its own prefixed names and also counts towards the
+ *  un-prefixed totals of the registry it was created from:
+ *    metrics.scope("tenant.acme").increment("requests") adds one to both 'tenant.acme.requests' and 'requests'.
+ *
+ * 	License: www.workbooks.com/mit_license
+ * 	Last commit $Id$
+ */
+
+public class WorkbooksMetrics {
+
+	/**
+	 * A value which is read when a snapshot is taken, e.g. the current size of a queue.
+	 */
+	public interface Gauge {
+		long value();
+	}
+
+	private final ConcurrentHashMap<String, AtomicLong> values;
+	private final ConcurrentHashMap<String, Gauge> gauges;
+	private final String prefix;
+	private final WorkbooksMetrics parent;
+	// The names under which each timing is recorded, so that recording one does not build them each time
+	private final ConcurrentHashMap<String, String[]> timing_names = new ConcurrentHashMap<String, String[]>();
+
+	public WorkbooksMetrics() {
+		this(new ConcurrentHashMap<String, AtomicLong>(), new ConcurrentHashMap<String, Gauge>(), "", null);
+	}
+
+	private WorkbooksMetrics(ConcurrentHashMap<String, AtomicLong> values, ConcurrentHashMap<String, Gauge> gauges, String prefix, WorkbooksMetrics parent) {
+		this.values = values;
+		this.gauges = gauges;
+		this.prefix = prefix;
+		this.parent = parent;
+	}
+
+	/**
+	 * @param name - e.g. 'tenant.acme'
+	 * @return WorkbooksMetrics - a view of this registry which records under names beginning with the given name
+	 */
+	public WorkbooksMetrics scope(String name) {
+		return new WorkbooksMetrics(values, gauges, prefix + name + ".", this);
+	}
+
+	public void increment(String name) {
+		add(name, 1);
+	}
+
+	/**
+	 * Add to a counter, creating it if necessary.
+	 */
+	public void add(String name, long delta) {
+		valueOf(named(name)).addAndGet(delta);
+		if (parent != null) {
+			parent.add(name, delta);
+		}
+	}
+
+	/**
+	 * Record the duration of an operation: the '.count', '.total' and '.max' of the name are updated.
+	 */
+	public void record(String name, long millis) {
+		String[] names = timing_names.get(name);
+		if (names == null) {
+			names = new String[] { named(name + ".count"), named(name + ".total"), named(name + ".max") };
+			timing_names.putIfAbsent(name, names);
+		}
+		valueOf(names[0]).incrementAndGet();
+		valueOf(names[1]).addAndGet(millis);
+		AtomicLong max = valueOf(names[2]);
+		long current = max.get();
+		while (millis > current && !max.compareAndSet(current, millis)) {
+			current = max.get();
+		}
+		if (parent != null) {
+			parent.record(name, millis);
+		}
+	}
+
+	/**
+	 * Set a value within this scope only, e.g. the current limit of a limiter.
+	 */
+	public void set(String name, long value) {
+		valueOf(named(name)).set(value);
+	}
+
+	/**
+	 * Register a value to be read whenever a snapshot is taken, replacing any gauge of the same name.
+	 */
+	public void gauge(String name, Gauge gauge) {
+		gauges.put(prefix + name, gauge);
+	}
+
+	/**
+	 * Stop reading a gauge, e.g. once what it reports has gone away.
+	 */
+	public void removeGauge(String name) {
+		gauges.remove(prefix + name);
+	}
+
+	/**
+	 * @return long - the current value of a counter, timing component, set value or gauge, or 0 if there is none
+	 */
+	public long get(String name) {
+		Gauge gauge = gauges.get(prefix + name);
+		if (gauge != null) {
+			return gauge.value();
+		}
+		AtomicLong value = values.get(prefix + name);
+		return value == null ? 0 : value.get();
+	}
+
+	/**
+	 * @return TreeMap - all values in the registry, including other scopes, sorted by name
+	 */
+	public TreeMap<String, Long> snapshot() {
+		TreeMap<String, Long> snapshot = new TreeMap<String, Long>();
+		for (Map.Entry<String, AtomicLong> entry : values.entrySet()) {
+			snapshot.put(entry.getKey(), entry.getValue().get());
+		}
+		for (Map.Entry<String, Gauge> entry : gauges.entrySet()) {
+			snapshot.put(entry.getKey(), entry.getValue().value());
+		}
+		return snapshot;
+	}
+
+	private String named(String name) {
+		return prefix.length() == 0 ? name : prefix + name;
+	}
+
+	private AtomicLong valueOf(String name) {
+		AtomicLong value = values.get(name);
+		if (value == null) {
+			AtomicLong created = new AtomicLong();
+			value = values.putIfAbsent(name, created);
+			if (value == null) {
+				value = created;
+			}
+		}
+		return value;
+	}
+}
@@ -0,0 +1,308 @@
+package workbooks_app.client_lib.java;
+
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ *	A client for many Workbooks databases ('tenants') at once. Each tenant has its own WorkbooksApi object, and so its
+ *  own credentials and session (logical_database_id, database_instance_id, authenticity_token), but all share one
+ *  background executor, one metrics registry and one WorkbooksTls. The JVM keeps connections alive separately for each
+ *  socket factory, so sharing the WorkbooksTls is what lets a connection kept alive for one tenant be reused by another,
+ *  and lets any tenant resume the TLS sessions of the others. Tenants which set 'http2' share one HTTP/2 transport too.
+ *
+ *  Each tenant has a quota of concurrent requests, and all tenants together are bounded by an overall limit, so that
+ *  one busy tenant cannot take every connection: a request beyond its tenant's quota waits for one of that tenant's
+ *  requests to finish, up to the quota timeout.
+ *
+ *  Example:
+ *    WorkbooksMultiTenantClient client = new WorkbooksMultiTenantClient(64, 30);
+ *    client.addTenant("acme", acmeParams, 8);
+ *    WorkbooksApi.WorkbooksApiResponse response = client.get("acme", "crm/people", params, null);
+ *
+ * 	License: www.workbooks.com/mit_license
+ * 	Last commit $Id$
+ */
+
+public class WorkbooksMultiTenantClient {
+
+	/**
+	 * One tenant: its API object and its quota of concurrent requests.
+	 */
+	static class Tenant {
+		final String tenant_id;
+		final WorkbooksApi workbooks;
+		final Semaphore quota;
+		final int max_concurrent;
+
+		Tenant(String tenant_id, WorkbooksApi workbooks, int max_concurrent) {
+			this.tenant_id = tenant_id;
+			this.workbooks = workbooks;
+			this.quota = new Semaphore(max_concurrent, true);
+			this.max_concurrent = max_concurrent;
+		}
+	}
+
+	public static final int DEFAULT_MAX_CONCURRENT = 64;
+	public static final long DEFAULT_QUOTA_TIMEOUT = 30000L; // 30 seconds
+
+	private final ConcurrentHashMap<String, Tenant> tenants = new ConcurrentHashMap<String, Tenant>();
+	private final WorkbooksMetrics metrics = new WorkbooksMetrics();
+	private final ScheduledExecutorService executor;
+	private final Semaphore overall;
+	private final int max_concurrent;
+	private final long quota_timeout;
+	private WorkbooksTls tls = null; // created on first use
+	private WorkbooksTransport transport = null; // created for the first tenant which sets 'http2'
+
+	public WorkbooksMultiTenantClient() {
+		this(DEFAULT_MAX_CONCURRENT, DEFAULT_QUOTA_TIMEOUT / 1000);
+	}
+
+	/**
+	 * @param max_concurrent - the most requests in progress at once over all tenants
+	 * @param quota_timeout - how long, in seconds, a request waits for its tenant's quota before failing
+	 */
+	public WorkbooksMultiTenantClient(int max_concurrent, long quota_timeout) {
+		this.overall = new Semaphore(max_concurrent, true);
+		this.max_concurrent = max_concurrent;
+		this.quota_timeout = quota_timeout * 1000;
+		this.executor = new ScheduledThreadPoolExecutor(2, new ThreadFactory() {
+			public Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable, "workbooks-api-background");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		metrics.gauge("in_flight", new WorkbooksMetrics.Gauge() {
+			public long value() {
+				return WorkbooksMultiTenantClient.this.max_concurrent - overall.availablePermits();
+			}
+		});
+	}
+
+	/**
+	 * Add a tenant, building its WorkbooksApi object with the shared executor, TLS configuration and HTTP/2 transport, and a scope
+	 * of the shared metrics registry named 'tenant.<tenant_id>'. If the params have no api_key, log in with
+	 * getTenant(tenant_id).login() before use. A tenant whose params give an 'ssl_context', 'tls_session_cache_size' or
+	 * 'tls_session_timeout' has TLS, and so kept-alive connections, of its own. The HTTP/2 transport is built with the
+	 * 'connect_timeout' and 'http2_max_streams' of the first tenant to set 'http2'.
+	 *
+	 * @param tenant_id - how the caller names the tenant
+	 * @param params - WorkbooksApi constructor parameters, including the tenant's credentials and logical_database_id
+	 * @param max_concurrent - the tenant's quota of requests in progress at once
+	 * @return WorkbooksApi - the tenant's API object
+	 * @throws Exception
+	 */
+	public WorkbooksApi addTenant(final String tenant_id, HashMap<String, Object> params, int max_concurrent) throws Exception {
+		if (tenants.containsKey(tenant_id)) {
+			throw new Exception("Tenant " + tenant_id + " has already been added");
+		}
+		params = new HashMap<String, Object>(params);
+		params.put("background_executor", executor);
+		params.put("metrics", metrics.scope("tenant." + tenant_id));
+		if (!params.containsKey("ssl_context") && !params.containsKey("tls_session_cache_size") && !params.containsKey("tls_session_timeout")) {
+			params.put("tls", getTls());
+			if (params.containsKey("http2") && (Boolean) params.get("http2")
+					&& !(params.containsKey("verify_peer") && !(Boolean) params.get("verify_peer"))) {
+				WorkbooksTransport shared = getTransport(params);
+				if (shared != null) {
+					params.put("transport", shared);
+				}
+			}
+		}
+		final Tenant tenant = new Tenant(tenant_id, new WorkbooksApi(params), max_concurrent);
+		if (tenants.putIfAbsent(tenant_id, tenant) != null) {
+			tenant.workbooks.close(); // Added by another thread meanwhile
+			throw new Exception("Tenant " + tenant_id + " has already been added");
+		}
+		metrics.gauge("tenant." + tenant_id + ".in_flight", new WorkbooksMetrics.Gauge() {
+			public long value() {
+				return tenant.max_concurrent - tenant.quota.availablePermits();
+			}
+		});
+		return tenant.workbooks;
+	}
+
+	/**
+	 * Remove a tenant, logging out of its session if it has logged in. Its counters stay in the shared registry; its gauge is removed.
+	 */
+	public void removeTenant(String tenant_id) {
+		Tenant tenant = tenants.remove(tenant_id);
+		if (tenant != null) {
+			metrics.removeGauge("tenant." + tenant_id + ".in_flight");
+			tenant.workbooks.stopKeepAlive();
+		}
+		if (tenant != null && tenant.workbooks.getApi_key() == null && tenant.workbooks.isLogin_state()) {
+			try {
+				tenant.workbooks.logout();
+			} catch (Exception e) {
+				// The session will expire on the service in due course
+			}
+		}
+		if (tenant != null) {
+			tenant.workbooks.close();
+		}
+	}
+
+	/**
+	 * @return WorkbooksApi - the tenant's API object, e.g. to log in; requests made with it directly do not count against the quotas
+	 */
+	public WorkbooksApi getTenant(String tenant_id) {
+		return tenantFor(tenant_id).workbooks;
+	}
+
+	public Set<String> getTenant_ids() {
+		return tenants.keySet();
+	}
+
+	/**
+	 * Run a task with a tenant's API object, within the tenant's quota.
+	 *
+	 * @return the result of the task
+	 * @throws Exception - as raised by the task, or a WorkbooksQuotaTimeoutException if the quota timeout passes first
+	 */
+	public <T> T execute(String tenant_id, WorkbooksSessionPool.Task<T> task) throws Exception {
+		Tenant tenant = tenantFor(tenant_id);
+		acquire(tenant);
+		try {
+			return task.run(tenant.workbooks);
+		} finally {
+			release(tenant);
+		}
+	}
+
+	/**
+	 * As WorkbooksApi.get(), for a tenant and within its quota.
+	 */
+	public WorkbooksApi.WorkbooksApiResponse get(String tenant_id, String endpoint, HashMap<String, Object> params, HashMap<String, Object> options)
+			throws WorkbooksApi.WorkbooksApiException {
+		Tenant tenant = tenantFor(tenant_id);
+		acquire(tenant);
+		try {
+			return tenant.workbooks.get(endpoint, params, options);
+		} finally {
+			release(tenant);
+		}
+	}
+
+	/**
+	 * As WorkbooksApi.batch(), for a tenant and within its quota.
+	 */
+	public WorkbooksApi.WorkbooksApiResponse batch(String tenant_id, String endpoint, ArrayList<HashMap<String, Object>> objs, HashMap<String, Object> params,
+			String method, HashMap<String, Object> options) throws WorkbooksApi.WorkbooksApiException {
+		Tenant tenant = tenantFor(tenant_id);
+		acquire(tenant);
+		try {
+			return tenant.workbooks.batch(endpoint, objs, params, method, options);
+		} finally {
+			release(tenant);
+		}
+	}
+
+	/**
+	 * @return WorkbooksMetrics - the registry shared by all tenants; each tenant's values are named 'tenant.<tenant_id>.<name>'
+	 */
+	public WorkbooksMetrics getMetrics() {
+		return metrics;
+	}
+
+	/**
+	 * @return WorkbooksTls - the TLS configuration, and so the pool of kept-alive connections, shared by the tenants
+	 * @throws GeneralSecurityException - if no SSLContext can be created
+	 */
+	public synchronized WorkbooksTls getTls() throws GeneralSecurityException {
+		if (tls == null) {
+			tls = new WorkbooksTls(-1, -1, metrics);
+		}
+		return tls;
+	}
+
+	/**
+	 * @return WorkbooksTransport - the HTTP/2 transport shared by tenants which set 'http2', created with the options of the first;
+	 *         null if it cannot be created, in which case each tenant falls back as WorkbooksApi.getTransport() does
+	 */
+	private synchronized WorkbooksTransport getTransport(HashMap<String, Object> params) throws GeneralSecurityException {
+		if (transport == null) {
+			// WorkbooksApi's defaults unless the tenant sets them
+			long connect_timeout = params.containsKey("connect_timeout") ? Integer.parseInt(params.get("connect_timeout").toString()) * 1000L : 120000L;
+			int max_streams = params.containsKey("http2_max_streams") ? Integer.parseInt(params.get("http2_max_streams").toString()) : 100;
+			try {
+				transport = WorkbooksApi.newHttp2Transport(getTls().getContext(), connect_timeout, max_streams);
+			} catch (Exception e) {
+				return null;
+			} catch (LinkageError e) {
+				return null;
+			}
+		}
+		return transport;
+	}
+
+	public ScheduledExecutorService getExecutor() {
+		return executor;
+	}
+
+	public int getMax_concurrent() {
+		return max_concurrent;
+	}
+
+	/**
+	 * Log out of every tenant's session and stop the shared executor.
+	 */
+	public void close() {
+		for (String tenant_id : new ArrayList<String>(tenants.keySet())) {
+			removeTenant(tenant_id);
+		}
+		executor.shutdownNow();
+	}
+
+	private Tenant tenantFor(String tenant_id) {
+		Tenant tenant = tenants.get(tenant_id);
+		if (tenant == null) {
+			throw new IllegalArgumentException("Unknown tenant: " + tenant_id);
+		}
+		return tenant;
+	}
+
+	/**
+	 * Take a permit from the tenant's quota and then from the overall limit, within the quota timeout.
+	 */
+	private void acquire(Tenant tenant) throws WorkbooksApi.WorkbooksApiException {
+		long deadline = System.currentTimeMillis() + quota_timeout;
+		boolean acquired = false;
+		try {
+			if (tenant.quota.tryAcquire(quota_timeout, TimeUnit.MILLISECONDS)) {
+				if (overall.tryAcquire(Math.max(0, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS)) {
+					acquired = true;
+				} else {
+					tenant.quota.release();
+				}
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		if (!acquired) {
+			tenant.workbooks.getMetrics().increment("quota_timeouts");
+			HashMap<String, Object> exceptionObj = new HashMap<String, Object>();
+			HashMap<String, Object> errorObj = new HashMap<String, Object>();
+			errorObj.put("message", "Timed out waiting for the request quota of tenant " + tenant.tenant_id);
+			errorObj.put("type", "QuotaTimeoutException");
+
+			exceptionObj.put("workbooks_api", tenant.workbooks);
+			exceptionObj.put("error", errorObj);
+			throw tenant.workbooks.new WorkbooksQuotaTimeoutException(exceptionObj);
+		}
+	}
+
+	private void release(Tenant tenant) {
+		overall.release();
+		tenant.quota.release();
+	}
+}
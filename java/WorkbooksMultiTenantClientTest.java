@@ -0,0 +1,82 @@
+package workbooks_app.client_lib.java;
+
+import java.util.HashMap;
+import javax.net.ssl.SSLContext;
+
+/**
+ *	Unit tests of WorkbooksMultiTenantClient: what its tenants share, and the removal of tenants.
+ *
+ * 	License: www.workbooks.com/mit_license
+ * 	Last commit $Id$
+ */
+
+public class WorkbooksMultiTenantClientTest {
+
+	static TestAssertHelper test = new TestAssertHelper();
+
+	public static void main(String[] args) throws Exception {
+		testSharing();
+		testHttp2();
+		testRemove();
+		test.testExit(WorkbooksMultiTenantClientTest.class);
+	}
+
+	static HashMap<String, Object> params(String api_key) {
+		HashMap<String, Object> params = new HashMap<String, Object>();
+		params.put("application_name", "test");
+		params.put("user_agent", "test/1.0");
+		params.put("api_key", api_key);
+		return params;
+	}
+
+	static void testSharing() throws Exception {
+		WorkbooksMultiTenantClient client = new WorkbooksMultiTenantClient(8, 1);
+		WorkbooksApi acme = client.addTenant("acme", params("acme-key"), 4);
+		WorkbooksApi globex = client.addTenant("globex", params("globex-key"), 4);
+		test.check(acme.getTls() == globex.getTls(), "tenants share one WorkbooksTls");
+		test.check(acme.getTls().getSocketFactory() == globex.getTls().getSocketFactory(),
+				"tenants share one socket factory, and so one pool of kept-alive connections");
+		test.check(acme.getTls() == client.getTls(), "the shared WorkbooksTls is the client's");
+		test.check(acme.getBackgroundExecutor() == client.getExecutor(), "tenants share the client's executor");
+
+		HashMap<String, Object> own = params("initech-key");
+		SSLContext context = SSLContext.getInstance("TLS");
+		context.init(null, null, null);
+		own.put("ssl_context", context);
+		WorkbooksApi initech = client.addTenant("initech", own, 4);
+		test.check(initech.getTls() != acme.getTls() && initech.getTls().getContext() == context, "a tenant with its own ssl_context keeps it");
+		client.close();
+	}
+
+	static void testHttp2() throws Exception {
+		WorkbooksMultiTenantClient client = new WorkbooksMultiTenantClient(8, 1);
+		HashMap<String, Object> acme_params = params("acme-key");
+		acme_params.put("http2", true);
+		HashMap<String, Object> globex_params = params("globex-key");
+		globex_params.put("http2", true);
+		WorkbooksApi acme = client.addTenant("acme", acme_params, 4);
+		WorkbooksApi globex = client.addTenant("globex", globex_params, 4);
+		WorkbooksApi plain = client.addTenant("initech", params("initech-key"), 4);
+		test.check(acme.getTransport() != null && acme.getTransport() == globex.getTransport(), "tenants which set http2 share one transport");
+		test.check(plain.getTransport() == null, "a tenant which does not set http2 uses HttpURLConnection");
+		client.close();
+	}
+
+	static void testRemove() throws Exception {
+		WorkbooksMultiTenantClient client = new WorkbooksMultiTenantClient(8, 1);
+		client.addTenant("acme", params("acme-key"), 4);
+		try {
+			client.addTenant("acme", params("acme-key"), 4);
+			test.check(false, "a tenant cannot be added twice");
+		} catch (Exception e) {
+			test.check(true, "a tenant cannot be added twice");
+		}
+		test.check(client.getMetrics().snapshot().containsKey("tenant.acme.in_flight"), "a tenant has an in_flight gauge");
+		client.removeTenant("acme");
+		test.check(!client.getMetrics().snapshot().containsKey("tenant.acme.in_flight"), "a removed tenant's gauge is removed");
+		test.check(client.getTenant_ids().isEmpty(), "a removed tenant is forgotten");
+		client.addTenant("acme", params("acme-key"), 4);
+		test.check(client.getTenant_ids().contains("acme"), "a removed tenant can be added again");
+		client.close();
+	}
+}
@@ -0,0 +1,195 @@
+package workbooks_app.client_lib.java;
+
+import java.lang.ref.WeakReference;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ *	A client-side rate limit, so that requests stay smoothly under the usage limits of the service rather than being
+ *  throttled by it. Requests are counted against a token bucket for the database (or API key) and, optionally, one
+ *  for the endpoint; a request which finds a bucket empty waits for a token, up to a maximum wait, or fails at once.
+ *
+ *  Each bucket is held as a single 'theoretical arrival time' which is advanced with compare-and-set (the generic cell
+ *  rate algorithm), so taking a token needs no lock. A limiter created with a key shares its buckets with every other
+ *  WorkbooksRateLimiter in the JVM with the same key, e.g. the sessions of a WorkbooksSessionPool, for as long as any of
+ *  them is in use; every limiter sharing a bucket must ask for the same rate and burst. A limiter created without a key
+ *  has buckets of its own.
+ *
+ * 	License: www.workbooks.com/mit_license
+ * 	Last commit $Id$
+ */
+
+public class WorkbooksRateLimiter {
+
+	/**
+	 * A token bucket: 'rate' tokens per second, holding at most 'burst' tokens.
+	 */
+	static class Bucket {
+		final double rate;
+		final int burst;
+		final long interval; // nanoseconds per token
+		final long tolerance; // how far ahead of now the arrival time may run: the burst less one token
+		final AtomicLong arrival = new AtomicLong(System.nanoTime()); // starts full
+
+		Bucket(double rate, int burst) {
+			this.rate = rate;
+			this.burst = Math.max(1, burst);
+			this.interval = Math.max(1, (long) (1000000000L / rate));
+			this.tolerance = interval * (this.burst - 1);
+		}
+
+		/**
+		 * Take a token, now or at some time in the future.
+		 *
+		 * @param max_wait - the longest, in nanoseconds, the caller will wait for a token
+		 * @return long - how long, in nanoseconds, to wait before using the token; or -1 if that would be longer than max_wait,
+		 *         in which case no token is taken
+		 */
+		long reserve(long max_wait) {
+			while (true) {
+				long now = System.nanoTime();
+				long current = arrival.get();
+				long start = current - now < 0 ? now : current;
+				long wait = start - now - tolerance;
+				if (wait > max_wait) {
+					return -1;
+				}
+				if (arrival.compareAndSet(current, start + interval)) {
+					return Math.max(0, wait);
+				}
+			}
+		}
+
+		/**
+		 * Give back a token taken by reserve() but not used. The bucket is never left holding more than its burst.
+		 */
+		void refund() {
+			while (true) {
+				long now = System.nanoTime();
+				long current = arrival.get();
+				if (current - now <= 0) {
+					return; // Already full
+				}
+				long refunded = current - interval;
+				if (arrival.compareAndSet(current, refunded - now < 0 ? now : refunded)) {
+					return;
+				}
+			}
+		}
+
+		/**
+		 * @return double - the fraction of the burst which is in use, from 0 (full bucket) to 1 (empty)
+		 */
+		double utilisation() {
+			long ahead = arrival.get() - System.nanoTime();
+			if (ahead <= 0) {
+				return 0;
+			}
+			return Math.min(1.0, (double) ahead / (tolerance + interval));
+		}
+	}
+
+	// Buckets shared by key; one is forgotten once no limiter holds it
+	private static final ConcurrentHashMap<String, WeakReference<Bucket>> BUCKETS = new ConcurrentHashMap<String, WeakReference<Bucket>>();
+
+	private final Bucket bucket;
+	private final HashMap<String, Bucket> endpoint_buckets = new HashMap<String, Bucket>();
+	private final long max_wait;
+
+	/**
+	 * @param key - identifies the usage limit, e.g. the service and logical database id, to share it with other limiters; null for
+	 *          buckets of this limiter's own
+	 * @param rate - requests per second
+	 * @param burst - how many requests may be made at once after a quiet period
+	 * @param endpoint_rates - requests per second for particular endpoints, e.g. 'email/emails' => 1; may be null
+	 * @param max_wait - the longest, in milliseconds, a request waits for a token; 0 to fail at once
+	 * @throws IllegalArgumentException - if another limiter with the same key asked for a different rate or burst
+	 */
+	public WorkbooksRateLimiter(String key, double rate, int burst, Map<String, Object> endpoint_rates, long max_wait) {
+		this.bucket = bucketFor(key, rate, burst);
+		if (endpoint_rates != null) {
+			for (Map.Entry<String, Object> endpoint_rate : endpoint_rates.entrySet()) {
+				String endpoint = WorkbooksResponseCache.normaliseEndpoint(endpoint_rate.getKey());
+				double limit = Double.parseDouble(endpoint_rate.getValue().toString());
+				endpoint_buckets.put(endpoint, bucketFor(key == null ? null : key + "#" + endpoint, limit, (int) Math.max(1, Math.ceil(limit))));
+			}
+		}
+		this.max_wait = max_wait * 1000000L;
+	}
+
+	/**
+	 * Wait, if need be, until a request to the endpoint is allowed.
+	 *
+	 * @return long - the time waited in milliseconds, or -1 if the request would have had to wait longer than the maximum,
+	 *         in which case it must not be made
+	 * @throws InterruptedException
+	 */
+	public long acquire(String endpoint) throws InterruptedException {
+		long wait = bucket.reserve(max_wait);
+		if (wait < 0) {
+			return -1;
+		}
+		Bucket endpoint_bucket = endpoint_buckets.isEmpty() ? null : endpoint_buckets.get(WorkbooksResponseCache.normaliseEndpoint(endpoint));
+		if (endpoint_bucket != null) {
+			long endpoint_wait = endpoint_bucket.reserve(max_wait);
+			if (endpoint_wait < 0) {
+				bucket.refund();
+				return -1;
+			}
+			wait = Math.max(wait, endpoint_wait);
+		}
+		if (wait > 0) {
+			Thread.sleep(wait / 1000000L, (int) (wait % 1000000L));
+		}
+		return wait / 1000000L;
+	}
+
+	/**
+	 * @return double - the fraction of the database's (or API key's) burst in use, from 0 to 1
+	 */
+	public double getUtilisation() {
+		return bucket.utilisation();
+	}
+
+	/**
+	 * @return double - the fraction of an endpoint's burst in use, or 0 if it has no limit of its own
+	 */
+	public double getUtilisation(String endpoint) {
+		Bucket endpoint_bucket = endpoint_buckets.get(WorkbooksResponseCache.normaliseEndpoint(endpoint));
+		return endpoint_bucket == null ? 0 : endpoint_bucket.utilisation();
+	}
+
+	/**
+	 * @return Bucket - the bucket shared under the key, creating it if need be; or a new bucket if the key is null
+	 */
+	private static Bucket bucketFor(String key, double rate, int burst) {
+		Bucket created = new Bucket(rate, burst);
+		if (key == null) {
+			return created;
+		}
+		Iterator<WeakReference<Bucket>> held = BUCKETS.values().iterator();
+		while (held.hasNext()) {
+			if (held.next().get() == null) {
+				held.remove();
+			}
+		}
+		while (true) {
+			WeakReference<Bucket> reference = BUCKETS.get(key);
+			Bucket bucket = reference == null ? null : reference.get();
+			if (bucket != null) {
+				if (bucket.rate != created.rate || bucket.burst != created.burst) {
+					throw new IllegalArgumentException("The rate limit '" + key + "' is already in use at " + bucket.rate + " requests per second with a burst of "
+							+ bucket.burst + ", not " + created.rate + " with a burst of " + created.burst);
+				}
+				return bucket;
+			}
+			WeakReference<Bucket> replacement = new WeakReference<Bucket>(created);
+			if (reference == null ? BUCKETS.putIfAbsent(key, replacement) == null : BUCKETS.replace(key, reference, replacement)) {
+				return created;
+			}
+		}
+	}
+}
@@ -0,0 +1,120 @@
+package workbooks_app.client_lib.java;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ *	Unit tests of WorkbooksRateLimiter: the burst of a bucket and its refill, endpoint limits and refunds, and the
+ *  sharing of buckets by key.
+ *
+ * 	License: www.workbooks.com/mit_license
+ * 	Last commit $Id$
+ */
+
+public class WorkbooksRateLimiterTest {
+
+	static TestAssertHelper test = new TestAssertHelper();
+
+	public static void main(String[] args) throws Exception {
+		testBurst();
+		testRefill();
+		testRefund();
+		testEndpointLimit();
+		testSharing();
+		test.testExit(WorkbooksRateLimiterTest.class);
+	}
+
+	static void testBurst() throws Exception {
+		WorkbooksRateLimiter limiter = new WorkbooksRateLimiter(null, 1, 5, null, 0);
+		for (int i = 0; i < 5; i++) {
+			test.checkEqual(0L, limiter.acquire("crm/people"), "request " + (i + 1) + " of the burst is not delayed");
+		}
+		test.checkEqual(-1L, limiter.acquire("crm/people"), "a request beyond the burst fails when it may not wait");
+		test.check(limiter.getUtilisation() > 0.9, "an empty bucket is fully utilised");
+	}
+
+	static void testRefill() throws Exception {
+		WorkbooksRateLimiter limiter = new WorkbooksRateLimiter(null, 20, 1, null, 1000);
+		test.checkEqual(0L, limiter.acquire("crm/people"), "the first request is not delayed");
+		long start = System.nanoTime();
+		long waited = limiter.acquire("crm/people");
+		long elapsed = (System.nanoTime() - start) / 1000000L;
+		test.check(waited >= 40 && waited <= 50, "the next request waits for the next token (waited " + waited + "ms)");
+		test.check(elapsed >= 40, "the wait is slept (took " + elapsed + "ms)");
+		Thread.sleep(120);
+		test.checkEqual(0L, limiter.acquire("crm/people"), "a request after a quiet period is not delayed");
+	}
+
+	static void testRefund() {
+		WorkbooksRateLimiter.Bucket bucket = new WorkbooksRateLimiter.Bucket(1, 3);
+		bucket.refund();
+		bucket.refund();
+		int taken = 0;
+		while (bucket.reserve(0) >= 0) {
+			taken++;
+		}
+		test.checkEqual(3, taken, "refunds to a full bucket do not raise it above the burst");
+
+		WorkbooksRateLimiter.Bucket used = new WorkbooksRateLimiter.Bucket(1, 2);
+		used.reserve(0);
+		used.refund();
+		used.refund();
+		used.refund();
+		taken = 0;
+		while (used.reserve(0) >= 0) {
+			taken++;
+		}
+		test.checkEqual(2, taken, "more refunds than tokens taken leave the bucket at its burst");
+	}
+
+	static void testEndpointLimit() throws Exception {
+		Map<String, Object> endpoint_rates = new HashMap<String, Object>();
+		endpoint_rates.put("/email/emails.api", 1);
+		WorkbooksRateLimiter limiter = new WorkbooksRateLimiter(null, 100, 3, endpoint_rates, 0);
+		test.checkEqual(0L, limiter.acquire("email/emails"), "the first request to a limited endpoint is allowed");
+		test.checkEqual(-1L, limiter.acquire("email/emails"), "the second request to a limited endpoint is refused");
+		test.checkEqual(0L, limiter.acquire("crm/people"), "the refused request's token was refunded (1)");
+		test.checkEqual(0L, limiter.acquire("crm/people"), "the refused request's token was refunded (2)");
+		test.checkEqual(-1L, limiter.acquire("crm/people"), "the database bucket is then empty");
+		test.check(limiter.getUtilisation("email/emails") > 0.9, "the endpoint bucket is fully utilised");
+		test.checkEqual(0.0, limiter.getUtilisation("crm/people"), "an endpoint without a limit reports no utilisation");
+	}
+
+	static void testSharing() throws Exception {
+		String key = "https://test.example#" + System.nanoTime();
+		WorkbooksRateLimiter first = new WorkbooksRateLimiter(key, 1, 2, null, 0);
+		WorkbooksRateLimiter second = new WorkbooksRateLimiter(key, 1, 2, null, 0);
+		first.acquire("crm/people");
+		first.acquire("crm/people");
+		test.checkEqual(-1L, second.acquire("crm/people"), "limiters with the same key share a bucket");
+		test.checkEqual(0L, new WorkbooksRateLimiter(null, 1, 2, null, 0).acquire("crm/people"), "a limiter without a key has its own bucket");
+
+		try {
+			new WorkbooksRateLimiter(key, 5, 2, null, 0);
+			test.check(false, "a different rate for a shared key is refused");
+		} catch (IllegalArgumentException e) {
+			test.check(e.getMessage().contains(key), "a different rate for a shared key is refused");
+		}
+		try {
+			new WorkbooksRateLimiter(key, 1, 7, null, 0);
+			test.check(false, "a different burst for a shared key is refused");
+		} catch (IllegalArgumentException e) {
+			test.check(true, "a different burst for a shared key is refused");
+		}
+
+		first = null;
+		second = null;
+		for (int i = 0; i < 20; i++) {
+			System.gc();
+			Thread.sleep(10);
+			try {
+				new WorkbooksRateLimiter(key, 5, 2, null, 0);
+				test.check(true, "a shared bucket is discarded once no limiter uses it");
+				return;
+			} catch (IllegalArgumentException e) {
+				// Not yet collected
+			}
+		}
+		test.check(false, "a shared bucket is discarded once no limiter uses it");
+	}
+}
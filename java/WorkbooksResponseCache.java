@@ -0,0 +1,247 @@
+package workbooks_app.client_lib.java;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ *	A read-through cache of GET responses, bounded by the total size of the responses held. The size of a response is taken
+ *  to be the length of its text, so the bound is approximate: the decoded response which is held typically takes several
+ *  times as much memory as its text.
+ *
+ *  Responses are keyed by database, session, endpoint and parameters. Each endpoint has its own time-to-live; endpoints
+ *  without one are not cached. Once a response has expired it may still be returned for a further
+ *  'stale' period while it is revalidated in the background. All responses for an endpoint are
+ *  discarded when a write to that endpoint succeeds.
+ *
+ * 	License: www.workbooks.com/mit_license
+ * 	Last commit $Id$
+ */
+
+public class WorkbooksResponseCache {
+
+	/**
+	 * A cached response.
+	 */
+	public static class Entry {
+		final String endpoint;
+		final HashMap<String, Object> response;
+		final long size;
+		final long stored_at;
+		final long ttl;
+
+		Entry(String endpoint, HashMap<String, Object> response, long size, long stored_at, long ttl) {
+			this.endpoint = endpoint;
+			this.response = response;
+			this.size = size;
+			this.stored_at = stored_at;
+			this.ttl = ttl;
+		}
+
+		public HashMap<String, Object> getResponse() {
+			return response;
+		}
+
+		public boolean isFresh() {
+			return System.currentTimeMillis() - stored_at <= ttl;
+		}
+	}
+
+	private final long max_bytes;
+	private final long default_ttl;
+	private final long stale;
+	private final HashMap<String, Long> endpoint_ttls = new HashMap<String, Long>();
+	private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+	private long total_bytes = 0;
+
+	// Incremented on each write to an endpoint so that a fetch which overlaps a write does not store old data.
+	private final ConcurrentHashMap<String, AtomicLong> generations = new ConcurrentHashMap<String, AtomicLong>();
+	private final Set<String> revalidating = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong stale_hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+
+	/**
+	 * @param max_bytes - the maximum total length of the text of the responses held; the memory used is several times this
+	 * @param default_ttl - the time-to-live, in milliseconds, for endpoints without their own; 0 to cache only those endpoints
+	 * @param stale - how long, in milliseconds, an expired response may be returned while it is revalidated
+	 * @param ttls - time-to-live in seconds by endpoint, e.g. 'admin/picklist_entries' => 300; may be null
+	 */
+	public WorkbooksResponseCache(long max_bytes, long default_ttl, long stale, Map<String, Object> ttls) {
+		this.max_bytes = max_bytes;
+		this.default_ttl = default_ttl;
+		this.stale = stale;
+		if (ttls != null) {
+			for (Map.Entry<String, Object> ttl : ttls.entrySet()) {
+				endpoint_ttls.put(normaliseEndpoint(ttl.getKey()), Long.parseLong(ttl.getValue().toString()) * 1000);
+			}
+		}
+	}
+
+	/**
+	 * @return boolean - true if responses from this endpoint are cached
+	 */
+	public boolean isCacheable(String endpoint) {
+		return ttlFor(endpoint) > 0;
+	}
+
+	/**
+	 * Look up a response. An entry which is past its time-to-live but within the stale period is returned;
+	 * the caller should check isFresh() and revalidate it.
+	 *
+	 * @return Entry - the cached response, or null
+	 */
+	public Entry get(String key) {
+		Entry entry;
+		synchronized (entries) {
+			entry = entries.get(key);
+			if (entry != null && System.currentTimeMillis() - entry.stored_at > entry.ttl + stale) {
+				remove(key);
+				entry = null;
+			}
+		}
+		if (entry == null) {
+			misses.incrementAndGet();
+		} else if (entry.isFresh()) {
+			hits.incrementAndGet();
+		} else {
+			stale_hits.incrementAndGet();
+		}
+		return entry;
+	}
+
+	/**
+	 * @return long - a token to pass to put(); a write to the endpoint in between causes the put to be ignored
+	 */
+	public long generation(String endpoint) {
+		return generationOf(normaliseEndpoint(endpoint)).get();
+	}
+
+	/**
+	 * Store a response. Least-recently-used responses are discarded to keep within the size limit; a response
+	 * larger than the whole cache is not stored.
+	 */
+	public void put(String key, String endpoint, HashMap<String, Object> response, long size, long generation) {
+		String normalised = normaliseEndpoint(endpoint);
+		long ttl = ttlFor(normalised);
+		if (ttl <= 0 || size > max_bytes) {
+			return;
+		}
+		synchronized (entries) {
+			if (generationOf(normalised).get() != generation) {
+				return;
+			}
+			remove(key);
+			entries.put(key, new Entry(normalised, response, size, System.currentTimeMillis(), ttl));
+			total_bytes += size;
+			Iterator<Map.Entry<String, Entry>> eldest = entries.entrySet().iterator();
+			while (total_bytes > max_bytes && eldest.hasNext()) {
+				total_bytes -= eldest.next().getValue().size;
+				eldest.remove();
+			}
+		}
+	}
+
+	/**
+	 * Discard all responses for an endpoint, e.g. after it has been written to.
+	 */
+	public void invalidate(String endpoint) {
+		String normalised = normaliseEndpoint(endpoint);
+		synchronized (entries) {
+			generationOf(normalised).incrementAndGet();
+			Iterator<Map.Entry<String, Entry>> iterator = entries.entrySet().iterator();
+			while (iterator.hasNext()) {
+				Entry entry = iterator.next().getValue();
+				if (entry.endpoint.equals(normalised)) {
+					total_bytes -= entry.size;
+					iterator.remove();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Discard all responses.
+	 */
+	public void clear() {
+		synchronized (entries) {
+			entries.clear();
+			total_bytes = 0;
+		}
+	}
+
+	/**
+	 * Claim the revalidation of a response so that only one background fetch runs for it.
+	 *
+	 * @return boolean - true if the caller should revalidate, and then call endRevalidation()
+	 */
+	public boolean beginRevalidation(String key) {
+		return revalidating.add(key);
+	}
+
+	public void endRevalidation(String key) {
+		revalidating.remove(key);
+	}
+
+	public long getHits() {
+		return hits.get();
+	}
+
+	public long getStaleHits() {
+		return stale_hits.get();
+	}
+
+	public long getMisses() {
+		return misses.get();
+	}
+
+	public long getTotalBytes() {
+		synchronized (entries) {
+			return total_bytes;
+		}
+	}
+
+	/**
+	 * Endpoints are compared without any leading '/' or trailing '.api'.
+	 */
+	public static String normaliseEndpoint(String endpoint) {
+		if (endpoint.startsWith("/")) {
+			endpoint = endpoint.substring(1);
+		}
+		if (endpoint.endsWith(".api")) {
+			endpoint = endpoint.substring(0, endpoint.length() - 4);
+		}
+		return endpoint;
+	}
+
+	private long ttlFor(String endpoint) {
+		Long ttl = endpoint_ttls.get(normaliseEndpoint(endpoint));
+		return ttl != null ? ttl : default_ttl;
+	}
+
+	private AtomicLong generationOf(String normalised) {
+		AtomicLong generation = generations.get(normalised);
+		if (generation == null) {
+			AtomicLong created = new AtomicLong();
+			generation = generations.putIfAbsent(normalised, created);
+			if (generation == null) {
+				generation = created;
+			}
+		}
+		return generation;
+	}
+
+	// Callers hold the lock on entries.
+	private void remove(String key) {
+		Entry removed = entries.remove(key);
+		if (removed != null) {
+			total_bytes -= removed.size;
+		}
+	}
+}
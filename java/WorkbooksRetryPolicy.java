@@ -0,0 +1,125 @@
+package workbooks_app.client_lib.java;
+
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Random;
+import java.util.Set;
+
+/**
+ *	When, and after how long, a failed request is sent again. Delays grow exponentially with 'full jitter': each is
+ *  chosen at random between zero and the exponential bound, so that many clients failing together do not retry together.
+ *  A delay asked for by the service in a Retry-After header is used instead, up to a maximum.
+ *
+ *  Only requests which are safe to repeat are retried: GETs, and writes which the caller marks as idempotent.
+ *
+ * 	License: www.workbooks.com/mit_license
+ * 	Last commit $Id$
+ */
+
+public class WorkbooksRetryPolicy {
+
+	public static final int DEFAULT_MAX_ATTEMPTS = 3;
+	public static final long DEFAULT_BASE_DELAY = 200L; // milliseconds
+	public static final long DEFAULT_MAX_DELAY = 10000L; // 10 seconds
+	public static final long DEFAULT_MAX_RETRY_AFTER = 60000L; // 1 minute
+	public static final Integer[] DEFAULT_STATUSES = {408, 429, 502, 503, 504};
+	public static final String[] DEFAULT_EXCEPTION_TYPES = {"IOException"};
+
+	/**
+	 * A policy which never retries.
+	 */
+	public static final WorkbooksRetryPolicy NONE = new WorkbooksRetryPolicy(1, 0, 0, DEFAULT_MAX_RETRY_AFTER, null, null);
+
+	private final int max_attempts;
+	private final long base_delay;
+	private final long max_delay;
+	private final long max_retry_after;
+	private final Set<Integer> statuses;
+	private final Set<String> exception_types;
+	private final Random random = new Random();
+
+	/**
+	 * @param max_attempts - the most times a request is sent, including the first
+	 * @param base_delay - the bound, in milliseconds, on the delay before the first retry; it doubles for each further retry
+	 * @param max_delay - the most, in milliseconds, that the bound grows to
+	 * @param max_retry_after - the longest Retry-After, in milliseconds, that is waited for; a request asked to wait longer is not retried
+	 * @param statuses - the HTTP statuses which are retried, or null for the default set
+	 * @param exception_types - the WorkbooksApiException types which are retried, e.g. 'IOException', or null for the default set
+	 */
+	public WorkbooksRetryPolicy(int max_attempts, long base_delay, long max_delay, long max_retry_after, Collection<Integer> statuses,
+			Collection<String> exception_types) {
+		this.max_attempts = Math.max(1, max_attempts);
+		this.base_delay = base_delay;
+		this.max_delay = max_delay;
+		this.max_retry_after = max_retry_after;
+		this.statuses = new HashSet<Integer>(statuses != null ? statuses : Arrays.asList(DEFAULT_STATUSES));
+		this.exception_types = new HashSet<String>(exception_types != null ? exception_types : Arrays.asList(DEFAULT_EXCEPTION_TYPES));
+	}
+
+	public WorkbooksRetryPolicy() {
+		this(DEFAULT_MAX_ATTEMPTS, DEFAULT_BASE_DELAY, DEFAULT_MAX_DELAY, DEFAULT_MAX_RETRY_AFTER, null, null);
+	}
+
+	/**
+	 * @param attempt - the number of times the request has been sent
+	 * @param status - the HTTP status of the failure, or 0 if there was no response
+	 * @param type - the type of the WorkbooksApiException raised
+	 * @param retry_after - the delay asked for by the service in milliseconds, or -1 if none
+	 * @return boolean - true if the request should be sent again
+	 */
+	public boolean shouldRetry(int attempt, int status, String type, long retry_after) {
+		if (attempt >= max_attempts || retry_after > max_retry_after) {
+			return false;
+		}
+		return (status != 0 && statuses.contains(status)) || (status == 0 && exception_types.contains(type));
+	}
+
+	/**
+	 * @param attempt - the number of times the request has been sent, from 1
+	 * @param retry_after - the delay asked for by the service in milliseconds, or -1 if none
+	 * @return long - how long, in milliseconds, to wait before sending the request again
+	 */
+	public long delay(int attempt, long retry_after) {
+		if (retry_after >= 0) {
+			return retry_after;
+		}
+		long bound = base_delay << Math.min(attempt - 1, 30);
+		if (bound <= 0 || bound > max_delay) {
+			bound = max_delay;
+		}
+		synchronized (random) {
+			return bound <= 0 ? 0 : (long) (random.nextDouble() * bound);
+		}
+	}
+
+	public int getMax_attempts() {
+		return max_attempts;
+	}
+
+	/**
+	 * Parse a Retry-After header, given either as a number of seconds or as an HTTP date.
+	 *
+	 * @return long - the delay in milliseconds, or -1 if the header is absent or cannot be parsed
+	 */
+	public static long parseRetryAfter(String retry_after) {
+		if (retry_after == null || retry_after.trim().length() == 0) {
+			return -1;
+		}
+		retry_after = retry_after.trim();
+		try {
+			return Math.max(0, Long.parseLong(retry_after) * 1000);
+		} catch (NumberFormatException e) {
+			try {
+				Date date = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss zzz", Locale.US).parse(retry_after);
+				return Math.max(0, date.getTime() - System.currentTimeMillis());
+			} catch (ParseException pe) {
+				return -1;
+			}
+		}
+	}
+}
@@ -0,0 +1,84 @@
+package workbooks_app.client_lib.java;
+
+import java.text.SimpleDateFormat;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.Locale;
+import java.util.TimeZone;
+
+/**
+ *	Unit tests of WorkbooksRetryPolicy: which failures are retried, the bounds of the backoff delays, and the parsing
+ *  of Retry-After headers.
+ *
+ * 	License: www.workbooks.com/mit_license
+ * 	Last commit $Id$
+ */
+
+public class WorkbooksRetryPolicyTest {
+
+	static TestAssertHelper test = new TestAssertHelper();
+
+	public static void main(String[] args) {
+		testShouldRetry();
+		testDelay();
+		testParseRetryAfter();
+		test.testExit(WorkbooksRetryPolicyTest.class);
+	}
+
+	static void testShouldRetry() {
+		WorkbooksRetryPolicy policy = new WorkbooksRetryPolicy();
+		test.check(policy.shouldRetry(1, 503, "WorkbooksServiceException", -1), "503 is retried");
+		test.check(policy.shouldRetry(1, 429, "WorkbooksServiceException", 1000), "429 with a short Retry-After is retried");
+		test.check(policy.shouldRetry(2, 0, "IOException", -1), "an IOException with no response is retried");
+		test.check(!policy.shouldRetry(1, 500, "WorkbooksServiceException", -1), "500 is not retried by default");
+		test.check(!policy.shouldRetry(1, 404, "WorkbooksServiceException", -1), "404 is not retried");
+		test.check(!policy.shouldRetry(1, 0, "WorkbooksLoginException", -1), "an exception of another type is not retried");
+		test.check(!policy.shouldRetry(3, 503, "WorkbooksServiceException", -1), "no retry once max_attempts have been made");
+		test.check(!policy.shouldRetry(1, 429, "WorkbooksServiceException", WorkbooksRetryPolicy.DEFAULT_MAX_RETRY_AFTER + 1),
+				"no retry when Retry-After exceeds max_retry_after");
+		test.check(!WorkbooksRetryPolicy.NONE.shouldRetry(1, 503, "WorkbooksServiceException", -1), "NONE never retries");
+
+		WorkbooksRetryPolicy custom = new WorkbooksRetryPolicy(5, 100, 1000, 5000, Arrays.asList(500), Arrays.asList("SocketTimeoutException"));
+		test.check(custom.shouldRetry(4, 500, "WorkbooksServiceException", -1), "a custom status is retried");
+		test.check(!custom.shouldRetry(1, 503, "WorkbooksServiceException", -1), "a status outside a custom set is not retried");
+		test.check(custom.shouldRetry(1, 0, "SocketTimeoutException", -1), "a custom exception type is retried");
+		test.check(!custom.shouldRetry(1, 0, "IOException", -1), "an exception type outside a custom set is not retried");
+		test.checkEqual(1, new WorkbooksRetryPolicy(0, 0, 0, 0, null, null).getMax_attempts(), "max_attempts is at least 1");
+	}
+
+	static void testDelay() {
+		WorkbooksRetryPolicy policy = new WorkbooksRetryPolicy(10, 100, 1000, 60000, null, null);
+		test.checkEqual(2500L, policy.delay(1, 2500), "Retry-After is used as the delay");
+		test.checkEqual(0L, policy.delay(3, 0), "a Retry-After of zero gives no delay");
+		long[] bounds = {100, 200, 400, 800, 1000, 1000};
+		for (int attempt = 1; attempt <= bounds.length; attempt++) {
+			long shortest = Long.MAX_VALUE;
+			long longest = -1;
+			for (int i = 0; i < 2000; i++) {
+				long delay = policy.delay(attempt, -1);
+				shortest = Math.min(shortest, delay);
+				longest = Math.max(longest, delay);
+			}
+			test.check(shortest >= 0 && longest < bounds[attempt - 1], "delays of attempt " + attempt + " are within " + bounds[attempt - 1]);
+			test.check(longest > bounds[attempt - 1] / 2, "delays of attempt " + attempt + " are spread over their bound");
+		}
+		long delay = policy.delay(200, -1);
+		test.check(delay >= 0 && delay < 1000, "the bound does not overflow for a large attempt");
+		test.checkEqual(0L, new WorkbooksRetryPolicy(3, 0, 0, 0, null, null).delay(2, -1), "no delay with a zero base");
+	}
+
+	static void testParseRetryAfter() {
+		test.checkEqual(-1L, WorkbooksRetryPolicy.parseRetryAfter(null), "no header");
+		test.checkEqual(-1L, WorkbooksRetryPolicy.parseRetryAfter("  "), "a blank header");
+		test.checkEqual(-1L, WorkbooksRetryPolicy.parseRetryAfter("soon"), "an unparseable header");
+		test.checkEqual(120000L, WorkbooksRetryPolicy.parseRetryAfter(" 120 "), "seconds");
+		test.checkEqual(0L, WorkbooksRetryPolicy.parseRetryAfter("-5"), "negative seconds");
+
+		SimpleDateFormat http_date = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss zzz", Locale.US);
+		http_date.setTimeZone(TimeZone.getTimeZone("GMT"));
+		long delay = WorkbooksRetryPolicy.parseRetryAfter(http_date.format(new Date(System.currentTimeMillis() + 30000)));
+		test.check(delay > 25000 && delay <= 30000, "an HTTP date 30 seconds ahead (got " + delay + ")");
+		test.checkEqual(0L, WorkbooksRetryPolicy.parseRetryAfter(http_date.format(new Date(System.currentTimeMillis() - 60000))),
+				"an HTTP date in the past");
+	}
+}
@@ -0,0 +1,257 @@
+package workbooks_app.client_lib.java;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.Properties;
+
+/**
+ *	A local file of Workbooks sessions, shared by all processes on the host which use the same file, so
+ *  that a short-lived script can reconnect to the session created by an earlier run instead of logging
+ *  in again. Access to the file is serialised with a file lock.
+ *
+ *  Sessions are filed under a digest of the service, user (or API key), password and database they were
+ *  created for, salted with a random value kept in the file: credentials are never written to the file, and
+ *  a login with a different password does not find the session of the old one. The file does contain
+ *  session ids, so it is made readable only by its owner.
+ *
+ * 	License: www.workbooks.com/mit_license
+ * 	Last commit $Id$
+ */
+
+public class WorkbooksSessionCache {
+
+	/**
+	 * The details needed to reconnect to a session.
+	 */
+	public static class Entry {
+		public final String session_id;
+		public final String authenticity_token;
+		public final String database_instance_id;
+		public final String logical_database_id;
+		public final long saved_at;
+
+		public Entry(String session_id, String authenticity_token, String database_instance_id, String logical_database_id, long saved_at) {
+			this.session_id = session_id;
+			this.authenticity_token = authenticity_token;
+			this.database_instance_id = database_instance_id;
+			this.logical_database_id = logical_database_id;
+			this.saved_at = saved_at;
+		}
+	}
+
+	public static final long DEFAULT_MAX_AGE = 4 * 3600000L; // 4 hours
+
+	// FileLock is held by the JVM, not a thread: serialise the threads of this JVM as well.
+	private static final Object JVM_LOCK = new Object();
+
+	private final File file;
+	private final long max_age;
+	private volatile String salt = null;
+
+	/**
+	 * @param file - the cache file, created if it does not exist
+	 * @param max_age - sessions saved longer ago than this, in milliseconds, are not used
+	 */
+	public WorkbooksSessionCache(File file, long max_age) {
+		this.file = file;
+		this.max_age = max_age;
+	}
+
+	/**
+	 * Build an unsalted identity, e.g. to name a database without naming the API key which selects it.
+	 *
+	 * @return String - a digest of the service, user or API key, and logical database
+	 */
+	public static String identity(String service, String username, String api_key, String logical_database_id) {
+		return digest(service + "\n" + username + "\n" + api_key + "\n" + logical_database_id);
+	}
+
+	/**
+	 * Build the identity under which a session is filed.
+	 *
+	 * @return String - a digest of the file's salt, the service, user or API key, password and logical database
+	 */
+	public String identity(String service, String username, String api_key, String password, String logical_database_id) {
+		return digest(salt() + "\n" + service + "\n" + username + "\n" + api_key + "\n" + password + "\n" + logical_database_id);
+	}
+
+	/**
+	 * @return String - the random salt kept in the file, created with the file. If the file cannot be used then a salt
+	 *   is made up, under which nothing will be found.
+	 */
+	private String salt() {
+		if (salt == null) {
+			final String[] found = new String[1];
+			update(new Updater() {
+				public boolean update(Properties sessions) {
+					found[0] = sessions.getProperty("salt");
+					if (found[0] == null) {
+						byte[] random = new byte[16];
+						new SecureRandom().nextBytes(random);
+						found[0] = hex(random);
+						sessions.setProperty("salt", found[0]);
+						return true;
+					}
+					return false;
+				}
+			});
+			if (found[0] == null) {
+				byte[] random = new byte[16];
+				new SecureRandom().nextBytes(random);
+				return hex(random);
+			}
+			salt = found[0];
+		}
+		return salt;
+	}
+
+	private static String digest(String identity) {
+		try {
+			return hex(MessageDigest.getInstance("SHA-256").digest(identity.getBytes(WorkbooksApi.CHARSET)));
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		} catch (IOException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * @return Entry - the session saved for this identity, or null if there is none or it is too old
+	 */
+	public Entry get(final String identity) {
+		final Entry[] found = new Entry[1];
+		update(new Updater() {
+			public boolean update(Properties sessions) {
+				String session_id = sessions.getProperty(identity + ".session_id");
+				if (session_id == null) {
+					return false;
+				}
+				long saved_at = Long.parseLong(sessions.getProperty(identity + ".saved_at", "0"));
+				if (System.currentTimeMillis() - saved_at > max_age) {
+					remove(sessions, identity);
+					return true;
+				}
+				found[0] = new Entry(session_id, sessions.getProperty(identity + ".authenticity_token"),
+						sessions.getProperty(identity + ".database_instance_id"), sessions.getProperty(identity + ".logical_database_id"), saved_at);
+				return false;
+			}
+		});
+		return found[0];
+	}
+
+	/**
+	 * Save the session for this identity, replacing any saved earlier.
+	 */
+	public void put(final String identity, final Entry entry) {
+		update(new Updater() {
+			public boolean update(Properties sessions) {
+				set(sessions, identity + ".session_id", entry.session_id);
+				set(sessions, identity + ".authenticity_token", entry.authenticity_token);
+				set(sessions, identity + ".database_instance_id", entry.database_instance_id);
+				set(sessions, identity + ".logical_database_id", entry.logical_database_id);
+				sessions.setProperty(identity + ".saved_at", Long.toString(entry.saved_at));
+				return true;
+			}
+		});
+	}
+
+	/**
+	 * Forget the session for this identity, e.g. after logout or once the service has rejected it.
+	 */
+	public void remove(final String identity) {
+		update(new Updater() {
+			public boolean update(Properties sessions) {
+				remove(sessions, identity);
+				return true;
+			}
+		});
+	}
+
+	private interface Updater {
+		/**
+		 * @return boolean - true if the sessions have been changed and should be written back
+		 */
+		boolean update(Properties sessions);
+	}
+
+	/**
+	 * Read the file, apply the update and write it back, all under an exclusive lock. The cache is only an
+	 * optimisation: if the file cannot be used then no sessions are found or saved.
+	 */
+	private void update(Updater updater) {
+		synchronized (JVM_LOCK) {
+			RandomAccessFile raf = null;
+			try {
+				boolean created = !file.exists();
+				raf = new RandomAccessFile(file, "rw");
+				if (created) {
+					file.setReadable(false, false);
+					file.setReadable(true, true);
+					file.setWritable(false, false);
+					file.setWritable(true, true);
+				}
+				FileChannel channel = raf.getChannel();
+				FileLock lock = channel.lock();
+				try {
+					byte[] contents = new byte[(int) channel.size()];
+					channel.read(ByteBuffer.wrap(contents), 0);
+					Properties sessions = new Properties();
+					sessions.load(new ByteArrayInputStream(contents));
+
+					if (updater.update(sessions)) {
+						ByteArrayOutputStream out = new ByteArrayOutputStream();
+						sessions.store(out, "Workbooks API sessions");
+						channel.truncate(0);
+						channel.write(ByteBuffer.wrap(out.toByteArray()), 0);
+						channel.force(false);
+					}
+				} finally {
+					lock.release();
+				}
+			} catch (IOException e) {
+				// Carry on without the cache
+			} catch (RuntimeException e) {
+				// A corrupt file: carry on without the cache
+			} finally {
+				if (raf != null) {
+					try {
+						raf.close();
+					} catch (IOException e) {
+						// Nothing more can be done
+					}
+				}
+			}
+		}
+	}
+
+	private static String hex(byte[] bytes) {
+		StringBuilder hex = new StringBuilder();
+		for (byte b : bytes) {
+			hex.append(String.format("%02x", b));
+		}
+		return hex.toString();
+	}
+
+	private static void set(Properties sessions, String key, String value) {
+		if (value == null) {
+			sessions.remove(key);
+		} else {
+			sessions.setProperty(key, value);
+		}
+	}
+
+	private static void remove(Properties sessions, String identity) {
+		for (String field : new String[] {"session_id", "authenticity_token", "database_instance_id", "logical_database_id", "saved_at"}) {
+			sessions.remove(identity + "." + field);
+		}
+	}
+}
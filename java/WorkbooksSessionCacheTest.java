@@ -0,0 +1,53 @@
+package workbooks_app.client_lib.java;
+
+import java.io.File;
+import java.nio.file.Files;
+
+/**
+ *	Unit tests of WorkbooksSessionCache: sessions are found only with the credentials they were saved under, and no
+ *  credential is written to the file.
+ *
+ * 	License: www.workbooks.com/mit_license
+ * 	Last commit $Id$
+ */
+
+public class WorkbooksSessionCacheTest {
+
+	static TestAssertHelper test = new TestAssertHelper();
+
+	public static void main(String[] args) throws Exception {
+		testIdentity();
+		test.testExit(WorkbooksSessionCacheTest.class);
+	}
+
+	static void testIdentity() throws Exception {
+		File file = File.createTempFile("sessions", ".properties");
+		file.delete();
+		try {
+			WorkbooksSessionCache cache = new WorkbooksSessionCache(file, WorkbooksSessionCache.DEFAULT_MAX_AGE);
+			String identity = cache.identity("https://secure.workbooks.com", "user", null, "secret", "1234");
+			cache.put(identity, new WorkbooksSessionCache.Entry("session", "token", "1", "1234", System.currentTimeMillis()));
+
+			WorkbooksSessionCache other = new WorkbooksSessionCache(file, WorkbooksSessionCache.DEFAULT_MAX_AGE);
+			test.checkEqual(identity, other.identity("https://secure.workbooks.com", "user", null, "secret", "1234"),
+					"another object on the same file builds the same identity");
+			test.checkEqual("session", other.get(identity).session_id, "and finds the session");
+			test.check(other.get(other.identity("https://secure.workbooks.com", "user", null, "wrong", "1234")) == null,
+					"a different password finds no session");
+			test.check(other.get(other.identity("https://secure.workbooks.com", "user", null, "secret", "5678")) == null,
+					"nor does another database");
+
+			String contents = new String(Files.readAllBytes(file.toPath()), WorkbooksApi.CHARSET);
+			test.check(!contents.contains("secret") && !contents.contains("user"), "the file holds no credentials");
+
+			File elsewhere = File.createTempFile("sessions", ".properties");
+			elsewhere.delete();
+			WorkbooksSessionCache salted = new WorkbooksSessionCache(elsewhere, WorkbooksSessionCache.DEFAULT_MAX_AGE);
+			test.check(!identity.equals(salted.identity("https://secure.workbooks.com", "user", null, "secret", "1234")),
+					"another file has its own salt");
+			elsewhere.delete();
+		} finally {
+			file.delete();
+		}
+	}
+}
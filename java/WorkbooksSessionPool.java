@@ -0,0 +1,453 @@
+package workbooks_app.client_lib.java;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ *	A pool of sessions with one Workbooks database, each with its own WorkbooksApi object, so that requests
+ *  from many threads are spread over several sessions (or API keys) rather than queueing behind one.
+ *
+ *  Each request is given the session with the fewest requests outstanding. In the background each idle
+ *  session is checked with a small request; a session which the service rejects, or which has reached its
+ *  maximum age, is replaced by logging in again while the other sessions carry on serving requests. A
+ *  replaced session is logged out once the requests still using it have finished.
+ *
+ *  Example:
+ *    ArrayList<HashMap<String, Object>> members = new ArrayList<HashMap<String, Object>>();
+ *    members.add(paramsWithApiKey1);
+ *    members.add(paramsWithApiKey2);
+ *    WorkbooksSessionPool pool = new WorkbooksSessionPool(members, "12345", new HashMap<String, Object>());
+ *    WorkbooksApi.WorkbooksApiResponse response = pool.get("crm/people", params, null);
+ *
+ * 	License: www.workbooks.com/mit_license
+ * 	Last commit $Id$
+ */
+
+public class WorkbooksSessionPool {
+
+	/**
+	 * A unit of work to run with one of the pool's sessions.
+	 */
+	public interface Task<T> {
+		T run(WorkbooksApi workbooks) throws Exception;
+	}
+
+	/**
+	 * One session in the pool.
+	 */
+	static class Session {
+		final WorkbooksApi workbooks;
+		final boolean uses_api_key;
+		final long opened_at;
+		final AtomicInteger outstanding = new AtomicInteger();
+		volatile boolean healthy = true;
+
+		Session(WorkbooksApi workbooks, boolean uses_api_key, long opened_at) {
+			this.workbooks = workbooks;
+			this.uses_api_key = uses_api_key;
+			this.opened_at = opened_at;
+		}
+	}
+
+	public static final long DEFAULT_HEALTH_CHECK_INTERVAL = 60000L; // 1 minute
+	public static final String DEFAULT_HEALTH_CHECK_ENDPOINT = "crm/people";
+
+	private final ArrayList<HashMap<String, Object>> members;
+	private final String logical_database_id;
+	private final AtomicReferenceArray<Session> sessions;
+	private final Set<Integer> replacing = Collections.newSetFromMap(new ConcurrentHashMap<Integer, Boolean>());
+	private final ConcurrentLinkedQueue<Session> retired = new ConcurrentLinkedQueue<Session>();
+	private final AtomicInteger next = new AtomicInteger(); // rotates the starting point so that ties are shared out
+	private final ScheduledExecutorService executor;
+	private final boolean own_executor;
+	private final long session_max_age;
+	private final String health_check_endpoint;
+	private final WorkbooksApi reporter; // that of the first session opened, which raises the pool's own exceptions
+	private volatile boolean closed = false;
+
+	/**
+	 * As below, with an executor of the pool's own.
+	 */
+	public WorkbooksSessionPool(ArrayList<HashMap<String, Object>> members, String logical_database_id, HashMap<String, Object> options) throws Exception {
+		this(members, logical_database_id, options, null);
+	}
+
+	/**
+	 * Open a session for each member. Members which cannot log in now are retried in the background; an exception is
+	 * raised only if none can.
+	 *
+	 * @param members - WorkbooksApi constructor parameters for each session, each including either an 'api_key' or a
+	 *          'username' and 'password'
+	 * @param logical_database_id - the database used by every session
+	 * @param options - optional settings:
+	 *          'health_check_interval' - how often, in seconds, to check the sessions (default 60);
+	 *          'session_max_age' - the age, in seconds, at which a session is replaced (default 0, never);
+	 *          'health_check_endpoint' - the endpoint read to check a session (default 'crm/people')
+	 * @param executor - runs the health checks and replacements, or null to create one
+	 * @throws Exception
+	 */
+	public WorkbooksSessionPool(ArrayList<HashMap<String, Object>> members, String logical_database_id, HashMap<String, Object> options,
+			ScheduledExecutorService executor) throws Exception {
+		if (members == null || members.isEmpty()) {
+			throw new Exception("At least one session must be configured");
+		}
+		this.logical_database_id = logical_database_id;
+		this.members = new ArrayList<HashMap<String, Object>>();
+		for (HashMap<String, Object> member : members) {
+			HashMap<String, Object> params = new HashMap<String, Object>(member);
+			Object member_database = params.get("logical_database_id");
+			if (member_database != null && !member_database.toString().equals(logical_database_id)) {
+				throw new Exception("Every session in a pool must use logical database " + logical_database_id);
+			}
+			params.put("logical_database_id", logical_database_id);
+			this.members.add(params);
+		}
+
+		long health_check_interval = DEFAULT_HEALTH_CHECK_INTERVAL;
+		long max_age = 0;
+		String endpoint = DEFAULT_HEALTH_CHECK_ENDPOINT;
+		if (options != null) {
+			if (options.containsKey("health_check_interval")) {
+				health_check_interval = Long.parseLong(options.get("health_check_interval").toString()) * 1000;
+			}
+			if (options.containsKey("session_max_age")) {
+				max_age = Long.parseLong(options.get("session_max_age").toString()) * 1000;
+			}
+			if (options.containsKey("health_check_endpoint")) {
+				endpoint = options.get("health_check_endpoint").toString();
+			}
+		}
+		this.session_max_age = max_age;
+		this.health_check_endpoint = endpoint;
+
+		this.own_executor = executor == null;
+		if (executor == null) {
+			executor = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+				public Thread newThread(Runnable runnable) {
+					Thread thread = new Thread(runnable, "workbooks-session-pool");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+		}
+		this.executor = executor;
+
+		this.sessions = new AtomicReferenceArray<Session>(this.members.size());
+		Exception failure = null;
+		for (int i = 0; i < this.members.size(); i++) {
+			try {
+				sessions.set(i, open(i));
+			} catch (Exception e) {
+				failure = e;
+			}
+		}
+		if (healthySessions() == 0) {
+			if (own_executor) {
+				executor.shutdown();
+			}
+			throw failure;
+		}
+		WorkbooksApi first = null;
+		for (int i = 0; i < sessions.length() && first == null; i++) {
+			if (sessions.get(i) != null) {
+				first = sessions.get(i).workbooks;
+			}
+		}
+		this.reporter = first;
+		for (int i = 0; i < sessions.length(); i++) {
+			if (sessions.get(i) == null) {
+				replace(i);
+			}
+		}
+
+		executor.scheduleWithFixedDelay(new Runnable() {
+			public void run() {
+				checkSessions();
+			}
+		}, health_check_interval, health_check_interval, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Run a task with the session which has the fewest requests outstanding. If the service rejects the session, it is
+	 * replaced in the background and the exception is passed on to the caller.
+	 *
+	 * @return the result of the task
+	 * @throws Exception - as raised by the task
+	 */
+	public <T> T execute(Task<T> task) throws Exception {
+		Session session = acquire();
+		try {
+			return task.run(session.workbooks);
+		} catch (WorkbooksApi.WorkbooksApiException e) {
+			failed(session, e);
+			throw e;
+		} finally {
+			session.outstanding.decrementAndGet();
+		}
+	}
+
+	/**
+	 * As WorkbooksApi.get(), using one of the pool's sessions.
+	 */
+	public WorkbooksApi.WorkbooksApiResponse get(String endpoint, HashMap<String, Object> params, HashMap<String, Object> options)
+			throws WorkbooksApi.WorkbooksApiException {
+		Session session = acquire();
+		try {
+			return session.workbooks.get(endpoint, params, options);
+		} catch (WorkbooksApi.WorkbooksApiException e) {
+			failed(session, e);
+			throw e;
+		} finally {
+			session.outstanding.decrementAndGet();
+		}
+	}
+
+	/**
+	 * As WorkbooksApi.batch(), using one of the pool's sessions.
+	 */
+	public WorkbooksApi.WorkbooksApiResponse batch(String endpoint, ArrayList<HashMap<String, Object>> objs, HashMap<String, Object> params,
+			String method, HashMap<String, Object> options) throws WorkbooksApi.WorkbooksApiException {
+		Session session = acquire();
+		try {
+			return session.workbooks.batch(endpoint, objs, params, method, options);
+		} catch (WorkbooksApi.WorkbooksApiException e) {
+			failed(session, e);
+			throw e;
+		} finally {
+			session.outstanding.decrementAndGet();
+		}
+	}
+
+	/**
+	 * Stop checking the sessions and log out of those which were opened by logging in.
+	 */
+	public void close() {
+		closed = true;
+		if (own_executor) {
+			executor.shutdownNow();
+		}
+		for (int i = 0; i < sessions.length(); i++) {
+			Session session = sessions.getAndSet(i, null);
+			if (session != null) {
+				retired.add(session);
+			}
+		}
+		for (Session session : retired) {
+			logout(session);
+		}
+		retired.clear();
+	}
+
+	/**
+	 * @return int - the number of sessions configured
+	 */
+	public int size() {
+		return sessions.length();
+	}
+
+	/**
+	 * @return int - the number of sessions currently available for requests
+	 */
+	public int healthySessions() {
+		int healthy = 0;
+		for (int i = 0; i < sessions.length(); i++) {
+			Session session = sessions.get(i);
+			if (session != null && session.healthy) {
+				healthy++;
+			}
+		}
+		return healthy;
+	}
+
+	/**
+	 * @return int - the number of requests in progress over all sessions
+	 */
+	public int getOutstanding() {
+		int outstanding = 0;
+		for (int i = 0; i < sessions.length(); i++) {
+			Session session = sessions.get(i);
+			if (session != null) {
+				outstanding += session.outstanding.get();
+			}
+		}
+		return outstanding;
+	}
+
+	public String getLogical_database_id() {
+		return logical_database_id;
+	}
+
+	/**
+	 * Choose the healthy session with the fewest requests outstanding and count a request against it. Should no session be
+	 * healthy then the least busy of the rest is used rather than making the caller wait for a replacement.
+	 *
+	 * @throws WorkbooksApi.WorkbooksApiException - if the pool has been closed, or holds no sessions while they are replaced
+	 */
+	Session acquire() throws WorkbooksApi.WorkbooksApiException {
+		int count = sessions.length();
+		int start = (next.getAndIncrement() & Integer.MAX_VALUE) % count;
+		Session best = null;
+		Session fallback = null;
+		for (int n = 0; n < count; n++) {
+			Session session = sessions.get((start + n) % count);
+			if (session == null) {
+				continue;
+			}
+			if (session.healthy) {
+				if (best == null || session.outstanding.get() < best.outstanding.get()) {
+					best = session;
+				}
+			} else if (fallback == null || session.outstanding.get() < fallback.outstanding.get()) {
+				fallback = session;
+			}
+		}
+		if (best == null) {
+			best = fallback;
+		}
+		if (best == null) {
+			HashMap<String, Object> exceptionObj = new HashMap<String, Object>();
+			HashMap<String, Object> errorObj = new HashMap<String, Object>();
+			errorObj.put("message", closed ? "The session pool has been closed" : "No session in the pool is available while its sessions are replaced");
+			errorObj.put("type", "WorkbooksSessionPoolException");
+
+			exceptionObj.put("workbooks_api", reporter);
+			exceptionObj.put("error", errorObj);
+			throw reporter.new WorkbooksApiException(exceptionObj);
+		}
+		best.outstanding.incrementAndGet();
+		return best;
+	}
+
+	/**
+	 * Take a session out of use if the service has rejected it, and replace it.
+	 */
+	private void failed(Session session, WorkbooksApi.WorkbooksApiException e) {
+		if (session.healthy && session.workbooks.isSessionRejected(e)) {
+			session.healthy = false;
+			int index = indexOf(session);
+			if (index >= 0) {
+				replace(index);
+			}
+		}
+	}
+
+	/**
+	 * Log in for a member of the pool.
+	 */
+	private Session open(int index) throws Exception {
+		HashMap<String, Object> params = new HashMap<String, Object>(members.get(index));
+		Object password = params.remove("password");
+		WorkbooksApi workbooks = new WorkbooksApi(params);
+		if (workbooks.getApi_key() != null) {
+			return new Session(workbooks, true, System.currentTimeMillis());
+		}
+
+		HashMap<String, Object> login_params = new HashMap<String, Object>();
+		login_params.put("password", password);
+		login_params.put("logical_database_id", logical_database_id);
+		HashMap<String, Object> login_response = workbooks.login(login_params);
+		int http_status = (Integer) login_response.get("http_status");
+		if (http_status != WorkbooksApi.HTTP_STATUS_OK) {
+			throw new Exception("Login failed for session " + index + " of the pool: " + login_response.get("failure_message"));
+		}
+		return new Session(workbooks, false, System.currentTimeMillis());
+	}
+
+	/**
+	 * Open a new session for a member in the background; requests carry on using the other sessions meanwhile. If the login
+	 * fails it is tried again at the next health check.
+	 */
+	private void replace(final int index) {
+		if (!replacing.add(index)) {
+			return;
+		}
+		executor.execute(new Runnable() {
+			public void run() {
+				try {
+					Session replaced = sessions.getAndSet(index, open(index));
+					if (replaced != null) {
+						retired.add(replaced);
+					}
+				} catch (Exception e) {
+					log("Could not replace a session in the pool", new Object[] {index, e.getMessage()});
+				} finally {
+					replacing.remove(index);
+				}
+			}
+		});
+	}
+
+	/**
+	 * Replace sessions which have been rejected or are too old, check those which are idle, and log out of replaced
+	 * sessions once they are no longer in use.
+	 */
+	void checkSessions() {
+		long now = System.currentTimeMillis();
+		for (int i = 0; i < sessions.length(); i++) {
+			Session session = sessions.get(i);
+			if (session == null || !session.healthy || (session_max_age > 0 && now - session.opened_at > session_max_age)) {
+				replace(i);
+			} else if (session.outstanding.get() == 0) {
+				HashMap<String, Object> params = new HashMap<String, Object>();
+				params.put("_limit", "1");
+				params.put("_select_columns[]", new String[] {"id"});
+				try {
+					session.workbooks.get(health_check_endpoint, params, null);
+				} catch (WorkbooksApi.WorkbooksApiException e) {
+					failed(session, e);
+				}
+			}
+		}
+
+		Iterator<Session> iterator = retired.iterator();
+		while (iterator.hasNext()) {
+			Session session = iterator.next();
+			if (session.outstanding.get() == 0) {
+				iterator.remove();
+				logout(session);
+			}
+		}
+	}
+
+	private void logout(Session session) {
+		session.workbooks.stopKeepAlive();
+		if (!session.uses_api_key && session.healthy) {
+			try {
+				session.workbooks.logout();
+			} catch (Exception e) {
+				// The session will expire on the service in due course
+			}
+		}
+		session.workbooks.close();
+	}
+
+	private int indexOf(Session session) {
+		for (int i = 0; i < sessions.length(); i++) {
+			if (sessions.get(i) == session) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	private void log(String msg, Object[] messageObjects) {
+		for (int i = 0; i < sessions.length(); i++) {
+			Session session = sessions.get(i);
+			if (session != null) {
+				session.workbooks.log(msg, messageObjects, "warning", WorkbooksApi.DEFAULT_LOG_LIMIT);
+				return;
+			}
+		}
+	}
+}
@@ -0,0 +1,151 @@
+package workbooks_app.client_lib.java;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.security.GeneralSecurityException;
+import java.security.NoSuchAlgorithmException;
+import javax.net.ssl.HandshakeCompletedEvent;
+import javax.net.ssl.HandshakeCompletedListener;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSessionContext;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.SSLSocketFactory;
+
+/**
+ *	The TLS configuration of a client: one SSLContext, and so one cache of TLS sessions, for all of its connections.
+ *  A connection which cannot be kept alive can then resume a cached session (TLS 1.2 session ids, or TLS 1.3
+ *  pre-shared keys) instead of making a full handshake.
+ *
+ *  Its socket factory counts handshakes ('tls_handshakes', with 'tls_resumed' for those which resumed a session) and
+ *  records their duration ('tls_handshake_time') in the client's metrics.
+ *
+ * 	License: www.workbooks.com/mit_license
+ * 	Last commit $Id$
+ */
+
+public class WorkbooksTls {
+
+	private final SSLContext context;
+	private final SSLSocketFactory socket_factory;
+
+	/**
+	 * Use a new SSLContext, which trusts the JVM's default certificate authorities, with TLS 1.3 where the JVM supports it.
+	 *
+	 * @param session_cache_size - the most TLS sessions to cache; 0 for no limit, or -1 to keep the JVM's default
+	 * @param session_timeout - how long, in seconds, a cached session may be resumed; 0 for no limit, or -1 to keep the JVM's default
+	 * @param metrics - where to record handshakes
+	 * @throws GeneralSecurityException
+	 */
+	public WorkbooksTls(int session_cache_size, int session_timeout, WorkbooksMetrics metrics) throws GeneralSecurityException {
+		this(newContext(), session_cache_size, session_timeout, metrics);
+	}
+
+	/**
+	 * Use the given SSLContext, e.g. one with a custom trust store.
+	 */
+	public WorkbooksTls(SSLContext context, int session_cache_size, int session_timeout, WorkbooksMetrics metrics) {
+		this.context = context;
+		SSLSessionContext sessions = context.getClientSessionContext();
+		if (sessions != null) {
+			if (session_cache_size >= 0) {
+				sessions.setSessionCacheSize(session_cache_size);
+			}
+			if (session_timeout >= 0) {
+				sessions.setSessionTimeout(session_timeout);
+			}
+		}
+		this.socket_factory = new MeasuringSocketFactory(context.getSocketFactory(), metrics);
+	}
+
+	public SSLContext getContext() {
+		return context;
+	}
+
+	/**
+	 * @return SSLSocketFactory - the factory to give every HTTPS connection of the client, so that they share its sessions
+	 */
+	public SSLSocketFactory getSocketFactory() {
+		return socket_factory;
+	}
+
+	private static SSLContext newContext() throws GeneralSecurityException {
+		SSLContext context;
+		try {
+			context = SSLContext.getInstance("TLSv1.3"); // Also enables the earlier versions
+		} catch (NoSuchAlgorithmException e) {
+			context = SSLContext.getInstance("TLS");
+		}
+		context.init(null, null, null);
+		return context;
+	}
+
+	/**
+	 * Creates sockets with the wrapped factory, timing each handshake from the creation of the socket, which for an
+	 * HTTPS connection is just after the TCP connection is made.
+	 */
+	static class MeasuringSocketFactory extends SSLSocketFactory {
+		private final SSLSocketFactory factory;
+		private final WorkbooksMetrics metrics;
+
+		MeasuringSocketFactory(SSLSocketFactory factory, WorkbooksMetrics metrics) {
+			this.factory = factory;
+			this.metrics = metrics;
+		}
+
+		public String[] getDefaultCipherSuites() {
+			return factory.getDefaultCipherSuites();
+		}
+
+		public String[] getSupportedCipherSuites() {
+			return factory.getSupportedCipherSuites();
+		}
+
+		public Socket createSocket() throws IOException {
+			return measure(factory.createSocket());
+		}
+
+		public Socket createSocket(Socket socket, String host, int port, boolean auto_close) throws IOException {
+			return measure(factory.createSocket(socket, host, port, auto_close));
+		}
+
+		public Socket createSocket(Socket socket, InputStream consumed, boolean auto_close) throws IOException {
+			return measure(factory.createSocket(socket, consumed, auto_close));
+		}
+
+		public Socket createSocket(String host, int port) throws IOException {
+			return measure(factory.createSocket(host, port));
+		}
+
+		public Socket createSocket(String host, int port, InetAddress local_host, int local_port) throws IOException {
+			return measure(factory.createSocket(host, port, local_host, local_port));
+		}
+
+		public Socket createSocket(InetAddress host, int port) throws IOException {
+			return measure(factory.createSocket(host, port));
+		}
+
+		public Socket createSocket(InetAddress address, int port, InetAddress local_address, int local_port) throws IOException {
+			return measure(factory.createSocket(address, port, local_address, local_port));
+		}
+
+		private Socket measure(Socket socket) {
+			if (socket instanceof SSLSocket) {
+				final long created_at = System.currentTimeMillis();
+				((SSLSocket) socket).addHandshakeCompletedListener(new HandshakeCompletedListener() {
+					public void handshakeCompleted(HandshakeCompletedEvent event) {
+						long now = System.currentTimeMillis();
+						metrics.increment("tls_handshakes");
+						metrics.record("tls_handshake_time", now - created_at);
+						// A resumed session is the one made by an earlier handshake, so it was created before this socket
+						if (event.getSession().getCreationTime() < created_at) {
+							metrics.increment("tls_resumed");
+						}
+					}
+				});
+			}
+			return socket;
+		}
+	}
+}
@@ -0,0 +1,64 @@
+package workbooks_app.client_lib.java;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ *	Sends form-encoded requests to the service in place of HttpURLConnection, e.g. WorkbooksHttp2Transport, which
+ *  multiplexes concurrent requests over HTTP/2. WorkbooksApi still builds each request and interprets its response.
+ *
+ * 	License: www.workbooks.com/mit_license
+ * 	Last commit $Id$
+ */
+
+public interface WorkbooksTransport {
+
+	/**
+	 * A response as received from the service.
+	 */
+	public static class Response {
+		public final int status;
+		public final Map<String, List<String>> headers;
+		public final String body;
+		public final long wire_bytes; // the size of the body as received, before decompression
+		public final String protocol; // e.g. 'HTTP/2'
+
+		public Response(int status, Map<String, List<String>> headers, String body, long wire_bytes, String protocol) {
+			this.status = status;
+			this.headers = headers;
+			this.body = body;
+			this.wire_bytes = wire_bytes;
+			this.protocol = protocol;
+		}
+
+		/**
+		 * @return String - the first value of a header, matched without regard to case, or null
+		 */
+		public String getHeader(String name) {
+			for (Map.Entry<String, List<String>> header : headers.entrySet()) {
+				if (header.getKey() != null && header.getKey().equalsIgnoreCase(name) && !header.getValue().isEmpty()) {
+					return header.getValue().get(0);
+				}
+			}
+			return null;
+		}
+	}
+
+	/**
+	 * Send a request and read its response.
+	 *
+	 * @param url - the full URL, including any query string
+	 * @param method - GET/POST/PUT/DELETE
+	 * @param headers - the request headers
+	 * @param body - the form-encoded body, compressed if the headers give a Content-Encoding, or null for none
+	 * @param timeout - how long, in milliseconds, the whole exchange may take; 0 for no limit
+	 * @param cancellation_token - cancels the exchange when cancelled; may be null
+	 * @return Response
+	 * @throws IOException - if no response is received, including on timeout or cancellation
+	 * @throws InterruptedException
+	 */
+	Response send(String url, String method, HashMap<String, String> headers, byte[] body, long timeout, WorkbooksCancellationToken cancellation_token)
+			throws IOException, InterruptedException;
+}